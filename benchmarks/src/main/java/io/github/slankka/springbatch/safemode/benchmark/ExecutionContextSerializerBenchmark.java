@@ -0,0 +1,102 @@
+package io.github.slankka.springbatch.safemode.benchmark;
+
+import io.github.slankka.springbatch.safemode.repository.BinaryExecutionContextSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.batch.core.repository.ExecutionContextSerializer;
+import org.springframework.batch.core.repository.dao.Jackson2ExecutionContextStringSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Serializing and deserializing an execution context with the default JSON serializer and
+ * with {@link BinaryExecutionContextSerializer}, deflating or not, for the context of a reader step and for the
+ * context of a partitioned step holding the plan of 500 partitions. The encoded size of each is
+ * printed on setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionContextSerializerBenchmark {
+
+    @Param({"json", "binary", "binary-plain"})
+    public String serializer;
+
+    @Param({"step", "partitioned"})
+    public String context;
+
+    private ExecutionContextSerializer contextSerializer;
+
+    private Map<String, Object> contextMap;
+
+    private byte[] serialized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (this.serializer.startsWith("binary")) {
+            BinaryExecutionContextSerializer binary = new BinaryExecutionContextSerializer();
+            binary.setCompress(!"binary-plain".equals(this.serializer));
+            this.contextSerializer = binary;
+        } else {
+            this.contextSerializer = new Jackson2ExecutionContextStringSerializer();
+        }
+        this.contextMap = ("partitioned".equals(this.context) ? partitionedContext(500) : stepContext());
+        this.serialized = serialize();
+        System.out.println(this.serializer + " " + this.context + " context: " + this.serialized.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        this.contextSerializer.serialize(this.contextMap, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Map<String, Object> deserialize() throws Exception {
+        return this.contextSerializer.deserialize(new ByteArrayInputStream(this.serialized));
+    }
+
+    private static Map<String, Object> stepContext() {
+        Map<String, Object> context = new HashMap<>();
+        context.put("batch.taskletType", "org.springframework.batch.core.step.item.ChunkOrientedTasklet");
+        context.put("batch.stepType", "org.springframework.batch.core.step.tasklet.TaskletStep");
+        context.put("FlatFileItemReader.read.count", 123456);
+        context.put("JdbcPagingItemReader.start.after", 9876543210L);
+        context.put("FlatFileItemWriter.current.count", 48211337L);
+        context.put("FlatFileItemWriter.written", 123456L);
+        context.put("lastProcessed", new Date());
+        context.put("threshold", 0.75d);
+        context.put("restarted", Boolean.FALSE);
+        return context;
+    }
+
+    private static Map<String, Object> partitionedContext(int partitions) {
+        Map<String, Object> context = new HashMap<>();
+        for (int i = 0; i < partitions; i++) {
+            context.put("partition" + i + ".minValue", i * 100000L);
+            context.put("partition" + i + ".maxValue", i * 100000L + 99999L);
+            context.put("partition" + i + ".name", "worker:partition" + i);
+        }
+        return context;
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.slankka.springbatch.safemode.benchmark;
+
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerRegistry;
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerStrategy;
+import io.github.slankka.springbatch.safemode.patch.SafeModeMysqlIncrementFactory;
+import io.github.slankka.springbatch.safemode.patch.ShardedSequenceInitializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>{@code nextLongValue()} of every strategy and cache size, as throughput and as sampled
+ * latency for the tail percentiles. Run it with {@code -t} for a given thread count, or through
+ * {@link ThreadSweep} for 1 to 128 threads. The {@code prefetch}, {@code striped} and
+ * {@code adaptive} parameters tune the {@code BLOCK} strategy only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IncrementerBenchmark {
+
+    private static final String SEQUENCE = "BATCH_JOB_EXECUTION_SEQ";
+
+    @Param({"BLOCK", "SHARDED", "HI_LO"})
+    public SafeModeIncrementerStrategy strategy;
+
+    @Param({"1", "10", "100", "1000"})
+    public int cacheSize;
+
+    @Param("false")
+    public boolean prefetch;
+
+    @Param("false")
+    public boolean striped;
+
+    @Param("false")
+    public boolean adaptive;
+
+    private MysqlStandInDataSource dataSource;
+
+    private DataFieldMaxValueIncrementer incrementer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.dataSource = new MysqlStandInDataSource("incrementer" + System.nanoTime(), false);
+        SafeModeMysqlIncrementFactory factory = new SafeModeMysqlIncrementFactory(this.dataSource);
+        factory.setStrategy(this.strategy);
+        factory.setCacheSize(this.cacheSize);
+        factory.setLoSize(this.cacheSize);
+        factory.setPrefetch(this.prefetch);
+        factory.setStriped(this.striped);
+        factory.setAdaptiveCacheSize(this.adaptive);
+        if (this.strategy == SafeModeIncrementerStrategy.SHARDED) {
+            new ShardedSequenceInitializer(this.dataSource).initialize(SEQUENCE, 4);
+        }
+        this.incrementer = factory.getIncrementer("MYSQL", SEQUENCE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SafeModeIncrementerRegistry.remove(this.dataSource);
+        this.dataSource.shutdown();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long nextLongValue() {
+        return this.incrementer.nextLongValue();
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.slankka.springbatch.safemode.benchmark;
+
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerRegistry;
+import io.github.slankka.springbatch.safemode.springbatchexample.SafeModeBatchConfigurer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.JobRepository;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>The launch path of a job, end to end: {@code JobRepository.createJobExecution} and
+ * adding a step execution, through the repository that
+ * {@link SafeModeBatchConfigurer#initialize()} builds with {@code createJobRepository()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JobRepositoryBenchmark {
+
+    private final AtomicLong run = new AtomicLong();
+
+    private MysqlStandInDataSource dataSource;
+
+    private JobRepository jobRepository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.dataSource = new MysqlStandInDataSource("jobrepository" + System.nanoTime(), true);
+        SafeModeBatchConfigurer configurer = new SafeModeBatchConfigurer(this.dataSource, null);
+        configurer.initialize();
+        this.jobRepository = configurer.getJobRepository();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SafeModeIncrementerRegistry.remove(this.dataSource);
+        this.dataSource.shutdown();
+    }
+
+    @Benchmark
+    public JobExecution createJobExecution() throws Exception {
+        return this.jobRepository.createJobExecution("benchmarkJob", nextParameters());
+    }
+
+    @Benchmark
+    public StepExecution createJobAndStepExecution() throws Exception {
+        JobExecution jobExecution = this.jobRepository.createJobExecution("benchmarkJob", nextParameters());
+        StepExecution stepExecution = jobExecution.createStepExecution("benchmarkStep");
+        this.jobRepository.add(stepExecution);
+        return stepExecution;
+    }
+
+    private JobParameters nextParameters() {
+        return new JobParametersBuilder().addLong("run", this.run.incrementAndGet()).toJobParameters();
+    }
+}
@@ -0,0 +1,167 @@
+package io.github.slankka.springbatch.safemode.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>An embedded H2 database in MySQL mode that passes for MySQL, so that the benchmarks run
+ * offline against the same SQL the incrementers send to a real server.
+ * <p>H2 only knows the zero-argument {@code last_insert_id()}, so every statement is rewritten to
+ * call {@link #lastInsertId} instead, which keeps the value per session like MySQL does. The
+ * database metadata reports {@code MySQL}, which makes Spring Batch pick the MySQL DAOs and the
+ * safe mode incrementers. Connections come from a HikariCP pool, as in a Spring Boot application.
+ * The absolute numbers are not those of MySQL; compare them with each other.
+ */
+public class MysqlStandInDataSource extends DelegatingDataSource {
+
+    private static final Pattern LAST_INSERT_ID = Pattern.compile("(?i)last_insert_id\\(");
+
+    /**
+     * The constraint names of the MySQL schema are unique per table in MySQL, but per schema in H2.
+     */
+    private static final Pattern SEQUENCE_CONSTRAINT = Pattern.compile(
+            "(?i)(create table (\\w+)\\s*\\([^;]*?constraint )UNIQUE_KEY_UN");
+
+    private static final String[] SEQUENCE_TABLES = {"BATCH_JOB_SEQ", "BATCH_JOB_EXECUTION_SEQ",
+            "BATCH_STEP_EXECUTION_SEQ"};
+
+    private static final Map<Integer, Long> LAST_INSERT_IDS = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new in-memory database with the Spring Batch sequence tables.
+     *
+     * @param name        the name of the database, unique per benchmark trial
+     * @param batchSchema {@code true} to create the full Spring Batch MySQL schema
+     */
+    public MysqlStandInDataSource(String name, boolean batchSchema) throws SQLException, IOException {
+        super(createPool(name));
+        try (Connection con = getTargetDataSource().getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("create alias if not exists MYSQL_LAST_INSERT_ID for \"" +
+                    MysqlStandInDataSource.class.getName() + ".lastInsertId\"");
+        }
+        if (batchSchema) {
+            String schema;
+            try (InputStream in = new ClassPathResource("org/springframework/batch/core/schema-mysql.sql").getInputStream()) {
+                schema = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+            }
+            schema = SEQUENCE_CONSTRAINT.matcher(schema).replaceAll("$1$2_UN");
+            new ResourceDatabasePopulator(new ByteArrayResource(schema.getBytes(StandardCharsets.UTF_8)))
+                    .execute(getTargetDataSource());
+        } else {
+            try (Connection con = getTargetDataSource().getConnection(); Statement stmt = con.createStatement()) {
+                for (String table : SEQUENCE_TABLES) {
+                    stmt.execute("create table " + table + " (ID BIGINT NOT NULL, UNIQUE_KEY CHAR(1) NOT NULL, " +
+                            "constraint " + table + "_UN unique (UNIQUE_KEY))");
+                    stmt.execute("insert into " + table + " (ID, UNIQUE_KEY) values (0, '0')");
+                }
+            }
+        }
+    }
+
+    private static HikariDataSource createPool(String name) {
+        HikariDataSource pool = new HikariDataSource();
+        pool.setPoolName(name);
+        pool.setJdbcUrl("jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        pool.setMaximumPoolSize(32);
+        return pool;
+    }
+
+    /**
+     * Close the pool, then drop the database. The shutdown runs on a plain connection, because
+     * closing a pooled connection to a database that was shut down fails.
+     */
+    public void shutdown() throws SQLException {
+        HikariDataSource pool = (HikariDataSource) getTargetDataSource();
+        pool.close();
+        Connection con = DriverManager.getConnection(pool.getJdbcUrl());
+        try {
+            con.createStatement().execute("shutdown");
+        } finally {
+            JdbcUtils.closeConnection(con);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrap(super.getConnection(), Connection.class);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return wrap(super.getConnection(username, password), Connection.class);
+    }
+
+    /**
+     * {@code last_insert_id(expr)}: remember the value for the session and return it.
+     */
+    public static long lastInsertId(Connection con, long value) throws SQLException {
+        LAST_INSERT_IDS.put(sessionId(con), value);
+        return value;
+    }
+
+    /**
+     * {@code last_insert_id()}: the value last remembered for the session.
+     */
+    public static long lastInsertId(Connection con) throws SQLException {
+        Long value = LAST_INSERT_IDS.get(sessionId(con));
+        return (value != null ? value : 0);
+    }
+
+    private static int sessionId(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery("call session_id()")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T wrap(T target, Class<T> type) {
+        return (T) Proxy.newProxyInstance(MysqlStandInDataSource.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    if (args != null && args.length > 0 && args[0] instanceof String) {
+                        args[0] = LAST_INSERT_ID.matcher((String) args[0]).replaceAll("MYSQL_LAST_INSERT_ID(");
+                    }
+                    if (method.getName().equals("getDatabaseProductName")) {
+                        return "MySQL";
+                    }
+                    Object result;
+                    try {
+                        result = method.invoke(target, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                    if (result instanceof PreparedStatement) {
+                        return wrap((PreparedStatement) result, PreparedStatement.class);
+                    }
+                    if (result instanceof Statement) {
+                        return wrap((Statement) result, Statement.class);
+                    }
+                    if (result instanceof DatabaseMetaData) {
+                        return wrap((DatabaseMetaData) result, DatabaseMetaData.class);
+                    }
+                    return result;
+                });
+    }
+}
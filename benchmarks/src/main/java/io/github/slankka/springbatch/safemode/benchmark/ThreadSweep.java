@@ -0,0 +1,29 @@
+package io.github.slankka.springbatch.safemode.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Runs the selected benchmarks once per thread count, 1 to 128 threads, and writes one JSON
+ * result file per thread count. Takes the usual JMH command line options, for example
+ * {@code IncrementerBenchmark -p strategy=BLOCK}.
+ */
+public class ThreadSweep {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64, 128};
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        for (int threads : THREADS) {
+            new Runner(new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-threads-" + threads + ".json")
+                    .build()).run();
+        }
+    }
+}
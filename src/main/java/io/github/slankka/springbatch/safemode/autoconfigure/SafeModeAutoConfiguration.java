@@ -0,0 +1,82 @@
+package io.github.slankka.springbatch.safemode.autoconfigure;
+
+import io.github.slankka.springbatch.safemode.patch.SafeModeMysqlIncrementFactory;
+import io.github.slankka.springbatch.safemode.patch.SequenceIncrementerListener;
+import io.github.slankka.springbatch.safemode.springbatchexample.SafeModeBatchConfigurer;
+import io.github.slankka.springbatch.safemode.springcloudtaskexample.SafeModelTaskConfigurer;
+import org.springframework.batch.core.configuration.annotation.BatchConfigurer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.AutoConfigureBefore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnSingleCandidate;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.task.configuration.TaskConfigurer;
+import org.springframework.cloud.task.configuration.TaskProperties;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Configures Spring Batch and Spring Cloud Task of a Spring Boot application with the safe
+ * mode incrementers, from the {@code spring.batch.safemode.*} properties.
+ * <p>With the default {@code AUTO} strategy every sequence gets the cheapest incrementer the
+ * database allows: a MariaDB {@code SEQUENCE} of the same name if there is one, Spring's own
+ * MySQL incrementer if {@code sql_safe_updates} is off, the safe mode block incrementer
+ * otherwise. A {@link BatchConfigurer} or {@link TaskConfigurer} of the application takes
+ * precedence; it still picks up the {@link SafeModeMysqlIncrementFactory} bean.
+ */
+@Configuration
+@ConditionalOnSingleCandidate(DataSource.class)
+@ConditionalOnProperty(prefix = "spring.batch.safemode", name = "enabled", matchIfMissing = true)
+@EnableConfigurationProperties(SafeModeProperties.class)
+@AutoConfigureAfter(DataSourceAutoConfiguration.class)
+@AutoConfigureBefore(name = {"org.springframework.boot.autoconfigure.batch.BatchAutoConfiguration",
+        "org.springframework.cloud.task.configuration.SimpleTaskAutoConfiguration"})
+public class SafeModeAutoConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public SafeModeMysqlIncrementFactory safeModeIncrementerFactory(DataSource dataSource, SafeModeProperties properties,
+                                                                    ObjectProvider<SequenceIncrementerListener> listener) {
+        SafeModeMysqlIncrementFactory incrementerFactory = new SafeModeMysqlIncrementFactory(dataSource);
+        incrementerFactory.setStrategy(properties.getStrategy());
+        incrementerFactory.setCacheSize(properties.getCacheSize());
+        incrementerFactory.setPrefetch(properties.isPrefetch());
+        incrementerFactory.setPrefetchThreshold(properties.getPrefetchThreshold());
+        incrementerFactory.setListener(listener.getIfUnique());
+        return incrementerFactory;
+    }
+
+    @Configuration
+    @ConditionalOnClass(BatchConfigurer.class)
+    static class SafeModeBatchConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean(BatchConfigurer.class)
+        public SafeModeBatchConfigurer safeModeBatchConfigurer(DataSource dataSource) {
+            return new SafeModeBatchConfigurer(dataSource);
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(TaskConfigurer.class)
+    static class SafeModeTaskConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean(TaskConfigurer.class)
+        public SafeModelTaskConfigurer safeModeTaskConfigurer(DataSource dataSource,
+                                                              ObjectProvider<TaskProperties> taskProperties,
+                                                              ApplicationContext context) {
+            TaskProperties properties = taskProperties.getIfAvailable();
+            String tablePrefix = (properties != null ? properties.getTablePrefix() : TaskProperties.DEFAULT_TABLE_PREFIX);
+            return new SafeModelTaskConfigurer(dataSource, tablePrefix, context);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.slankka.springbatch.safemode.autoconfigure;
+
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerStrategy;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>The {@code spring.batch.safemode.*} properties of {@link SafeModeAutoConfiguration}.
+ */
+@ConfigurationProperties(prefix = "spring.batch.safemode")
+public class SafeModeProperties {
+
+    /**
+     * Whether to configure Spring Batch and Spring Cloud Task with the safe mode incrementers.
+     */
+    private boolean enabled = true;
+
+    /**
+     * How IDs are generated; {@code AUTO} picks per sequence from what the database supports. A
+     * sequence left to Spring's {@code NATIVE} incrementer only takes the cache size: it does not
+     * notify the {@code SequenceIncrementerListener} bean or prefetch.
+     */
+    private SafeModeIncrementerStrategy strategy = SafeModeIncrementerStrategy.AUTO;
+
+    /**
+     * Number of IDs reserved per round trip to a sequence table. A server-side sequence reserves
+     * its {@code INCREMENT} instead.
+     */
+    private int cacheSize = 1;
+
+    /**
+     * Whether the next block of IDs is reserved in the background before the current one runs out.
+     */
+    private boolean prefetch = false;
+
+    /**
+     * Fraction of a block left at which the next block is prefetched.
+     */
+    private double prefetchThreshold = 0.25;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public SafeModeIncrementerStrategy getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(SafeModeIncrementerStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    public double getPrefetchThreshold() {
+        return prefetchThreshold;
+    }
+
+    public void setPrefetchThreshold(double prefetchThreshold) {
+        this.prefetchThreshold = prefetchThreshold;
+    }
+}
@@ -0,0 +1,174 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.support.DatabaseType;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>What the safe mode patch needs to know about a database, read with a single connection:
+ * the {@link DatabaseType}, the server product and version, and for MySQL whether
+ * {@code sql_safe_updates} is on for new sessions.
+ * <p>Spring Batch and Spring Cloud Task each open a connection to look up the database type.
+ * Use {@link SafeModeIncrementerRegistry#getDatabaseProbe} instead to probe each DataSource once.
+ */
+public final class DatabaseProbe {
+
+    private static final Log logger = LogFactory.getLog(DatabaseProbe.class);
+
+    private static final String SAFE_UPDATES_SQL = "select @@sql_safe_updates";
+
+    /**
+     * The MariaDB version in a product version like {@code 5.5.5-10.3.12-MariaDB}, which is how
+     * MySQL drivers see it.
+     */
+    private static final Pattern MARIADB_VERSION = Pattern.compile("(\\d+)\\.(\\d+)\\.\\d+-MariaDB", Pattern.CASE_INSENSITIVE);
+
+    private final DatabaseType databaseType;
+
+    private final String productName;
+
+    private final int majorVersion;
+
+    private final int minorVersion;
+
+    private final boolean mariaDb;
+
+    private final boolean safeUpdates;
+
+    private DatabaseProbe(DatabaseType databaseType, String productName, int majorVersion, int minorVersion,
+                          boolean mariaDb, boolean safeUpdates) {
+        this.databaseType = databaseType;
+        this.productName = productName;
+        this.majorVersion = majorVersion;
+        this.minorVersion = minorVersion;
+        this.mariaDb = mariaDb;
+        this.safeUpdates = safeUpdates;
+    }
+
+    /**
+     * Probe the given DataSource. MariaDB counts as {@link DatabaseType#MYSQL}, which Spring Batch
+     * does not know it by.
+     *
+     * @throws DataAccessResourceFailureException if no connection could be obtained, or the
+     *                                            database type is not supported by Spring Batch
+     */
+    public static DatabaseProbe probe(DataSource dataSource) {
+        Connection con = null;
+        try {
+            con = dataSource.getConnection();
+            DatabaseMetaData metaData = con.getMetaData();
+            String productName = metaData.getDatabaseProductName();
+            String productVersion = metaData.getDatabaseProductVersion();
+            boolean mariaDb = (productName != null && productName.toLowerCase().contains("mariadb")) ||
+                    (productVersion != null && productVersion.toLowerCase().contains("mariadb"));
+            DatabaseType databaseType = (mariaDb ? DatabaseType.MYSQL : databaseType(productName, productVersion));
+            boolean safeUpdates = (databaseType == DatabaseType.MYSQL && readSafeUpdates(con));
+            int majorVersion = metaData.getDatabaseMajorVersion();
+            int minorVersion = metaData.getDatabaseMinorVersion();
+            Matcher mariaDbVersion = (mariaDb && productVersion != null ? MARIADB_VERSION.matcher(productVersion) : null);
+            if (mariaDbVersion != null && mariaDbVersion.find()) {
+                majorVersion = Integer.parseInt(mariaDbVersion.group(1));
+                minorVersion = Integer.parseInt(mariaDbVersion.group(2));
+            }
+            return new DatabaseProbe(databaseType, productName, majorVersion, minorVersion, mariaDb, safeUpdates);
+        } catch (SQLException | IllegalArgumentException ex) {
+            throw new DataAccessResourceFailureException("Could not probe the database of " + dataSource, ex);
+        } finally {
+            JdbcUtils.closeConnection(con);
+        }
+    }
+
+    /**
+     * Map the product name like {@link DatabaseType#fromMetaData} does.
+     */
+    private static DatabaseType databaseType(String productName, String productVersion) {
+        if (productName != null && productName.startsWith("DB2")) {
+            if (productVersion != null && productVersion.startsWith("ARI")) {
+                return DatabaseType.DB2VSE;
+            }
+            if (productVersion != null && productVersion.startsWith("DSN")) {
+                return DatabaseType.DB2ZOS;
+            }
+            if (productName.contains("AS/400")) {
+                return DatabaseType.DB2AS400;
+            }
+        }
+        return DatabaseType.fromProductName(JdbcUtils.commonDatabaseName(productName));
+    }
+
+    /**
+     * Whether safe updates are on for the sessions of this DataSource. If the variable can't be
+     * read, they are assumed to be on, which keeps the safe mode incrementers in use.
+     */
+    private static boolean readSafeUpdates(Connection con) {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = con.createStatement();
+            rs = stmt.executeQuery(SAFE_UPDATES_SQL);
+            return (!rs.next() || rs.getLong(1) != 0);
+        } catch (SQLException ex) {
+            logger.debug("Could not read @@sql_safe_updates, assuming safe updates are on", ex);
+            return true;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(stmt);
+        }
+    }
+
+    public DatabaseType getDatabaseType() {
+        return databaseType;
+    }
+
+    public String getProductName() {
+        return productName;
+    }
+
+    public int getMajorVersion() {
+        return majorVersion;
+    }
+
+    public int getMinorVersion() {
+        return minorVersion;
+    }
+
+    /**
+     * Whether the server is MariaDB, which also reports as {@link DatabaseType#MYSQL}.
+     */
+    public boolean isMariaDb() {
+        return mariaDb;
+    }
+
+    /**
+     * Whether {@code sql_safe_updates} is on for new sessions; always {@code false} for
+     * databases other than MySQL.
+     */
+    public boolean isSafeUpdates() {
+        return safeUpdates;
+    }
+
+    /**
+     * Whether the server has {@code SEQUENCE} objects, which MariaDB has since 10.3.
+     */
+    public boolean supportsSequences() {
+        return mariaDb && (majorVersion > 10 || (majorVersion == 10 && minorVersion >= 3));
+    }
+
+    @Override
+    public String toString() {
+        return productName + " " + majorVersion + "." + minorVersion + " (" + databaseType +
+                (databaseType == DatabaseType.MYSQL ? ", safe updates " + (safeUpdates ? "on" : "off") : "") + ")";
+    }
+}
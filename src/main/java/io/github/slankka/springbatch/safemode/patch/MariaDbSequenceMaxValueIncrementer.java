@@ -0,0 +1,125 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Draws IDs from a MariaDB {@code SEQUENCE} (10.3 and later) instead of a sequence table.
+ * A sequence needs no row lock and no safe-mode compliant update.
+ * <p>Each {@code nextval} reserves as many IDs as the {@code INCREMENT} of the sequence, which the
+ * incrementer serves as one block. Everything else, including prefetching the next block in the
+ * background and striping, works as in {@link SafeModeMysqlMaxValueIncrementer}. Create the
+ * sequence with a block sized increment, for example:
+ * <code>
+ * create sequence BATCH_JOB_EXECUTION_SEQ start with 1 increment by 50 nocycle;
+ * </code>
+ * <br/>Ranges {@link #reserve reserved} in bulk can not be larger than the increment, and are
+ * taken from a new block when the current one can not hold them.
+ */
+public class MariaDbSequenceMaxValueIncrementer extends SafeModeMysqlMaxValueIncrementer {
+
+    private static final String SEQUENCE_SQL = "select TABLE_TYPE from information_schema.TABLES " +
+            "where TABLE_SCHEMA = database() and TABLE_NAME = ?";
+
+    /**
+     * The increment of the sequence, read from the database unless set.
+     */
+    private int increment = 0;
+
+    public MariaDbSequenceMaxValueIncrementer() {
+    }
+
+    public MariaDbSequenceMaxValueIncrementer(DataSource dataSource, String incrementerName) {
+        super(dataSource, incrementerName, "ID");
+    }
+
+    /**
+     * Whether the given name is a {@code SEQUENCE} in the current schema of the DataSource.
+     */
+    public static boolean isSequence(DataSource dataSource, String incrementerName) {
+        List<String> types = new JdbcTemplate(dataSource).queryForList(SEQUENCE_SQL, String.class, incrementerName);
+        return (!types.isEmpty() && "SEQUENCE".equalsIgnoreCase(types.get(0)));
+    }
+
+    /**
+     * Set the {@code INCREMENT} the sequence was created with, so it is not read from the database.
+     */
+    public void setIncrement(int increment) {
+        this.increment = increment;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (this.increment <= 0) {
+            Integer increment = new JdbcTemplate(getDataSource()).queryForObject(
+                    "select increment from " + getIncrementerName(), Integer.class);
+            this.increment = (increment != null ? increment : 1);
+        }
+        if (this.increment < 1) {
+            throw new IllegalArgumentException("Sequence " + getIncrementerName() + " must count upwards");
+        }
+        setCacheSize(this.increment);
+        setAdaptiveCacheSize(false);
+        super.afterPropertiesSet();
+    }
+
+    /**
+     * One {@code nextval} at a time, each a block of {@link #setIncrement increment} IDs.
+     */
+    @Override
+    protected int nextBlockSize() {
+        return this.increment;
+    }
+
+    @Override
+    int maxRefillSize() {
+        return this.increment;
+    }
+
+    @Override
+    long incrementSequence(Statement stmt, int size) throws SQLException {
+        checkSize(size);
+        ResultSet rs = stmt.executeQuery("select nextval(" + getIncrementerName() + ")");
+        try {
+            return nextValue(rs) + size - 1;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+        }
+    }
+
+    @Override
+    long incrementSequence(PinnedSequenceConnection con, int size) throws SQLException {
+        checkSize(size);
+        PreparedStatement ps = con.prepareStatement("select nextval(" + getIncrementerName() + ")");
+        ResultSet rs = ps.executeQuery();
+        try {
+            return nextValue(rs) + size - 1;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+        }
+    }
+
+    private long nextValue(ResultSet rs) throws SQLException {
+        if (!rs.next()) {
+            throw new DataAccessResourceFailureException("nextval(" + getIncrementerName() + ") returned no value");
+        }
+        return rs.getLong(1);
+    }
+
+    private void checkSize(int size) {
+        if (size > this.increment) {
+            throw new InvalidDataAccessApiUsageException("Can not reserve " + size + " consecutive IDs from " +
+                    getIncrementerName() + ", its increment is " + this.increment);
+        }
+    }
+}
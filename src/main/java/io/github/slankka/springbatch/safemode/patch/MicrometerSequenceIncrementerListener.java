@@ -0,0 +1,108 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Publishes the events of the sequence incrementers as Micrometer meters, all tagged with
+ * the {@code sequence} table name:
+ * <ul>
+ * <li>{@code safemode.sequence.refill}: timer with percentile histogram of the refills</li>
+ * <li>{@code safemode.sequence.refill.failures}: counter, tagged with {@code reason} and {@code sqlstate}</li>
+ * <li>{@code safemode.sequence.refill.retries}: counter of contended refills retried, tagged with {@code reason}</li>
+ * <li>{@code safemode.sequence.wait}: timer of how long callers with a used-up block waited for the refill</li>
+ * <li>{@code safemode.sequence.ids.served}: counter of IDs handed out, counted as they are served</li>
+ * <li>{@code safemode.sequence.block.utilization}: summary of the fraction of each retired block that was taken</li>
+ * <li>{@code safemode.sequence.ids.wasted}: counter of reserved IDs lost on shutdown</li>
+ * </ul>
+ * Requires {@code micrometer-core} on the class path.
+ */
+public class MicrometerSequenceIncrementerListener implements SequenceIncrementerListener {
+
+    private static final String PREFIX = "safemode.sequence.";
+
+    private final MeterRegistry registry;
+
+    /**
+     * The served ID counters by sequence; the meters only hold them weakly.
+     */
+    private final ConcurrentMap<String, LongAdder> servedIds = new ConcurrentHashMap<>();
+
+    public MicrometerSequenceIncrementerListener(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public LongAdder getServedIdCounter(String incrementerName) {
+        return servedIds.computeIfAbsent(incrementerName, name -> {
+            LongAdder served = new LongAdder();
+            FunctionCounter.builder(PREFIX + "ids.served", served, LongAdder::doubleValue)
+                    .tag("sequence", name)
+                    .register(registry);
+            return served;
+        });
+    }
+
+    @Override
+    public void onRefill(String incrementerName, int size, long nanos) {
+        Timer.builder(PREFIX + "refill")
+                .tag("sequence", incrementerName)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onRefillFailure(String incrementerName, SequenceRefillFailure failure, String sqlState, Throwable ex) {
+        Counter.builder(PREFIX + "refill.failures")
+                .tag("sequence", incrementerName)
+                .tag("reason", failure.name())
+                .tag("sqlstate", sqlState != null ? sqlState : "none")
+                .register(registry)
+                .increment();
+    }
+
+    @Override
+    public void onRefillRetry(String incrementerName, SequenceRefillFailure failure, int attempt, long backoffMillis) {
+        Counter.builder(PREFIX + "refill.retries")
+                .tag("sequence", incrementerName)
+                .tag("reason", failure.name())
+                .register(registry)
+                .increment();
+    }
+
+    @Override
+    public void onWait(String incrementerName, long nanos) {
+        Timer.builder(PREFIX + "wait")
+                .tag("sequence", incrementerName)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onBlockRetired(String incrementerName, int size, long served) {
+        if (size > 0) {
+            DistributionSummary.builder(PREFIX + "block.utilization")
+                    .tag("sequence", incrementerName)
+                    .register(registry)
+                    .record((double) served / size);
+        }
+    }
+
+    @Override
+    public void onShutdown(String incrementerName, long wasted) {
+        Counter.builder(PREFIX + "ids.wasted")
+                .tag("sequence", incrementerName)
+                .register(registry)
+                .increment(wasted);
+    }
+}
@@ -0,0 +1,159 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>A connection kept open for sequence refills only.
+ * <p>Without it, every refill checks a connection out of the pool, toggles autocommit, has the
+ * server parse the update again and returns the connection. A pinned connection stays in manual
+ * commit mode and keeps one {@link PreparedStatement} per SQL string. Refills run one at a time,
+ * each in its own transaction. If the connection breaks, it is replaced and the refill is run
+ * once more; a refill that was lost with the connection at most leaves a gap in the IDs.
+ * <p>Obtain the connection from a small dedicated DataSource to keep sequence traffic from
+ * competing with the job pool during launch bursts.
+ *
+ * @see SafeModeMysqlMaxValueIncrementer#setPinnedConnection
+ */
+public class PinnedSequenceConnection implements DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(PinnedSequenceConnection.class);
+
+    private final DataSource dataSource;
+
+    private Connection connection;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    private boolean destroyed;
+
+    public PinnedSequenceConnection(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Run the given work in a transaction of its own on the pinned connection, reconnecting
+     * and running it once more if the connection turns out to be broken.
+     *
+     * @param work the statements to run
+     * @return the result of the work
+     */
+    public synchronized <T> T execute(Work<T> work) throws DataAccessException {
+        if (destroyed) {
+            throw new DataAccessResourceFailureException("Pinned sequence connection to " + dataSource +
+                    " was destroyed");
+        }
+        try {
+            return executeOnce(work);
+        } catch (SQLException ex) {
+            if (!isConnectionFailure(ex)) {
+                throw new DataAccessResourceFailureException("Could not refill sequence on pinned connection", ex);
+            }
+            logger.info("Pinned sequence connection failed, reconnecting", ex);
+            close();
+            try {
+                return executeOnce(work);
+            } catch (SQLException retryEx) {
+                close();
+                throw new DataAccessResourceFailureException("Could not refill sequence on pinned connection", retryEx);
+            }
+        }
+    }
+
+    private <T> T executeOnce(Work<T> work) throws SQLException {
+        if (connection == null) {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+        }
+        try {
+            T result = work.doInConnection(this);
+            connection.commit();
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            try {
+                connection.rollback();
+            } catch (SQLException ignore) {
+                // the original failure is more relevant
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Return the prepared statement for the given SQL, preparing it on first use.
+     * Only to be called from within {@link #execute}.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    private boolean isConnectionFailure(SQLException ex) {
+        if (ex instanceof SQLNonTransientConnectionException || ex instanceof SQLRecoverableException) {
+            return true;
+        }
+        String sqlState = ex.getSQLState();
+        if (sqlState != null && sqlState.startsWith("08")) {
+            return true;
+        }
+        try {
+            return connection == null || !connection.isValid(1);
+        } catch (SQLException validationEx) {
+            return true;
+        }
+    }
+
+    /**
+     * Close the pinned connection and its statements; the next refill opens a new one.
+     */
+    public synchronized void close() {
+        for (PreparedStatement ps : statements.values()) {
+            JdbcUtils.closeStatement(ps);
+        }
+        statements.clear();
+        JdbcUtils.closeConnection(connection);
+        connection = null;
+    }
+
+    /**
+     * Close the pinned connection for good; later refills fail instead of opening a connection
+     * nobody closes.
+     */
+    @Override
+    public synchronized void destroy() {
+        destroyed = true;
+        close();
+    }
+
+
+    /**
+     * Statements run on the pinned connection.
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+
+        T doInConnection(PinnedSequenceConnection connection) throws SQLException;
+    }
+}
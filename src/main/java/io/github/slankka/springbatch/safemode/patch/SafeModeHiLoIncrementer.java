@@ -0,0 +1,325 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.incrementer.AbstractColumnMaxValueIncrementer;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Hi/lo ID generation with node leases: each JVM leases a "hi" value once and then
+ * generates the IDs {@code hi * loSize} to {@code hi * loSize + loSize - 1} locally, without
+ * any database round trip until that "lo" space is used up.
+ * <p>The sequence table keeps counting in IDs, so it can be shared with the other incrementers of
+ * this package: a lease moves the table value, with a safe-mode compliant {@code where ID >= 0}
+ * update, to the last ID of the next {@link #setLoSize lo space} aligned block, and the hi value
+ * is the number of that block.
+ * <p>A lease is released on {@link #destroy() shutdown}, or when it is older than the
+ * {@link #setLeaseDuration lease duration}. Releasing hands the unused rest of the lo space back
+ * to the table, provided no other node leased in the meantime; otherwise it stays a gap.
+ */
+public class SafeModeHiLoIncrementer extends AbstractColumnMaxValueIncrementer implements DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(SafeModeHiLoIncrementer.class);
+
+    /**
+     * The SQL string for retrieving the new sequence value.
+     */
+    private static final String VALUE_SQL = "select last_insert_id()";
+
+    /**
+     * The number of IDs in the lo space of one lease.
+     */
+    private int loSize = 10000;
+
+    /**
+     * The time in milliseconds after which a lease is renewed, {@code 0} for never.
+     */
+    private long leaseDuration = 0;
+
+    /**
+     * The current lease.
+     */
+    private volatile Lease lease = Lease.NONE;
+
+    /**
+     * The listener notified of leases.
+     */
+    private SequenceIncrementerListener listener = SequenceIncrementerListener.NONE;
+
+    /**
+     * Counts the IDs handed out, if the listener asked for it.
+     */
+    private LongAdder servedIds;
+
+    /**
+     * Default constructor for bean property style usage.
+     *
+     * @see #setDataSource
+     * @see #setIncrementerName
+     * @see #setColumnName
+     */
+    public SafeModeHiLoIncrementer() {
+    }
+
+    /**
+     * Convenience constructor.
+     *
+     * @param dataSource      the DataSource to use
+     * @param incrementerName the name of the sequence table to use
+     * @param columnName      the name of the column in the sequence table to use
+     */
+    public SafeModeHiLoIncrementer(DataSource dataSource, String incrementerName, String columnName) {
+        super(dataSource, incrementerName, columnName);
+    }
+
+
+    /**
+     * Set the number of IDs in the lo space of one lease. Larger values mean fewer database round
+     * trips and larger gaps when a node stops. Default is 10000.
+     */
+    public void setLoSize(int loSize) {
+        this.loSize = loSize;
+    }
+
+    /**
+     * Set the time in milliseconds after which a lease is released and a new one taken, which
+     * keeps the IDs of long-running nodes close to those of the rest of the cluster.
+     * Default is {@code 0}, which keeps a lease until its lo space is used up.
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+    /**
+     * Set the listener notified of leases, lease failures and IDs lost on release.
+     */
+    public void setListener(SequenceIncrementerListener listener) {
+        this.listener = (listener != null ? listener : SequenceIncrementerListener.NONE);
+    }
+
+    /**
+     * @return the hi value of the current lease, {@code -1} if there is none
+     */
+    public long getHi() {
+        return this.lease.hi;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        if (this.loSize < 1) {
+            throw new IllegalArgumentException("Property 'loSize' must be positive");
+        }
+        this.servedIds = this.listener.getServedIdCounter(getIncrementerName());
+    }
+
+    @Override
+    protected long getNextKey() throws DataAccessException {
+        Lease lease = this.lease;
+        long id = lease.next();
+        if (id < 0 || (this.leaseDuration != 0 && System.currentTimeMillis() >= lease.expiresAt)) {
+            id = renewAndGet(lease, id);
+        }
+        if (this.servedIds != null) {
+            this.servedIds.increment();
+        }
+        return id;
+    }
+
+    private synchronized long renewAndGet(Lease expired, long taken) {
+        if (taken >= 0) {
+            // an expired lease still produced a valid ID, hand it out before renewing
+            if (this.lease == expired) {
+                release(expired);
+                this.lease = acquire();
+            }
+            return taken;
+        }
+        while (true) {
+            Lease lease = this.lease;
+            long id = lease.next();
+            if (id >= 0) {
+                return id;
+            }
+            if (lease != Lease.NONE) {
+                this.listener.onBlockRetired(getIncrementerName(), this.loSize, this.loSize);
+            }
+            this.lease = acquire();
+        }
+    }
+
+    /**
+     * Release the current lease, handing its unused IDs back when possible.
+     */
+    @Override
+    public synchronized void destroy() {
+        this.listener.onShutdown(getIncrementerName(), release(this.lease));
+        this.lease = Lease.NONE;
+    }
+
+    private Lease acquire() {
+        long start = System.nanoTime();
+        long last;
+        try {
+            last = executeLease(true, 0, 0);
+        } catch (DataAccessException ex) {
+            this.listener.onRefillFailure(getIncrementerName(), SequenceRefillFailure.classify(ex),
+                    SequenceRefillFailure.getSQLState(ex), ex);
+            throw ex;
+        }
+        this.listener.onRefill(getIncrementerName(), this.loSize, System.nanoTime() - start);
+        long hi = last / this.loSize;
+        logger.debug("Leased hi " + hi + " of " + getIncrementerName());
+        return new Lease(hi, hi * this.loSize, last,
+                (this.leaseDuration > 0 ? System.currentTimeMillis() + this.leaseDuration : Long.MAX_VALUE));
+    }
+
+    /**
+     * @return the number of unused IDs that could not be handed back
+     */
+    private long release(Lease lease) {
+        if (lease == Lease.NONE) {
+            return 0;
+        }
+        long unused = Math.min(lease.retire(), lease.last + 1);
+        this.listener.onBlockRetired(getIncrementerName(), this.loSize, unused - lease.hi * this.loSize);
+        if (unused > lease.last) {
+            return 0;
+        }
+        try {
+            if (executeLease(false, unused - 1, lease.last) > 0) {
+                logger.debug("Released hi " + lease.hi + " of " + getIncrementerName() + ", returned " +
+                        (lease.last - unused + 1) + " IDs");
+                return 0;
+            }
+        } catch (DataAccessException ex) {
+            logger.warn("Could not return the unused IDs of hi " + lease.hi + " to " + getIncrementerName(), ex);
+        }
+        return lease.last - unused + 1;
+    }
+
+    /**
+     * Lease the next lo space, or give back the unused rest of a lease.
+     *
+     * @param lease    {@code true} to lease, {@code false} to give back
+     * @param value    the table value to give back to
+     * @param expected the table value if nobody leased since
+     * @return the last ID of the lease, or the number of rows given back
+     */
+    private long executeLease(boolean lease, long value, long expected) {
+        String columnName = getColumnName();
+        Connection con = null;
+        PreparedStatement ps = null;
+        boolean mustRestoreAutoCommit = false;
+        try {
+            con = getDataSource().getConnection();
+            if (con.getAutoCommit()) {
+                mustRestoreAutoCommit = true;
+                con.setAutoCommit(false);
+            }
+            long result;
+            if (lease) {
+                ps = con.prepareStatement("update " + getIncrementerName() + " set " + columnName +
+                        " = last_insert_id(" + columnName + " - mod(" + columnName + ", ?) + ?) where " +
+                        columnName + " >= 0");
+                ps.setLong(1, this.loSize);
+                ps.setLong(2, 2L * this.loSize - 1);
+                ps.executeUpdate();
+                JdbcUtils.closeStatement(ps);
+                ps = con.prepareStatement(VALUE_SQL);
+                ResultSet rs = ps.executeQuery();
+                try {
+                    if (!rs.next()) {
+                        throw new DataAccessResourceFailureException("last_insert_id() failed after executing an update");
+                    }
+                    result = rs.getLong(1);
+                } finally {
+                    JdbcUtils.closeResultSet(rs);
+                }
+            } else {
+                ps = con.prepareStatement("update " + getIncrementerName() + " set " + columnName + " = ? where " +
+                        columnName + " = ?");
+                ps.setLong(1, value);
+                ps.setLong(2, expected);
+                result = ps.executeUpdate();
+            }
+            con.commit();
+            return result;
+        } catch (SQLException ex) {
+            if (con != null) {
+                try {
+                    con.rollback();
+                } catch (SQLException ignore) {
+                    // the original failure is more relevant
+                }
+            }
+            throw new DataAccessResourceFailureException("Could not " + (lease ? "lease" : "release") + " hi value of " +
+                    getIncrementerName() + " sequence table", ex);
+        } finally {
+            JdbcUtils.closeStatement(ps);
+            if (con != null) {
+                if (mustRestoreAutoCommit) {
+                    try {
+                        con.setAutoCommit(true);
+                    } catch (SQLException ignore) {
+                        // the connection is closed right away
+                    }
+                }
+                JdbcUtils.closeConnection(con);
+            }
+        }
+    }
+
+
+    /**
+     * A leased hi value and the lo space being served from it.
+     */
+    private static final class Lease {
+
+        static final Lease NONE = new Lease(-1, 1, 0, Long.MAX_VALUE);
+
+        final long hi;
+
+        final long last;
+
+        final long expiresAt;
+
+        private final AtomicLong cursor;
+
+        Lease(long hi, long first, long last, long expiresAt) {
+            this.hi = hi;
+            this.last = last;
+            this.expiresAt = expiresAt;
+            this.cursor = new AtomicLong(first);
+        }
+
+        /**
+         * @return the next ID, or {@code -1} if the lo space is used up
+         */
+        long next() {
+            long id = this.cursor.getAndIncrement();
+            return (id <= this.last ? id : -1);
+        }
+
+        /**
+         * Stop serving IDs from this lease.
+         *
+         * @return the first ID that was not handed out
+         */
+        long retire() {
+            return this.cursor.getAndSet(this.last + 1);
+        }
+    }
+}
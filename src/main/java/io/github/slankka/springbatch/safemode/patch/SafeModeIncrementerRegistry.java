@@ -0,0 +1,341 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Process-wide registry of the incrementers created by {@link SafeModeMysqlIncrementFactory}.
+ * <p>Spring Batch and Spring Cloud Task each build their own factory, so without the registry
+ * every factory would hold its own incrementer, and its own reserved block, for the same
+ * {@code *_SEQ} table. The registry keeps exactly one incrementer per {@link DataSource},
+ * sequence table and column. DataSources are compared by identity.
+ * <p>Incrementers and probes are created outside of any map lock, since that reads from the
+ * database; concurrent callers for the same key wait for the first one to finish.
+ */
+public final class SafeModeIncrementerRegistry {
+
+    private static final Log logger = LogFactory.getLog(SafeModeIncrementerRegistry.class);
+
+    private static final ConcurrentMap<Key, Registration> INCREMENTERS = new ConcurrentHashMap<>();
+
+    private static final Map<DataSource, SequenceRefillGroup> REFILL_GROUPS = new ConcurrentHashMap<>();
+
+    private static final Map<DataSource, PinnedSequenceConnection> PINNED_CONNECTIONS = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<DataSource, Set<DataSource>> PINNED_SOURCES = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<DataSource, CompletableFuture<DatabaseProbe>> DATABASE_PROBES = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<DataSource, Integer> OWNERS = new ConcurrentHashMap<>();
+
+    private SafeModeIncrementerRegistry() {
+    }
+
+    /**
+     * Return the incrementer registered for the given sequence, creating and registering
+     * it first if there is none.
+     *
+     * @param dataSource      the DataSource of the sequence table
+     * @param incrementerName the name of the sequence table
+     * @param columnName      the name of the column in the sequence table
+     * @param factory         creates the incrementer if none is registered yet
+     * @return the registered incrementer
+     */
+    public static DataFieldMaxValueIncrementer getIncrementer(DataSource dataSource, String incrementerName,
+                                                              String columnName,
+                                                              Supplier<? extends DataFieldMaxValueIncrementer> factory) {
+        return getIncrementer(dataSource, incrementerName, columnName, null, factory);
+    }
+
+    /**
+     * Return the incrementer registered for the given sequence, creating and registering it
+     * first if there is none. If it was registered with other settings, those settings stay in
+     * effect and a warning names the ones that are ignored.
+     *
+     * @param settings the settings the caller would create the incrementer with, by name;
+     *                 {@code null} to skip the check
+     * @see #getIncrementer(DataSource, String, String, Supplier)
+     */
+    public static DataFieldMaxValueIncrementer getIncrementer(DataSource dataSource, String incrementerName,
+                                                              String columnName, Map<String, Object> settings,
+                                                              Supplier<? extends DataFieldMaxValueIncrementer> factory) {
+        Key key = new Key(dataSource, incrementerName, columnName);
+        Registration registration = new Registration(settings);
+        Registration registered = INCREMENTERS.putIfAbsent(key, registration);
+        if (registered == null) {
+            try {
+                DataFieldMaxValueIncrementer incrementer = factory.get();
+                registration.incrementer.complete(incrementer);
+                return incrementer;
+            } catch (RuntimeException | Error ex) {
+                INCREMENTERS.remove(key, registration);
+                registration.incrementer.completeExceptionally(ex);
+                throw ex;
+            }
+        }
+        DataFieldMaxValueIncrementer incrementer = join(registered.incrementer);
+        if (settings != null && registered.settings != null && !settings.equals(registered.settings)) {
+            logger.warn("Incrementer for " + incrementerName + " is already registered, ignoring the settings " +
+                    difference(settings, registered.settings) + " in favour of " +
+                    difference(registered.settings, settings));
+        }
+        return incrementer;
+    }
+
+    /**
+     * Return the group refilling the sequence tables of the given DataSource together,
+     * creating it first if there is none.
+     */
+    public static SequenceRefillGroup getRefillGroup(DataSource dataSource) {
+        return REFILL_GROUPS.computeIfAbsent(dataSource, SequenceRefillGroup::new);
+    }
+
+    /**
+     * Return the pinned connection obtained from the given DataSource, creating it first if
+     * there is none, so that all sequences refilled through it share one connection.
+     */
+    public static PinnedSequenceConnection getPinnedConnection(DataSource dataSource) {
+        return getPinnedConnection(dataSource, dataSource);
+    }
+
+    /**
+     * Return the pinned connection obtained from the given source DataSource for the sequences
+     * of the owner DataSource, creating it first if there is none. The connection is destroyed
+     * when the owner is {@link #remove removed} and no other owner pins it.
+     *
+     * @param dataSource the DataSource the sequences are registered for
+     * @param source     the DataSource the connection is obtained from, like a dedicated
+     *                   sequence DataSource
+     */
+    public static PinnedSequenceConnection getPinnedConnection(DataSource dataSource, DataSource source) {
+        PINNED_SOURCES.computeIfAbsent(dataSource, key -> ConcurrentHashMap.newKeySet()).add(source);
+        return PINNED_CONNECTIONS.computeIfAbsent(source, PinnedSequenceConnection::new);
+    }
+
+    /**
+     * Return what is known about the database of the given DataSource, probing it first if it
+     * was not probed yet.
+     */
+    public static DatabaseProbe getDatabaseProbe(DataSource dataSource) {
+        CompletableFuture<DatabaseProbe> probe = new CompletableFuture<>();
+        CompletableFuture<DatabaseProbe> registered = DATABASE_PROBES.putIfAbsent(dataSource, probe);
+        if (registered != null) {
+            return join(registered);
+        }
+        try {
+            probe.complete(DatabaseProbe.probe(dataSource));
+        } catch (RuntimeException | Error ex) {
+            DATABASE_PROBES.remove(dataSource, probe);
+            probe.completeExceptionally(ex);
+        }
+        return join(probe);
+    }
+
+    /**
+     * Return the incrementers registered for the given DataSource so far.
+     */
+    public static List<DataFieldMaxValueIncrementer> getIncrementers(DataSource dataSource) {
+        List<DataFieldMaxValueIncrementer> incrementers = new ArrayList<>();
+        for (Map.Entry<Key, Registration> entry : INCREMENTERS.entrySet()) {
+            DataFieldMaxValueIncrementer incrementer = entry.getValue().getNow();
+            if (entry.getKey().dataSource == dataSource && incrementer != null) {
+                incrementers.add(incrementer);
+            }
+        }
+        return incrementers;
+    }
+
+    /**
+     * Register an owner of what is registered for the given DataSource, like a configurer whose
+     * DAOs use the shared incrementers. Each owner calls {@link #release} when it shuts down.
+     */
+    public static void retain(DataSource dataSource) {
+        OWNERS.merge(dataSource, 1, Integer::sum);
+    }
+
+    /**
+     * Unregister an owner of what is registered for the given DataSource, and {@link #remove}
+     * it all once the last owner is gone. Does nothing if the DataSource has no owners.
+     */
+    public static void release(DataSource dataSource) {
+        boolean[] last = new boolean[1];
+        OWNERS.computeIfPresent(dataSource, (key, owners) -> {
+            if (owners > 1) {
+                return owners - 1;
+            }
+            last[0] = true;
+            return null;
+        });
+        if (last[0]) {
+            remove(dataSource);
+        }
+    }
+
+    /**
+     * Remove all incrementers, the refill group, the pinned connections and the database probe
+     * registered for the given DataSource, for example when the DataSource is closed. A pinned
+     * connection obtained from another DataSource is kept while another owner still pins it.
+     * Incrementers holding resources, like the lease of a {@link SafeModeHiLoIncrementer},
+     * release them.
+     * Owners sharing the DataSource should call {@link #release} instead.
+     */
+    public static void remove(DataSource dataSource) {
+        INCREMENTERS.entrySet().removeIf(entry -> {
+            if (entry.getKey().dataSource != dataSource) {
+                return false;
+            }
+            destroy(entry.getValue().getNow());
+            return true;
+        });
+        REFILL_GROUPS.remove(dataSource);
+        DATABASE_PROBES.remove(dataSource);
+        OWNERS.remove(dataSource);
+        Set<DataSource> sources = PINNED_SOURCES.remove(dataSource);
+        if (sources == null) {
+            sources = Collections.singleton(dataSource);
+        } else {
+            sources.add(dataSource);
+        }
+        for (DataSource source : sources) {
+            if (!isPinned(source)) {
+                PinnedSequenceConnection pinnedConnection = PINNED_CONNECTIONS.remove(source);
+                if (pinnedConnection != null) {
+                    pinnedConnection.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all registered incrementers, refill groups, pinned connections and database probes.
+     */
+    public static void clear() {
+        INCREMENTERS.values().forEach(registration -> destroy(registration.getNow()));
+        INCREMENTERS.clear();
+        REFILL_GROUPS.clear();
+        DATABASE_PROBES.clear();
+        OWNERS.clear();
+        PINNED_SOURCES.clear();
+        PINNED_CONNECTIONS.values().forEach(PinnedSequenceConnection::destroy);
+        PINNED_CONNECTIONS.clear();
+    }
+
+    /**
+     * Whether a registered owner still pins a connection of the given DataSource.
+     */
+    private static boolean isPinned(DataSource source) {
+        for (Set<DataSource> sources : PINNED_SOURCES.values()) {
+            if (sources.contains(source)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait for a value another caller is creating, rethrowing its failure as is.
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * The entries of the given settings that differ from the other settings.
+     */
+    private static Map<String, Object> difference(Map<String, Object> settings, Map<String, Object> other) {
+        Map<String, Object> difference = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : settings.entrySet()) {
+            if (!Objects.equals(entry.getValue(), other.get(entry.getKey()))) {
+                difference.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return difference;
+    }
+
+    private static void destroy(DataFieldMaxValueIncrementer incrementer) {
+        if (incrementer instanceof DisposableBean) {
+            try {
+                ((DisposableBean) incrementer).destroy();
+            } catch (Exception ex) {
+                logger.warn("Could not release incrementer " + incrementer, ex);
+            }
+        }
+    }
+
+
+    /**
+     * An incrementer, possibly still being created, with the settings it was requested with.
+     */
+    private static final class Registration {
+
+        private final CompletableFuture<DataFieldMaxValueIncrementer> incrementer = new CompletableFuture<>();
+        private final Map<String, Object> settings;
+
+        Registration(Map<String, Object> settings) {
+            this.settings = settings;
+        }
+
+        /**
+         * The incrementer, or {@code null} while it is created or if that failed.
+         */
+        DataFieldMaxValueIncrementer getNow() {
+            return (incrementer.isDone() && !incrementer.isCompletedExceptionally() ? incrementer.join() : null);
+        }
+    }
+
+    private static final class Key {
+
+        private final DataSource dataSource;
+        private final String incrementerName;
+        private final String columnName;
+
+        Key(DataSource dataSource, String incrementerName, String columnName) {
+            this.dataSource = dataSource;
+            this.incrementerName = incrementerName;
+            this.columnName = columnName;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) other;
+            return this.dataSource == that.dataSource && this.incrementerName.equals(that.incrementerName) &&
+                    this.columnName.equals(that.columnName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(this.dataSource) + this.incrementerName.hashCode()) +
+                    this.columnName.hashCode();
+        }
+    }
+}
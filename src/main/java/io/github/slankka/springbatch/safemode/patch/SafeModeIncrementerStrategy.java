@@ -0,0 +1,52 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>How {@link SafeModeMysqlIncrementFactory} generates IDs for MySQL sequence tables.
+ */
+public enum SafeModeIncrementerStrategy {
+
+    /**
+     * Reserve blocks of IDs from the single row of the sequence table.
+     *
+     * @see SafeModeMysqlMaxValueIncrementer
+     */
+    BLOCK,
+
+    /**
+     * Reserve blocks from one of several key-addressed rows of the sequence table and
+     * interleave the IDs of the rows.
+     *
+     * @see ShardedSafeModeMysqlMaxValueIncrementer
+     */
+    SHARDED,
+
+    /**
+     * Lease a hi value once per node and generate IDs in its lo space locally.
+     *
+     * @see SafeModeHiLoIncrementer
+     */
+    HI_LO,
+
+    /**
+     * Use Spring's {@link org.springframework.jdbc.support.incrementer.MySQLMaxValueIncrementer},
+     * which updates the sequence table without a key and so only works with safe updates off.
+     */
+    NATIVE,
+
+    /**
+     * Draw IDs from a server-side {@code SEQUENCE} of the same name instead of a sequence table.
+     *
+     * @see MariaDbSequenceMaxValueIncrementer
+     */
+    SEQUENCE,
+
+    /**
+     * Pick per sequence when it is first used: {@link #SEQUENCE} if the server has a
+     * {@code SEQUENCE} of that name, {@link #NATIVE} if safe updates are off, {@link #BLOCK}
+     * otherwise.
+     *
+     * @see DatabaseProbe
+     */
+    AUTO
+}
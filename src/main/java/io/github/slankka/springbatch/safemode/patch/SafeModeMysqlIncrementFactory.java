@@ -1,10 +1,19 @@
 package io.github.slankka.springbatch.safemode.patch;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.batch.item.database.support.DefaultDataFieldMaxValueIncrementerFactory;
 import org.springframework.batch.support.DatabaseType;
 import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+import org.springframework.jdbc.support.incrementer.MySQLMaxValueIncrementer;
 
 import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 /**
  * project: springbatch safemode patch
@@ -19,8 +28,35 @@ import javax.sql.DataSource;
  */
 public class SafeModeMysqlIncrementFactory extends DefaultDataFieldMaxValueIncrementerFactory {
 
+    private static final Log logger = LogFactory.getLog(SafeModeMysqlIncrementFactory.class);
+
     private DataSource dataSource;
     private String incrementerColumnName = "ID";
+    private int cacheSize = 1;
+    private final ConcurrentMap<String, Integer> sequenceCacheSizes = new ConcurrentHashMap<>();
+    private boolean adaptiveCacheSize = false;
+    private int minCacheSize = 1;
+    private int maxCacheSize = 1000;
+    private long targetRefillInterval = 1000;
+    private boolean prefetch = false;
+    private double prefetchThreshold = 0.25;
+    private Executor prefetchExecutor;
+    private boolean striped = false;
+    private int stripeSize = 16;
+    private int refillRetries = 3;
+    private long refillBackoff = 20;
+    private int contentionBlockFactor = 4;
+    private long contentionPeriod = 10000;
+    private boolean shared = true;
+    private boolean coordinatedRefill = false;
+    private boolean pinnedConnection = false;
+    private DataSource sequenceDataSource;
+    private SafeModeIncrementerStrategy strategy = SafeModeIncrementerStrategy.BLOCK;
+    private int shardCount = 4;
+    private int shard = -1;
+    private int loSize = 10000;
+    private long leaseDuration = 0;
+    private SequenceIncrementerListener listener;
 
     public SafeModeMysqlIncrementFactory(DataSource dataSource) {
         super(dataSource);
@@ -33,14 +69,382 @@ public class SafeModeMysqlIncrementFactory extends DefaultDataFieldMaxValueIncre
         this.incrementerColumnName = incrementerColumnName;
     }
 
+    /**
+     * Set the number of IDs each safe-mode incrementer reserves per refill, or the first
+     * block size when adaptive sizing is enabled.
+     *
+     * @see SafeModeMysqlMaxValueIncrementer#setCacheSize
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Set the number of IDs reserved per refill for one sequence table, in place of the
+     * {@link #setCacheSize(int) cache size} of the factory. Applies to incrementers created
+     * after this call.
+     */
+    public void setCacheSize(String incrementerName, int cacheSize) {
+        this.sequenceCacheSizes.put(incrementerName, cacheSize);
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setAdaptiveCacheSize
+     */
+    public void setAdaptiveCacheSize(boolean adaptiveCacheSize) {
+        this.adaptiveCacheSize = adaptiveCacheSize;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setMinCacheSize
+     */
+    public void setMinCacheSize(int minCacheSize) {
+        this.minCacheSize = minCacheSize;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setMaxCacheSize
+     */
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setTargetRefillInterval
+     */
+    public void setTargetRefillInterval(long targetRefillInterval) {
+        this.targetRefillInterval = targetRefillInterval;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setPrefetch
+     */
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setPrefetchThreshold
+     */
+    public void setPrefetchThreshold(double prefetchThreshold) {
+        this.prefetchThreshold = prefetchThreshold;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setPrefetchExecutor
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setStriped
+     */
+    public void setStriped(boolean striped) {
+        this.striped = striped;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setStripeSize
+     */
+    public void setStripeSize(int stripeSize) {
+        this.stripeSize = stripeSize;
+    }
+
+    /**
+     * Set whether to share incrementers through the {@link SafeModeIncrementerRegistry}, so
+     * that every factory on the same DataSource hands out the same incrementer, and the same
+     * reserved block, for a sequence table. The settings of the factory that first asks for a
+     * sequence apply; a later factory with other settings gets a warning. Default is {@code true}.
+     */
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Set whether the sequence tables of this factory's DataSource are refilled together,
+     * topping up every sequence that is running low whenever one of them needs a new block.
+     * Default is {@code false}.
+     *
+     * @see SafeModeMysqlMaxValueIncrementer#setRefillGroup
+     */
+    public void setCoordinatedRefill(boolean coordinatedRefill) {
+        this.coordinatedRefill = coordinatedRefill;
+    }
+
+    /**
+     * Set whether refills run on a connection kept open for them, shared by all sequences
+     * of the DataSource. Default is {@code false}.
+     *
+     * @see SafeModeMysqlMaxValueIncrementer#setPinnedConnection
+     */
+    public void setPinnedConnection(boolean pinnedConnection) {
+        this.pinnedConnection = pinnedConnection;
+    }
+
+    /**
+     * Set a separate, typically tiny, DataSource on the same database to obtain the pinned
+     * connection from, keeping sequence refills out of the job pool.
+     * Defaults to the DataSource of this factory.
+     *
+     * @see #setPinnedConnection
+     */
+    public void setSequenceDataSource(DataSource sequenceDataSource) {
+        this.sequenceDataSource = sequenceDataSource;
+    }
+
+    /**
+     * Set how IDs are generated for MySQL sequence tables. Default is
+     * {@link SafeModeIncrementerStrategy#BLOCK}; {@link SafeModeIncrementerStrategy#AUTO} picks
+     * per sequence. A {@link SafeModeIncrementerStrategy#SEQUENCE} takes its block size from the
+     * {@code INCREMENT} of the sequence, so the cache size does not apply to it. A
+     * {@link SafeModeIncrementerStrategy#NATIVE} incrementer only takes the cache size: it does not
+     * notify the listener, prefetch or retry refills.
+     */
+    public void setStrategy(SafeModeIncrementerStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @see ShardedSafeModeMysqlMaxValueIncrementer#setShardCount
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * @see ShardedSafeModeMysqlMaxValueIncrementer#setShard
+     */
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * @see SafeModeHiLoIncrementer#setLoSize
+     */
+    public void setLoSize(int loSize) {
+        this.loSize = loSize;
+    }
+
+    /**
+     * @see SafeModeHiLoIncrementer#setLeaseDuration
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setRefillRetries
+     */
+    public void setRefillRetries(int refillRetries) {
+        this.refillRetries = refillRetries;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setRefillBackoff
+     */
+    public void setRefillBackoff(long refillBackoff) {
+        this.refillBackoff = refillBackoff;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setContentionBlockFactor
+     */
+    public void setContentionBlockFactor(int contentionBlockFactor) {
+        this.contentionBlockFactor = contentionBlockFactor;
+    }
+
+    /**
+     * @see SafeModeMysqlMaxValueIncrementer#setContentionPeriod
+     */
+    public void setContentionPeriod(long contentionPeriod) {
+        this.contentionPeriod = contentionPeriod;
+    }
+
+    /**
+     * Set the listener notified by the incrementers of this factory, for example a
+     * {@link MicrometerSequenceIncrementerListener}.
+     *
+     * @see SafeModeMysqlMaxValueIncrementer#setListener
+     */
+    public void setListener(SequenceIncrementerListener listener) {
+        this.listener = listener;
+    }
+
     @Override
     public DataFieldMaxValueIncrementer getIncrementer(String incrementerType, String incrementerName) {
-        DatabaseType databaseType = DatabaseType.valueOf(incrementerType.toUpperCase());
-        if (databaseType == DatabaseType.MYSQL) {
-            SafeModeMysqlMaxValueIncrementer mySQLMaxValueIncrementer = new SafeModeMysqlMaxValueIncrementer(dataSource, incrementerName, incrementerColumnName);
-            mySQLMaxValueIncrementer.setUseNewConnection(true);
-            return mySQLMaxValueIncrementer;
+        if (DatabaseType.MYSQL.name().equalsIgnoreCase(incrementerType)) {
+            if (shared) {
+                return SafeModeIncrementerRegistry.getIncrementer(dataSource, incrementerName, incrementerColumnName,
+                        getSettings(), () -> createIncrementer(incrementerName));
+            }
+            return createIncrementer(incrementerName);
         }
         return super.getIncrementer(incrementerType, incrementerName);
     }
+
+    /**
+     * Return the settings of this factory that shape its incrementers, so that the
+     * {@link SafeModeIncrementerRegistry} can tell when a shared incrementer ignores them.
+     */
+    protected Map<String, Object> getSettings() {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("strategy", strategy);
+        settings.put("cacheSize", cacheSize);
+        settings.put("sequenceCacheSizes", new HashMap<>(sequenceCacheSizes));
+        settings.put("adaptiveCacheSize", adaptiveCacheSize);
+        settings.put("minCacheSize", minCacheSize);
+        settings.put("maxCacheSize", maxCacheSize);
+        settings.put("targetRefillInterval", targetRefillInterval);
+        settings.put("prefetch", prefetch);
+        settings.put("prefetchThreshold", prefetchThreshold);
+        settings.put("prefetchExecutor", prefetchExecutor);
+        settings.put("striped", striped);
+        settings.put("stripeSize", stripeSize);
+        settings.put("coordinatedRefill", coordinatedRefill);
+        settings.put("pinnedConnection", pinnedConnection);
+        settings.put("sequenceDataSource", sequenceDataSource);
+        settings.put("refillRetries", refillRetries);
+        settings.put("refillBackoff", refillBackoff);
+        settings.put("contentionBlockFactor", contentionBlockFactor);
+        settings.put("contentionPeriod", contentionPeriod);
+        settings.put("shardCount", shardCount);
+        settings.put("shard", shard);
+        settings.put("loSize", loSize);
+        settings.put("leaseDuration", leaseDuration);
+        settings.put("listener", listener);
+        return settings;
+    }
+
+    /**
+     * Create a new incrementer for the given MySQL sequence table with the settings of this factory.
+     */
+    protected DataFieldMaxValueIncrementer createIncrementer(String incrementerName) {
+        SafeModeIncrementerStrategy strategy = resolveStrategy(incrementerName);
+        int cacheSize = getCacheSize(incrementerName);
+        if (strategy == SafeModeIncrementerStrategy.NATIVE) {
+            if (listener != null || prefetch) {
+                logger.warn("The NATIVE incrementer for " + incrementerName + " does not notify the listener, " +
+                        "prefetch or retry refills; only the cache size applies to it");
+            }
+            MySQLMaxValueIncrementer nativeIncrementer = new MySQLMaxValueIncrementer(dataSource, incrementerName, incrementerColumnName);
+            nativeIncrementer.setUseNewConnection(true);
+            nativeIncrementer.setCacheSize(cacheSize);
+            nativeIncrementer.afterPropertiesSet();
+            return nativeIncrementer;
+        }
+        if (strategy == SafeModeIncrementerStrategy.SEQUENCE) {
+            MariaDbSequenceMaxValueIncrementer sequenceIncrementer = new MariaDbSequenceMaxValueIncrementer(dataSource, incrementerName);
+            sequenceIncrementer.setUseNewConnection(true);
+            sequenceIncrementer.setPrefetch(prefetch);
+            sequenceIncrementer.setPrefetchThreshold(prefetchThreshold);
+            sequenceIncrementer.setPrefetchExecutor(prefetchExecutor);
+            sequenceIncrementer.setStriped(striped);
+            sequenceIncrementer.setStripeSize(stripeSize);
+            sequenceIncrementer.setListener(listener);
+            sequenceIncrementer.afterPropertiesSet();
+            return sequenceIncrementer;
+        }
+        if (strategy == SafeModeIncrementerStrategy.SHARDED) {
+            return createShardedIncrementer(incrementerName, cacheSize);
+        }
+        if (strategy == SafeModeIncrementerStrategy.HI_LO) {
+            SafeModeHiLoIncrementer hiLoIncrementer = new SafeModeHiLoIncrementer(dataSource, incrementerName, incrementerColumnName);
+            hiLoIncrementer.setLoSize(loSize);
+            hiLoIncrementer.setLeaseDuration(leaseDuration);
+            hiLoIncrementer.setListener(listener);
+            hiLoIncrementer.afterPropertiesSet();
+            return hiLoIncrementer;
+        }
+        SafeModeMysqlMaxValueIncrementer mySQLMaxValueIncrementer = new SafeModeMysqlMaxValueIncrementer(dataSource, incrementerName, incrementerColumnName);
+        mySQLMaxValueIncrementer.setUseNewConnection(true);
+        mySQLMaxValueIncrementer.setCacheSize(cacheSize);
+        mySQLMaxValueIncrementer.setAdaptiveCacheSize(adaptiveCacheSize);
+        mySQLMaxValueIncrementer.setMinCacheSize(minCacheSize);
+        mySQLMaxValueIncrementer.setMaxCacheSize(maxCacheSize);
+        mySQLMaxValueIncrementer.setTargetRefillInterval(targetRefillInterval);
+        mySQLMaxValueIncrementer.setPrefetch(prefetch);
+        mySQLMaxValueIncrementer.setPrefetchThreshold(prefetchThreshold);
+        mySQLMaxValueIncrementer.setPrefetchExecutor(prefetchExecutor);
+        mySQLMaxValueIncrementer.setStriped(striped);
+        mySQLMaxValueIncrementer.setStripeSize(stripeSize);
+        mySQLMaxValueIncrementer.setRefillRetries(refillRetries);
+        mySQLMaxValueIncrementer.setRefillBackoff(refillBackoff);
+        mySQLMaxValueIncrementer.setContentionBlockFactor(contentionBlockFactor);
+        mySQLMaxValueIncrementer.setContentionPeriod(contentionPeriod);
+        mySQLMaxValueIncrementer.setListener(listener);
+        PinnedSequenceConnection connection = getPinnedConnection();
+        if (connection != null) {
+            mySQLMaxValueIncrementer.setPinnedConnection(connection);
+        }
+        if (coordinatedRefill) {
+            SequenceRefillGroup refillGroup = SafeModeIncrementerRegistry.getRefillGroup(dataSource);
+            if (connection != null) {
+                refillGroup.setPinnedConnection(connection);
+            }
+            mySQLMaxValueIncrementer.setRefillGroup(refillGroup);
+        }
+        mySQLMaxValueIncrementer.afterPropertiesSet();
+        return mySQLMaxValueIncrementer;
+    }
+
+    /**
+     * Resolve {@link SafeModeIncrementerStrategy#AUTO} for the given sequence from the
+     * {@link #getDatabaseProbe() probe} of the DataSource.
+     *
+     * @throws IllegalStateException if {@link SafeModeIncrementerStrategy#SEQUENCE} is configured
+     *                               but the sequence is not a server-side sequence
+     */
+    protected SafeModeIncrementerStrategy resolveStrategy(String incrementerName) {
+        if (strategy == SafeModeIncrementerStrategy.SEQUENCE) {
+            if (!getDatabaseProbe().supportsSequences() || !MariaDbSequenceMaxValueIncrementer.isSequence(dataSource, incrementerName)) {
+                throw new IllegalStateException(incrementerName + " is not a SEQUENCE on " + getDatabaseProbe());
+            }
+            return strategy;
+        }
+        if (strategy != SafeModeIncrementerStrategy.AUTO) {
+            return strategy;
+        }
+        DatabaseProbe probe = getDatabaseProbe();
+        SafeModeIncrementerStrategy resolved;
+        if (probe.supportsSequences() && MariaDbSequenceMaxValueIncrementer.isSequence(dataSource, incrementerName)) {
+            resolved = SafeModeIncrementerStrategy.SEQUENCE;
+        } else if (!probe.isSafeUpdates()) {
+            resolved = SafeModeIncrementerStrategy.NATIVE;
+        } else {
+            resolved = SafeModeIncrementerStrategy.BLOCK;
+        }
+        logger.info("Using the " + resolved + " incrementer for " + incrementerName + " on " + probe);
+        return resolved;
+    }
+
+    /**
+     * Return what is known about the database of this factory, probed once per DataSource.
+     */
+    protected DatabaseProbe getDatabaseProbe() {
+        return SafeModeIncrementerRegistry.getDatabaseProbe(dataSource);
+    }
+
+    private int getCacheSize(String incrementerName) {
+        return sequenceCacheSizes.getOrDefault(incrementerName, cacheSize);
+    }
+
+    private DataFieldMaxValueIncrementer createShardedIncrementer(String incrementerName, int cacheSize) {
+        ShardedSafeModeMysqlMaxValueIncrementer shardedIncrementer = new ShardedSafeModeMysqlMaxValueIncrementer(dataSource, incrementerName, incrementerColumnName);
+        shardedIncrementer.setCacheSize(cacheSize);
+        shardedIncrementer.setShardCount(shardCount);
+        shardedIncrementer.setShard(shard);
+        shardedIncrementer.setListener(listener);
+        shardedIncrementer.setPinnedConnection(getPinnedConnection());
+        shardedIncrementer.afterPropertiesSet();
+        return shardedIncrementer;
+    }
+
+    private PinnedSequenceConnection getPinnedConnection() {
+        if (!pinnedConnection) {
+            return null;
+        }
+        return SafeModeIncrementerRegistry.getPinnedConnection(dataSource,
+                sequenceDataSource != null ? sequenceDataSource : dataSource);
+    }
 }
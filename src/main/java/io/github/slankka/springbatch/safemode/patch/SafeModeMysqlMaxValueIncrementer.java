@@ -1,16 +1,29 @@
 package io.github.slankka.springbatch.safemode.patch;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.jdbc.support.incrementer.AbstractColumnMaxValueIncrementer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * project: springbatch safemode patch
@@ -22,7 +35,9 @@ import java.sql.Statement;
  *  </code>
  * @author slankka on 2019/8/30.
  */
-public class SafeModeMysqlMaxValueIncrementer extends AbstractColumnMaxValueIncrementer {
+public class SafeModeMysqlMaxValueIncrementer extends AbstractColumnMaxValueIncrementer implements DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(SafeModeMysqlMaxValueIncrementer.class);
 
     /**
      * The SQL string for retrieving the new sequence value.
@@ -30,20 +45,139 @@ public class SafeModeMysqlMaxValueIncrementer extends AbstractColumnMaxValueIncr
     private static final String VALUE_SQL = "select last_insert_id()";
 
     /**
-     * The next id to serve.
+     * The block of IDs being served.
      */
-    private long nextId = 0;
+    private volatile IdRange current = IdRange.EMPTY;
 
     /**
-     * The max id to serve.
+     * Guards refills and the prefetch state below.
      */
-    private long maxId = 0;
+    private final Object refillMonitor = new Object();
 
     /**
      * Whether or not to use a new connection for the incrementer.
      */
     private boolean useNewConnection = true;
 
+    /**
+     * Whether or not to size each reserved block from the observed ID demand.
+     */
+    private boolean adaptiveCacheSize = false;
+
+    /**
+     * The lower bound of an adaptively sized block.
+     */
+    private int minCacheSize = 1;
+
+    /**
+     * The upper bound of an adaptively sized block.
+     */
+    private int maxCacheSize = 1000;
+
+    /**
+     * The interval in milliseconds one adaptively sized block should last.
+     */
+    private long targetRefillInterval = 1000;
+
+    /**
+     * The size of the block being served.
+     */
+    private volatile int blockSize = 0;
+
+    /**
+     * The {@link System#nanoTime()} of the last refill.
+     */
+    private long lastRefillTime = 0;
+
+    /**
+     * Whether or not to reserve the next block in the background.
+     */
+    private boolean prefetch = false;
+
+    /**
+     * The fraction of the current block left over when the background refill starts.
+     */
+    private double prefetchThreshold = 0.25;
+
+    /**
+     * The executor running background refills, or {@code null} for the shared default.
+     */
+    private Executor prefetchExecutor;
+
+    /**
+     * Whether or not a background refill is running.
+     */
+    private volatile boolean prefetching = false;
+
+    /**
+     * The block reserved ahead of time, in the background or by the refill group, if any.
+     */
+    private final AtomicReference<IdRange> standby = new AtomicReference<>();
+
+    /**
+     * The group refilling this sequence together with its siblings, if any.
+     */
+    private SequenceRefillGroup refillGroup;
+
+    /**
+     * The connection dedicated to refills, if any.
+     */
+    private PinnedSequenceConnection pinnedConnection;
+
+    /**
+     * The parameterized update for refills on the pinned connection, built on first use.
+     */
+    private String incrementSql;
+
+    /**
+     * The number of times a refill failing on a lock wait timeout or deadlock is retried.
+     */
+    private int refillRetries = 3;
+
+    /**
+     * The backoff in milliseconds before the first retry, doubled for every further one.
+     */
+    private long refillBackoff = 20;
+
+    /**
+     * The factor by which blocks are enlarged while the sequence row is contended.
+     */
+    private int contentionBlockFactor = 4;
+
+    /**
+     * The time in milliseconds blocks stay enlarged after the last contended refill.
+     */
+    private long contentionPeriod = 10000;
+
+    /**
+     * The {@link System#currentTimeMillis()} until which blocks are enlarged.
+     */
+    private volatile long contendedUntil = 0;
+
+    /**
+     * The listener notified of refills, waits and retired blocks.
+     */
+    private SequenceIncrementerListener listener = SequenceIncrementerListener.NONE;
+
+    /**
+     * Counts the IDs handed out, if the listener asked for it.
+     */
+    private LongAdder servedIds;
+
+    /**
+     * Whether or not each thread serves IDs from its own sub-block.
+     */
+    private boolean striped = false;
+
+    /**
+     * The number of IDs a thread carves from the current block at a time.
+     */
+    private int stripeSize = 16;
+
+    /**
+     * The sub-block of the calling thread in striped mode.
+     */
+    private final ThreadLocal<Stripe> stripes = ThreadLocal.withInitial(Stripe::new);
 
     /**
      * Default constructor for bean property style usage.
@@ -83,79 +217,881 @@ public class SafeModeMysqlMaxValueIncrementer extends AbstractColumnMaxValueIncr
         this.useNewConnection = useNewConnection;
     }
 
+    /**
+     * Set whether to grow and shrink the reserved block with the observed ID demand.
+     * <p>When enabled, a block that was used up in less than half of the
+     * {@link #setTargetRefillInterval target refill interval} makes the next one twice as
+     * large, and a block that lasted more than twice as long makes the next one half as
+     * large, always within {@link #setMinCacheSize} and {@link #setMaxCacheSize}. Busy
+     * partitioned jobs then need a handful of refills instead of thousands, while idle
+     * services do not burn large gaps in the sequence.
+     * <p>The first block uses {@link #setCacheSize cache size}. Default is {@code false},
+     * which always reserves exactly {@link #getCacheSize()} IDs.
+     */
+    public void setAdaptiveCacheSize(boolean adaptiveCacheSize) {
+        this.adaptiveCacheSize = adaptiveCacheSize;
+    }
+
+    /**
+     * Set the smallest block an adaptive refill may reserve. Default is 1.
+     */
+    public void setMinCacheSize(int minCacheSize) {
+        this.minCacheSize = minCacheSize;
+    }
+
+    /**
+     * Set the largest block an adaptive refill may reserve. Default is 1000.
+     */
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * Set how long, in milliseconds, one adaptively sized block should last. Default is 1000.
+     */
+    public void setTargetRefillInterval(long targetRefillInterval) {
+        this.targetRefillInterval = targetRefillInterval;
+    }
+
+    /**
+     * Set whether to reserve the next block on a background thread.
+     * <p>Once the current block drops below the {@link #setPrefetchThreshold prefetch
+     * threshold}, the next block is reserved on the {@link #setPrefetchExecutor prefetch
+     * executor} and callers switch to it when the current one is used up, so the refill
+     * no longer runs on the thread calling {@code JobRepository.createJobExecution} or
+     * {@code createStepExecution}. If the background refill has not finished yet, callers
+     * wait for it; if it failed, they refill synchronously as usual.
+     * <p>The standby block is one more block that is lost on shutdown. Default is {@code false}.
+     */
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Set the fraction of the current block, between 0 and 1, that is left when the
+     * background refill starts. It always starts no later than when the last ID of the
+     * current block is served. Default is 0.25.
+     *
+     * @see #setPrefetch
+     */
+    public void setPrefetchThreshold(double prefetchThreshold) {
+        this.prefetchThreshold = prefetchThreshold;
+    }
+
+    /**
+     * Set the executor running background refills.
+     * <p>Default is a cached pool of daemon threads shared by all incrementers.
+     *
+     * @see #setPrefetch
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * Set whether each thread serves IDs from its own sub-block.
+     * <p>In striped mode a thread carves {@link #setStripeSize stripe size} IDs at a time
+     * from the block reserved in the database and serves them without touching any shared
+     * state, which removes the cache-line traffic of many threads, like partition workers,
+     * advancing one counter.
+     * <p><b>This trades global ordering for throughput:</b> IDs are still unique, but are
+     * no longer handed out in increasing order across threads, and IDs left in the
+     * sub-block of a thread that stops asking for them are never used. Spring Batch itself
+     * only relies on uniqueness. Default is {@code false}.
+     */
+    public void setStriped(boolean striped) {
+        this.striped = striped;
+    }
+
+    /**
+     * Set the number of IDs a thread takes at a time in striped mode. Should be well
+     * below the cache size so that a block serves several threads; with a smaller cache
+     * size each refill still reserves a whole stripe. Default is 16.
+     *
+     * @see #setStriped
+     */
+    public void setStripeSize(int stripeSize) {
+        this.stripeSize = stripeSize;
+    }
+
+    /**
+     * Set the group that refills this sequence together with its siblings on the same
+     * DataSource in a single connection and transaction.
+     * <p>Whenever any member of the group needs a new block, every other member below its
+     * {@link #setPrefetchThreshold low-water mark} gets its next block reserved in the
+     * same round trip and switches to it without a refill of its own. The group always
+     * uses a new connection, regardless of {@link #setUseNewConnection}.
+     *
+     * @see SafeModeIncrementerRegistry#getRefillGroup
+     */
+    public void setRefillGroup(SequenceRefillGroup refillGroup) {
+        this.refillGroup = refillGroup;
+    }
+
+    /**
+     * Set a connection dedicated to refills, which keeps the update and the
+     * {@code last_insert_id()} query prepared between refills.
+     * <p>Refills on the pinned connection always run in a transaction of their own,
+     * regardless of {@link #setUseNewConnection}. A group refill uses the pinned connection
+     * of its {@link SequenceRefillGroup} instead.
+     *
+     * @see SafeModeIncrementerRegistry#getPinnedConnection
+     */
+    public void setPinnedConnection(PinnedSequenceConnection pinnedConnection) {
+        this.pinnedConnection = pinnedConnection;
+    }
+
+    /**
+     * Set how many times a refill that failed on a lock wait timeout (1205) or a deadlock
+     * (1213) is retried before the failure surfaces, for example when many nodes launch jobs
+     * at once and all refill the same sequence row.
+     * <p>Retries only apply to refills in a transaction of their own, that is with
+     * {@link #setUseNewConnection new connections}, a pinned connection or a refill group;
+     * within the caller's transaction the failure surfaces right away. Default is 3.
+     *
+     * @see #setRefillBackoff
+     */
+    public void setRefillRetries(int refillRetries) {
+        this.refillRetries = refillRetries;
+    }
+
+    /**
+     * Set the backoff in milliseconds before the first retry of a contended refill. Every
+     * further retry doubles it, and each wait is drawn at random up to the backoff, so that
+     * the nodes that collided do not collide again. Default is 20.
+     *
+     * @see #setRefillRetries
+     */
+    public void setRefillBackoff(long refillBackoff) {
+        this.refillBackoff = refillBackoff;
+    }
+
+    /**
+     * Set the factor by which blocks are enlarged while the sequence row is contended, so
+     * that every node comes back for the row less often. The enlarged block never exceeds
+     * {@link #setMaxCacheSize max cache size}, or cache size if that is larger. Default is 4,
+     * {@code 1} turns enlarging off.
+     *
+     * @see #setContentionPeriod
+     */
+    public void setContentionBlockFactor(int contentionBlockFactor) {
+        this.contentionBlockFactor = contentionBlockFactor;
+    }
+
+    /**
+     * Set how long, in milliseconds, blocks stay enlarged after the last refill that ran
+     * into a lock wait timeout or deadlock. Default is 10000.
+     *
+     * @see #setContentionBlockFactor
+     */
+    public void setContentionPeriod(long contentionPeriod) {
+        this.contentionPeriod = contentionPeriod;
+    }
+
+    /**
+     * Set the listener notified of refills, refill failures, callers waiting for a refill,
+     * retired blocks and the IDs lost on shutdown.
+     *
+     * @see MicrometerSequenceIncrementerListener
+     */
+    public void setListener(SequenceIncrementerListener listener) {
+        this.listener = (listener != null ? listener : SequenceIncrementerListener.NONE);
+    }
 
     @Override
-    protected synchronized long getNextKey() throws DataAccessException {
-        if (this.maxId == this.nextId) {
-            /*
-             * If useNewConnection is true, then we obtain a non-managed connection so our modifications
-             * are handled in a separate transaction. If it is false, then we use the current transaction's
-             * connection relying on the use of a non-transactional storage engine like MYISAM for the
-             * incrementer table. We also use straight JDBC code because we need to make sure that the insert
-             * and select are performed on the same connection (otherwise we can't be sure that last_insert_id()
-             * returned the correct value).
-             */
-            Connection con = null;
-            Statement stmt = null;
-            boolean mustRestoreAutoCommit = false;
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        if (this.adaptiveCacheSize) {
+            if (this.minCacheSize < 1 || this.minCacheSize > this.maxCacheSize) {
+                throw new IllegalArgumentException("Property 'minCacheSize' must be between 1 and 'maxCacheSize'");
+            }
+            if (this.targetRefillInterval <= 0) {
+                throw new IllegalArgumentException("Property 'targetRefillInterval' must be positive");
+            }
+        }
+        if (this.prefetchThreshold < 0 || this.prefetchThreshold > 1) {
+            throw new IllegalArgumentException("Property 'prefetchThreshold' must be between 0 and 1");
+        }
+        if (this.striped && this.stripeSize < 1) {
+            throw new IllegalArgumentException("Property 'stripeSize' must be positive");
+        }
+        if (this.refillRetries < 0 || this.refillBackoff < 1) {
+            throw new IllegalArgumentException("Property 'refillRetries' must not be negative and " +
+                    "'refillBackoff' must be positive");
+        }
+        if (this.contentionBlockFactor < 1) {
+            throw new IllegalArgumentException("Property 'contentionBlockFactor' must be positive");
+        }
+        this.servedIds = this.listener.getServedIdCounter(getIncrementerName());
+        if (this.refillGroup != null) {
+            this.refillGroup.register(this);
+        }
+    }
+
+    /**
+     * Determine how many IDs the next refill reserves.
+     *
+     * @return {@link #getCacheSize()}, or the adaptively sized block if enabled, enlarged
+     * while the sequence row is contended
+     * @see #setAdaptiveCacheSize
+     * @see #setContentionBlockFactor
+     */
+    protected int nextBlockSize() {
+        int size = demandBlockSize();
+        if (this.contentionBlockFactor > 1 && System.currentTimeMillis() < this.contendedUntil) {
+            long limit = Math.max(this.maxCacheSize, getCacheSize());
+            size = (int) Math.max(size, Math.min(limit, (long) size * this.contentionBlockFactor));
+        }
+        return size;
+    }
+
+    /**
+     * Enlarge the given block size to a whole stripe in striped mode, as far as a single
+     * refill can reserve, so that a small cache size does not take a block per stripe.
+     */
+    private int atLeastOneStripe(int size) {
+        if (!this.striped || size >= this.stripeSize) {
+            return size;
+        }
+        return Math.max(size, Math.min(this.stripeSize, maxRefillSize()));
+    }
+
+    private int demandBlockSize() {
+        if (!this.adaptiveCacheSize) {
+            return getCacheSize();
+        }
+        long now = System.nanoTime();
+        long size;
+        if (this.blockSize == 0) {
+            size = getCacheSize();
+        } else {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(now - this.lastRefillTime);
+            if (elapsed < this.targetRefillInterval / 2) {
+                size = (long) this.blockSize * 2;
+            } else if (elapsed > this.targetRefillInterval * 2) {
+                size = this.blockSize / 2;
+            } else {
+                size = this.blockSize;
+            }
+        }
+        this.lastRefillTime = now;
+        return (int) Math.max(this.minCacheSize, Math.min(this.maxCacheSize, size));
+    }
+
+
+    /**
+     * Serve the next ID of the current block without locking; only a caller finding the
+     * block used up enters the serialized refill path.
+     */
+    @Override
+    protected long getNextKey() throws DataAccessException {
+        long id;
+        if (this.striped) {
+            id = getNextStripedKey();
+        } else {
+            id = take(this.current, 1);
+            if (id <= 0) {
+                id = refillAndTake(1, null);
+            }
+        }
+        if (this.servedIds != null) {
+            this.servedIds.increment();
+        }
+        return id;
+    }
+
+    private long getNextStripedKey() {
+        Stripe stripe = this.stripes.get();
+        if (stripe.next > stripe.last) {
+            IdRange range = this.current;
+            long first = take(range, this.stripeSize);
+            if (first > 0) {
+                stripe.assign(first, Math.min(range.last, first + this.stripeSize - 1));
+            } else {
+                refillAndTake(this.stripeSize, stripe);
+            }
+        }
+        return stripe.next++;
+    }
+
+    /**
+     * Reserve {@code count} consecutive IDs in one call, for writers that key a whole chunk
+     * of rows off this sequence.
+     * <p>A range that fits into the current block is taken from it without locking, like a
+     * single ID. When the block has too few IDs left, the range is reserved in the database
+     * with a single safe-mode compliant update; if the block is used up, that same update
+     * also reserves the next block. A range larger than a block is always reserved directly.
+     * IDs taken this way are not handed out again by {@link #nextLongValue()}.
+     *
+     * @param count the number of IDs to reserve, at least 1
+     * @return the reserved range
+     */
+    public SequenceRange reserve(int count) throws DataAccessException {
+        if (count < 1) {
+            throw new IllegalArgumentException("Can not reserve " + count + " IDs, must be at least 1");
+        }
+        if (count <= Math.max(getCacheSize(), this.blockSize)) {
+            long first = takeExactly(this.current, count);
+            if (first < 0) {
+                first = refillAndReserve(count);
+            }
+            if (first > 0) {
+                return served(new SequenceRange(first, first + count - 1));
+            }
+        }
+        long maxId = incrementSequence(count);
+        return served(new SequenceRange(maxId - count + 1, maxId));
+    }
+
+    private SequenceRange served(SequenceRange range) {
+        if (this.servedIds != null) {
+            this.servedIds.add(range.size());
+        }
+        return range;
+    }
+
+    /**
+     * Reserve {@code count} IDs from the standby block, or together with the next block if the
+     * current one is used up.
+     *
+     * @return the first ID reserved, or {@code -1} if the current block still has IDs left
+     */
+    private long refillAndReserve(int count) {
+        synchronized (this.refillMonitor) {
+            IdRange range = this.current;
+            long first = takeExactly(range, count);
+            if (first > 0 || range.remaining() > 0) {
+                // another caller switched blocks in the meantime, or the rest of this one stays in use
+                return first;
+            }
+            if (range != IdRange.EMPTY) {
+                this.listener.onBlockRetired(getIncrementerName(), range.size, range.served());
+            }
+            IdRange ready = this.standby.getAndSet(null);
+            if (ready != null) {
+                this.current = ready;
+                this.blockSize = ready.size;
+                return takeExactly(ready, count);
+            }
+            int size = atLeastOneStripe(nextBlockSize());
+            if ((long) size + count > maxRefillSize()) {
+                // the range does not fit into the same refill, take it from the new block
+                long maxId = incrementSequence(size);
+                this.current = newRange(maxId, size);
+                this.blockSize = size;
+                this.refillMonitor.notifyAll();
+                return takeExactly(this.current, count);
+            }
+            long maxId = incrementSequence(size + count);
+            this.current = newRange(maxId, size);
+            this.blockSize = size;
+            this.refillMonitor.notifyAll();
+            return maxId - size - count + 1;
+        }
+    }
+
+    /**
+     * Return the most IDs a single refill can reserve; unlimited for a sequence table.
+     */
+    int maxRefillSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Take up to {@code count} IDs from the given block, starting the background refill
+     * when they include the block's low-water mark.
+     *
+     * @return the first ID taken, or {@code -1} if the block is used up
+     */
+    private long take(IdRange range, int count) {
+        long id = (count == 1 ? range.next() : range.next(count));
+        if (id > 0 && range.prefetchAt >= id && range.prefetchAt < id + count) {
+            prefetch();
+        }
+        return id;
+    }
+
+    /**
+     * Take exactly {@code count} IDs from the given block, like {@link #take}.
+     *
+     * @return the first ID taken, or {@code -1} if the block has fewer left
+     */
+    private long takeExactly(IdRange range, int count) {
+        long id = range.nextExactly(count);
+        if (id > 0 && range.prefetchAt >= id && range.prefetchAt < id + count) {
+            prefetch();
+        }
+        return id;
+    }
+
+    /**
+     * Take up to {@code count} IDs, switching to a new block first if the current one is
+     * used up.
+     *
+     * @param stripe the sub-block to assign the IDs taken to, if any
+     * @return the first ID taken
+     */
+    private long refillAndTake(int count, Stripe stripe) {
+        long start = System.nanoTime();
+        synchronized (this.refillMonitor) {
+            long waited = System.nanoTime() - start;
             try {
-                if (this.useNewConnection) {
-                    con = getDataSource().getConnection();
-                    if (con.getAutoCommit()) {
-                        mustRestoreAutoCommit = true;
-                        con.setAutoCommit(false);
+                while (true) {
+                    IdRange range = this.current;
+                    long id = take(range, count);
+                    if (id > 0) {
+                        // another caller may have switched to a new block in the meantime
+                        if (stripe != null) {
+                            stripe.assign(id, Math.min(range.last, id + count - 1));
+                        }
+                        return id;
                     }
-                } else {
-                    con = DataSourceUtils.getConnection(getDataSource());
+                    if (this.prefetching && this.standby.get() == null) {
+                        long waitStart = System.nanoTime();
+                        try {
+                            this.refillMonitor.wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new DataAccessResourceFailureException(
+                                    "Interrupted while waiting for the next " + getIncrementerName() + " range", ex);
+                        }
+                        waited += System.nanoTime() - waitStart;
+                        continue;
+                    }
+                    if (range != IdRange.EMPTY) {
+                        this.listener.onBlockRetired(getIncrementerName(), range.size, range.served());
+                    }
+                    IdRange ready = this.standby.getAndSet(null);
+                    if (ready != null) {
+                        this.current = ready;
+                    } else {
+                        int size = atLeastOneStripe(nextBlockSize());
+                        this.current = newRange(incrementSequence(size), size);
+                    }
+                    this.blockSize = this.current.size;
                 }
-                stmt = con.createStatement();
-                if (!this.useNewConnection) {
-                    DataSourceUtils.applyTransactionTimeout(stmt, getDataSource());
+            } finally {
+                this.listener.onWait(getIncrementerName(), waited);
+            }
+        }
+    }
+
+    /**
+     * Stop serving the reserved blocks and report the IDs left in them as wasted.
+     * The incrementer reserves a new block if it is asked for an ID afterwards.
+     */
+    @Override
+    public void destroy() {
+        synchronized (this.refillMonitor) {
+            IdRange range = this.current;
+            long wasted = range.retire();
+            if (range != IdRange.EMPTY) {
+                this.listener.onBlockRetired(getIncrementerName(), range.size, range.size - wasted);
+            }
+            IdRange ready = this.standby.getAndSet(null);
+            if (ready != null) {
+                wasted += ready.size;
+            }
+            this.listener.onShutdown(getIncrementerName(), wasted);
+        }
+    }
+
+    /**
+     * Create the block of {@code size} IDs ending at {@code maxId}.
+     */
+    private IdRange newRange(long maxId, int size) {
+        long prefetchAt = -1;
+        if (this.prefetch) {
+            prefetchAt = maxId - Math.max(1, (long) (size * this.prefetchThreshold)) + 1;
+        }
+        return new IdRange(maxId - size + 1, maxId, prefetchAt);
+    }
+
+    /**
+     * Reserve the standby block on the prefetch executor, unless one is already
+     * reserved or being reserved.
+     */
+    private void prefetch() {
+        final int size;
+        synchronized (this.refillMonitor) {
+            if (this.prefetching || this.standby.get() != null) {
+                return;
+            }
+            size = atLeastOneStripe(nextBlockSize());
+            this.prefetching = true;
+        }
+        try {
+            getPrefetchExecutor().execute(() -> {
+                long max = -1;
+                try {
+                    max = incrementSequence(size);
+                } catch (RuntimeException ex) {
+                    logger.warn("Could not prefetch the next " + getIncrementerName() +
+                            " range, falling back to a synchronous refill", ex);
+                } finally {
+                    synchronized (this.refillMonitor) {
+                        if (max > 0 && !this.standby.compareAndSet(null, newRange(max, size))) {
+                            logger.debug("Dropped prefetched " + getIncrementerName() + " range ending at " + max +
+                                    ", a standby range was reserved in the meantime");
+                        }
+                        this.prefetching = false;
+                        this.refillMonitor.notifyAll();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.debug("Prefetch executor rejected the " + getIncrementerName() + " refill", ex);
+            synchronized (this.refillMonitor) {
+                this.prefetching = false;
+                this.refillMonitor.notifyAll();
+            }
+        }
+    }
+
+    private Executor getPrefetchExecutor() {
+        return (this.prefetchExecutor != null ? this.prefetchExecutor : PrefetchExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * Reserve {@code size} IDs in the sequence table, retrying with a jittered exponential
+     * backoff while the sequence row is contended.
+     *
+     * @param size the number of IDs to reserve
+     * @return the largest reserved ID
+     * @see #setRefillRetries
+     */
+    protected long incrementSequence(int size) throws DataAccessException {
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                long maxId = reserveBlock(size);
+                this.listener.onRefill(getIncrementerName(), size, System.nanoTime() - start);
+                return maxId;
+            } catch (DataAccessException ex) {
+                SequenceRefillFailure failure = SequenceRefillFailure.classify(ex);
+                if (failure.isContention()) {
+                    this.contendedUntil = System.currentTimeMillis() + this.contentionPeriod;
                 }
-                // Increment the sequence column...
-                String columnName = getColumnName();
+                if (!failure.isContention() || attempt > this.refillRetries || !isRefillIsolated()) {
+                    this.listener.onRefillFailure(getIncrementerName(), failure,
+                            SequenceRefillFailure.getSQLState(ex), ex);
+                    throw ex;
+                }
+                long backoff = ThreadLocalRandom.current().nextLong(this.refillBackoff << (attempt - 1)) + 1;
+                this.listener.onRefillRetry(getIncrementerName(), failure, attempt, backoff);
+                logger.debug("Refill of " + getIncrementerName() + " failed on " + failure + ", retrying in " +
+                        backoff + "ms");
                 try {
-                    stmt.executeUpdate("update " + getIncrementerName() + " set " + columnName +
-                            " = last_insert_id(" + columnName + " + " + getCacheSize() + ") where " +  columnName + " >= 0");
-                } catch (SQLException ex) {
-                    throw new DataAccessResourceFailureException("Could not increment " + columnName + " for " +
-                            getIncrementerName() + " sequence table", ex);
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a refill runs in a transaction of its own, which a lock wait timeout or
+     * deadlock rolls back without affecting the caller.
+     */
+    private boolean isRefillIsolated() {
+        return (this.useNewConnection || this.refillGroup != null || this.pinnedConnection != null);
+    }
+
+    private long reserveBlock(int size) throws DataAccessException {
+        if (this.refillGroup != null) {
+            return this.refillGroup.refill(this, size);
+        }
+        if (this.pinnedConnection != null) {
+            return this.pinnedConnection.execute(con -> incrementSequence(con, size));
+        }
+        /*
+         * If useNewConnection is true, then we obtain a non-managed connection so our modifications
+         * are handled in a separate transaction. If it is false, then we use the current transaction's
+         * connection relying on the use of a non-transactional storage engine like MYISAM for the
+         * incrementer table. We also use straight JDBC code because we need to make sure that the insert
+         * and select are performed on the same connection (otherwise we can't be sure that last_insert_id()
+         * returned the correct value).
+         */
+        Connection con = null;
+        Statement stmt = null;
+        boolean mustRestoreAutoCommit = false;
+        try {
+            if (this.useNewConnection) {
+                con = getDataSource().getConnection();
+                if (con.getAutoCommit()) {
+                    mustRestoreAutoCommit = true;
+                    con.setAutoCommit(false);
                 }
-                // Retrieve the new max of the sequence column...
-                ResultSet rs = stmt.executeQuery(VALUE_SQL);
+            } else {
+                con = DataSourceUtils.getConnection(getDataSource());
+            }
+            stmt = con.createStatement();
+            if (!this.useNewConnection) {
+                DataSourceUtils.applyTransactionTimeout(stmt, getDataSource());
+            }
+            long maxId = incrementSequence(stmt, size);
+            if (this.useNewConnection) {
                 try {
-                    if (!rs.next()) {
-                        throw new DataAccessResourceFailureException("last_insert_id() failed after executing an update");
-                    }
-                    this.maxId = rs.getLong(1);
-                } finally {
-                    JdbcUtils.closeResultSet(rs);
+                    con.commit();
+                } catch (SQLException ex) {
+                    throw new DataAccessResourceFailureException(
+                            "Unable to commit new sequence value changes for " + getIncrementerName(), ex);
                 }
-                this.nextId = this.maxId - getCacheSize() + 1;
-            } catch (SQLException ex) {
-                throw new DataAccessResourceFailureException("Could not obtain last_insert_id()", ex);
-            } finally {
-                JdbcUtils.closeStatement(stmt);
-                if (con != null) {
-                    if (this.useNewConnection) {
+            }
+            return maxId;
+        } catch (SQLException ex) {
+            rollbackNewConnection(con);
+            throw new DataAccessResourceFailureException("Could not obtain last_insert_id()", ex);
+        } catch (RuntimeException ex) {
+            rollbackNewConnection(con);
+            throw ex;
+        } finally {
+            JdbcUtils.closeStatement(stmt);
+            if (con != null) {
+                if (this.useNewConnection) {
+                    if (mustRestoreAutoCommit) {
                         try {
-                            con.commit();
-                            if (mustRestoreAutoCommit) {
-                                con.setAutoCommit(true);
-                            }
+                            con.setAutoCommit(true);
                         } catch (SQLException ignore) {
-                            throw new DataAccessResourceFailureException(
-                                    "Unable to commit new sequence value changes for " + getIncrementerName());
+                            // the connection is closed right away
                         }
-                        JdbcUtils.closeConnection(con);
-                    } else {
-                        DataSourceUtils.releaseConnection(con, getDataSource());
                     }
+                    JdbcUtils.closeConnection(con);
+                } else {
+                    DataSourceUtils.releaseConnection(con, getDataSource());
                 }
             }
-        } else {
-            this.nextId++;
         }
-        return this.nextId;
+    }
+
+    /**
+     * Roll back a failed refill on a new connection, so that the row lock is released before
+     * the connection goes back to the pool. The caller's transaction is left alone.
+     */
+    private void rollbackNewConnection(Connection con) {
+        if (con != null && this.useNewConnection) {
+            try {
+                con.rollback();
+            } catch (SQLException ignore) {
+                // the original failure is more relevant
+            }
+        }
+    }
+
+    /**
+     * Reserve {@code size} IDs in the sequence table on the connection of the given statement,
+     * leaving the transaction to the caller.
+     *
+     * @return the largest reserved ID
+     */
+    long incrementSequence(Statement stmt, int size) throws SQLException {
+        // Increment the sequence column...
+        String columnName = getColumnName();
+        try {
+            stmt.executeUpdate("update " + getIncrementerName() + " set " + columnName +
+                    " = last_insert_id(" + columnName + " + " + size + ") where " +  columnName + " >= 0");
+        } catch (SQLException ex) {
+            throw new DataAccessResourceFailureException("Could not increment " + columnName + " for " +
+                    getIncrementerName() + " sequence table", ex);
+        }
+        // Retrieve the new max of the sequence column...
+        ResultSet rs = stmt.executeQuery(VALUE_SQL);
+        try {
+            if (!rs.next()) {
+                throw new DataAccessResourceFailureException("last_insert_id() failed after executing an update");
+            }
+            return rs.getLong(1);
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+        }
+    }
+
+    /**
+     * Reserve {@code size} IDs in the sequence table with the prepared statements of the
+     * pinned connection, leaving the transaction to the caller.
+     *
+     * @return the largest reserved ID
+     */
+    long incrementSequence(PinnedSequenceConnection con, int size) throws SQLException {
+        if (this.incrementSql == null) {
+            String columnName = getColumnName();
+            this.incrementSql = "update " + getIncrementerName() + " set " + columnName +
+                    " = last_insert_id(" + columnName + " + ?) where " + columnName + " >= 0";
+        }
+        PreparedStatement ps = con.prepareStatement(this.incrementSql);
+        ps.setInt(1, size);
+        ps.executeUpdate();
+        ResultSet rs = con.prepareStatement(VALUE_SQL).executeQuery();
+        try {
+            if (!rs.next()) {
+                throw new DataAccessResourceFailureException("last_insert_id() failed after executing an update");
+            }
+            return rs.getLong(1);
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+        }
+    }
+
+    /**
+     * Return how many IDs a coordinated refill of a sibling sequence should reserve on
+     * behalf of this incrementer: a block once the current one is below the
+     * {@link #setPrefetchThreshold low-water mark} and nothing is reserved ahead yet,
+     * otherwise {@code 0}.
+     */
+    int getTopUpSize() {
+        if (this.prefetching || this.standby.get() != null) {
+            return 0;
+        }
+        int size = (this.blockSize > 0 ? this.blockSize : atLeastOneStripe(getCacheSize()));
+        if (this.current.remaining() >= Math.max(1, (long) (size * this.prefetchThreshold))) {
+            return 0;
+        }
+        return size;
+    }
+
+    /**
+     * Hand over a block reserved by a coordinated refill of a sibling sequence.
+     */
+    void offerTopUp(long maxId, int size, long nanos) {
+        this.listener.onRefill(getIncrementerName(), size, nanos);
+        if (!this.standby.compareAndSet(null, newRange(maxId, size))) {
+            logger.debug("Dropped topped up " + getIncrementerName() + " range ending at " + maxId +
+                    ", a standby range was reserved in the meantime");
+        }
+    }
+
+
+    /**
+     * A block of reserved IDs. The bounds never change; IDs are handed out by advancing
+     * the cursor atomically, so serving an ID takes neither a lock nor an allocation.
+     */
+    private static final class IdRange {
+
+        static final IdRange EMPTY = new IdRange(1, 0, -1);
+
+        /**
+         * The number of IDs in the block.
+         */
+        final int size;
+
+        /**
+         * The last ID of the block.
+         */
+        final long last;
+
+        /**
+         * The ID whose caller starts the background refill, {@code -1} if none.
+         */
+        final long prefetchAt;
+
+        /**
+         * The next ID to serve; runs past {@link #last} once the block is used up.
+         */
+        private final AtomicLong cursor;
+
+        IdRange(long first, long last, long prefetchAt) {
+            this.size = (int) (last - first + 1);
+            this.last = last;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(first);
+        }
+
+        /**
+         * @return the next ID, or {@code -1} if the block is used up
+         */
+        long next() {
+            long id = this.cursor.getAndIncrement();
+            return (id <= this.last ? id : -1);
+        }
+
+        /**
+         * @return the number of IDs not handed out yet
+         */
+        long remaining() {
+            return Math.max(0, this.last - this.cursor.get() + 1);
+        }
+
+        /**
+         * @return the number of IDs handed out
+         */
+        long served() {
+            return this.size - remaining();
+        }
+
+        /**
+         * Stop handing out IDs from this block.
+         *
+         * @return the number of IDs that were not handed out
+         */
+        long retire() {
+            return Math.max(0, this.last - this.cursor.getAndSet(this.last + 1) + 1);
+        }
+
+        /**
+         * Take up to {@code count} consecutive IDs, fewer if the block has fewer left.
+         *
+         * @return the first ID taken, or {@code -1} if the block is used up
+         */
+        long next(int count) {
+            while (true) {
+                long id = this.cursor.get();
+                if (id > this.last) {
+                    return -1;
+                }
+                if (this.cursor.compareAndSet(id, Math.min(this.last, id + count - 1) + 1)) {
+                    return id;
+                }
+            }
+        }
+
+        /**
+         * Take exactly {@code count} consecutive IDs.
+         *
+         * @return the first ID taken, or {@code -1} if the block has fewer left
+         */
+        long nextExactly(int count) {
+            while (true) {
+                long id = this.cursor.get();
+                if (id + count - 1 > this.last) {
+                    return -1;
+                }
+                if (this.cursor.compareAndSet(id, id + count)) {
+                    return id;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The IDs a single thread serves in striped mode; only ever touched by that thread.
+     */
+    private static final class Stripe {
+
+        long next = 1;
+
+        long last = 0;
+
+        void assign(long first, long last) {
+            this.next = first;
+            this.last = last;
+        }
+    }
+
+
+    /**
+     * Lazily started daemon threads shared by all incrementers without an explicit prefetch executor.
+     */
+    private static class PrefetchExecutorHolder {
+
+        static final Executor EXECUTOR;
+
+        static {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("safemode-prefetch-");
+            threadFactory.setDaemon(true);
+            EXECUTOR = Executors.newCachedThreadPool(threadFactory);
+        }
     }
 }
@@ -0,0 +1,97 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Callback interface for observing the incrementers of this package, for example to
+ * publish metrics. Called from the refill path only, never for an ID served from a block
+ * that is already reserved; those are only added to the {@link #getServedIdCounter counter}.
+ * Implementations must be thread-safe and should return quickly.
+ *
+ * @see MicrometerSequenceIncrementerListener
+ */
+public interface SequenceIncrementerListener {
+
+    /**
+     * A listener that ignores all events.
+     */
+    SequenceIncrementerListener NONE = new SequenceIncrementerListener() {
+    };
+
+    /**
+     * Return the counter an incrementer adds every ID it hands out to, including the IDs of
+     * reserved ranges. Called once, when the incrementer is initialized; incrementers of the
+     * same sequence may share a counter.
+     *
+     * @param incrementerName the name of the sequence table
+     * @return the counter, or {@code null} to not count served IDs
+     */
+    default LongAdder getServedIdCounter(String incrementerName) {
+        return null;
+    }
+
+    /**
+     * A block of IDs was reserved in the sequence table.
+     *
+     * @param incrementerName the name of the sequence table
+     * @param size            the number of IDs reserved
+     * @param nanos           the time the refill took
+     */
+    default void onRefill(String incrementerName, int size, long nanos) {
+    }
+
+    /**
+     * Reserving a block of IDs failed.
+     *
+     * @param incrementerName the name of the sequence table
+     * @param failure         the classified cause
+     * @param sqlState        the SQLState of the failure, if any
+     * @param ex              the failure
+     */
+    default void onRefillFailure(String incrementerName, SequenceRefillFailure failure, String sqlState,
+                                 Throwable ex) {
+    }
+
+    /**
+     * A refill ran into a lock wait timeout or deadlock and is retried after a backoff.
+     * {@link #onRefillFailure} is only called once the retries are exhausted.
+     *
+     * @param incrementerName the name of the sequence table
+     * @param failure         the classified cause
+     * @param attempt         the number of the failed attempt, starting at 1
+     * @param backoffMillis   the time before the next attempt
+     */
+    default void onRefillRetry(String incrementerName, SequenceRefillFailure failure, int attempt,
+                               long backoffMillis) {
+    }
+
+    /**
+     * A caller found its block used up and went through the refill path. Called once per such
+     * caller, also when it did not have to wait at all.
+     *
+     * @param incrementerName the name of the sequence table
+     * @param nanos           the time the caller waited for the refill lock or another thread's refill
+     */
+    default void onWait(String incrementerName, long nanos) {
+    }
+
+    /**
+     * A block of IDs was retired, because it was used up or on shutdown.
+     *
+     * @param incrementerName the name of the sequence table
+     * @param size            the number of IDs in the block
+     * @param served          the number of IDs taken from it, by callers or, in striped mode, by stripes
+     */
+    default void onBlockRetired(String incrementerName, int size, long served) {
+    }
+
+    /**
+     * The incrementer was shut down.
+     *
+     * @param incrementerName the name of the sequence table
+     * @param wasted          the number of reserved IDs that will never be handed out
+     */
+    default void onShutdown(String incrementerName, long wasted) {
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import java.util.stream.LongStream;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>A range of consecutive IDs reserved in one call, see
+ * {@link SafeModeMysqlMaxValueIncrementer#reserve(int)}.
+ */
+public final class SequenceRange {
+
+    private final long first;
+
+    private final long last;
+
+    public SequenceRange(long first, long last) {
+        if (last < first) {
+            throw new IllegalArgumentException("Range [" + first + ", " + last + "] is empty");
+        }
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @return the first ID of the range
+     */
+    public long getFirst() {
+        return this.first;
+    }
+
+    /**
+     * @return the last ID of the range
+     */
+    public long getLast() {
+        return this.last;
+    }
+
+    /**
+     * @return the number of IDs in the range
+     */
+    public int size() {
+        return (int) (this.last - this.first + 1);
+    }
+
+    /**
+     * @param index the position in the range, from {@code 0} to {@code size() - 1}
+     * @return the ID at that position
+     */
+    public long get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside range of " + size() + " IDs");
+        }
+        return this.first + index;
+    }
+
+    /**
+     * @return the IDs of the range in increasing order
+     */
+    public long[] toArray() {
+        return stream().toArray();
+    }
+
+    /**
+     * @return the IDs of the range in increasing order
+     */
+    public LongStream stream() {
+        return LongStream.rangeClosed(this.first, this.last);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SequenceRange)) {
+            return false;
+        }
+        SequenceRange range = (SequenceRange) other;
+        return (this.first == range.first && this.last == range.last);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.first) * 31 + Long.hashCode(this.last);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + this.first + ", " + this.last + "]";
+    }
+}
@@ -0,0 +1,87 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import java.sql.SQLException;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Why a sequence refill failed, derived from the MySQL error code or the SQLState of the
+ * {@link SQLException} behind it.
+ */
+public enum SequenceRefillFailure {
+
+    /**
+     * {@code ER_LOCK_WAIT_TIMEOUT} (1205): another transaction held the sequence row too long.
+     */
+    LOCK_WAIT_TIMEOUT,
+
+    /**
+     * {@code ER_LOCK_DEADLOCK} (1213) or SQLState {@code 40001}.
+     */
+    DEADLOCK,
+
+    /**
+     * {@code ER_UPDATE_WITHOUT_KEY_IN_SAFE_MODE} (1175): the update was rejected by safe update mode.
+     */
+    SAFE_UPDATE,
+
+    /**
+     * SQLState class {@code 08}: the connection failed.
+     */
+    CONNECTION,
+
+    /**
+     * Anything else.
+     */
+    OTHER;
+
+    /**
+     * Whether the failure comes from concurrent refills of the same row, so that retrying
+     * after a short backoff is likely to succeed.
+     */
+    public boolean isContention() {
+        return (this == LOCK_WAIT_TIMEOUT || this == DEADLOCK);
+    }
+
+    /**
+     * Classify the first {@link SQLException} in the cause chain of the given exception.
+     */
+    public static SequenceRefillFailure classify(Throwable ex) {
+        SQLException sqlException = findSQLException(ex);
+        if (sqlException == null) {
+            return OTHER;
+        }
+        switch (sqlException.getErrorCode()) {
+            case 1205:
+                return LOCK_WAIT_TIMEOUT;
+            case 1213:
+                return DEADLOCK;
+            case 1175:
+                return SAFE_UPDATE;
+            default:
+                break;
+        }
+        String sqlState = sqlException.getSQLState();
+        if ("40001".equals(sqlState)) {
+            return DEADLOCK;
+        }
+        if (sqlState != null && sqlState.startsWith("08")) {
+            return CONNECTION;
+        }
+        return OTHER;
+    }
+
+    /**
+     * Return the SQLState of the first {@link SQLException} in the cause chain, if any.
+     */
+    public static String getSQLState(Throwable ex) {
+        SQLException sqlException = findSQLException(ex);
+        return (sqlException != null ? sqlException.getSQLState() : null);
+    }
+
+    private static SQLException findSQLException(Throwable ex) {
+        while (ex != null && !(ex instanceof SQLException)) {
+            ex = ex.getCause();
+        }
+        return (SQLException) ex;
+    }
+}
@@ -0,0 +1,229 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Refills the sequence tables of one {@link DataSource} together.
+ * <p>A single job launch touches {@code BATCH_JOB_SEQ}, {@code BATCH_JOB_EXECUTION_SEQ} and
+ * {@code BATCH_STEP_EXECUTION_SEQ}, plus {@code TASK_SEQ} under Spring Cloud Task. When one
+ * member of the group needs a new block, every other member close to the end of its block
+ * is topped up in the same connection and transaction, with the same safe-mode compliant
+ * {@code where ID >= 0} update. The members are always updated in order of their table
+ * names, so concurrent group refills, from this node or several, lock the sequence rows in the
+ * same order and cannot deadlock each other. No lock is held across the SQL: a refill stuck on
+ * one sequence row does not hold up the other refills of the group, which skip a sibling that
+ * another refill is already reserving a block for.
+ *
+ * @see SafeModeMysqlMaxValueIncrementer#setRefillGroup
+ */
+public class SequenceRefillGroup {
+
+    private static final Comparator<SafeModeMysqlMaxValueIncrementer> BY_TABLE_NAME =
+            Comparator.comparing(SafeModeMysqlMaxValueIncrementer::getIncrementerName);
+
+    private final DataSource dataSource;
+
+    /**
+     * The members, sorted by table name.
+     */
+    private volatile List<SafeModeMysqlMaxValueIncrementer> members = new ArrayList<>();
+
+    /**
+     * The members a refill in progress is reserving a block for.
+     */
+    private final Set<SafeModeMysqlMaxValueIncrementer> toppingUp = ConcurrentHashMap.newKeySet();
+
+    private PinnedSequenceConnection pinnedConnection;
+
+    public SequenceRefillGroup(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Set a connection dedicated to refills for the group; by default each group refill
+     * obtains a new connection from the DataSource.
+     *
+     * @see SafeModeMysqlMaxValueIncrementer#setPinnedConnection
+     */
+    public void setPinnedConnection(PinnedSequenceConnection pinnedConnection) {
+        this.pinnedConnection = pinnedConnection;
+    }
+
+    /**
+     * Add an incrementer to the group; called by the incrementer itself.
+     */
+    synchronized void register(SafeModeMysqlMaxValueIncrementer incrementer) {
+        if (members.contains(incrementer)) {
+            return;
+        }
+        List<SafeModeMysqlMaxValueIncrementer> sorted = new ArrayList<>(members);
+        sorted.add(incrementer);
+        sorted.sort(BY_TABLE_NAME);
+        members = sorted;
+    }
+
+    /**
+     * Reserve {@code size} IDs for the given member, topping up every sibling that is
+     * running low in the same transaction.
+     * <p>Refills of different members run concurrently, each in its own transaction; a sibling
+     * is only topped up by one of them at a time.
+     *
+     * @param requester the member that needs a new block
+     * @param size      the number of IDs to reserve for it
+     * @return the largest ID reserved for the requester
+     */
+    public long refill(SafeModeMysqlMaxValueIncrementer requester, int size) throws DataAccessException {
+        long start = System.nanoTime();
+        List<SafeModeMysqlMaxValueIncrementer> sequences = members;
+        if (requester != null && !sequences.contains(requester)) {
+            sequences = new ArrayList<>(sequences);
+            int index = Collections.binarySearch(sequences, requester, BY_TABLE_NAME);
+            sequences.add(index < 0 ? -index - 1 : index, requester);
+        }
+        long[] maxIds = new long[sequences.size()];
+        int[] sizes = new int[sequences.size()];
+        // claimed once up front, since the pinned connection runs the work again after a reconnect
+        List<SafeModeMysqlMaxValueIncrementer> claims = new ArrayList<>();
+        try {
+            for (int i = 0; i < sequences.size(); i++) {
+                SafeModeMysqlMaxValueIncrementer sequence = sequences.get(i);
+                if (sequence == requester) {
+                    sizes[i] = size;
+                    if (toppingUp.add(requester)) {
+                        claims.add(requester);
+                    }
+                } else {
+                    sizes[i] = claimTopUp(sequence, claims);
+                }
+            }
+            if (pinnedConnection != null) {
+                List<SafeModeMysqlMaxValueIncrementer> pinnedSequences = sequences;
+                pinnedConnection.execute(con -> {
+                    for (int i = 0; i < pinnedSequences.size(); i++) {
+                        if (sizes[i] > 0) {
+                            maxIds[i] = pinnedSequences.get(i).incrementSequence(con, sizes[i]);
+                        }
+                    }
+                    return null;
+                });
+            } else {
+                execute(requester, sequences, maxIds, sizes);
+            }
+            return deliver(requester, sequences, maxIds, sizes, System.nanoTime() - start);
+        } finally {
+            toppingUp.removeAll(claims);
+        }
+    }
+
+    private void execute(SafeModeMysqlMaxValueIncrementer requester, List<SafeModeMysqlMaxValueIncrementer> sequences,
+                         long[] maxIds, int[] sizes) {
+        Connection con = null;
+        Statement stmt = null;
+        boolean mustRestoreAutoCommit = false;
+        try {
+            con = dataSource.getConnection();
+            if (con.getAutoCommit()) {
+                mustRestoreAutoCommit = true;
+                con.setAutoCommit(false);
+            }
+            stmt = con.createStatement();
+            for (int i = 0; i < sequences.size(); i++) {
+                if (sizes[i] > 0) {
+                    maxIds[i] = sequences.get(i).incrementSequence(stmt, sizes[i]);
+                }
+            }
+            con.commit();
+        } catch (SQLException | RuntimeException ex) {
+            if (con != null) {
+                try {
+                    con.rollback();
+                } catch (SQLException ignore) {
+                    // the original failure is more relevant
+                }
+            }
+            if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            }
+            throw new DataAccessResourceFailureException("Could not refill the sequence tables of " +
+                    (requester != null ? requester.getIncrementerName() + " and its siblings" : dataSource), ex);
+        } finally {
+            JdbcUtils.closeStatement(stmt);
+            if (con != null) {
+                if (mustRestoreAutoCommit) {
+                    try {
+                        con.setAutoCommit(true);
+                    } catch (SQLException ignore) {
+                        // the connection is closed right away
+                    }
+                }
+                JdbcUtils.closeConnection(con);
+            }
+        }
+    }
+
+    /**
+     * Claim the top-up of a sibling that is running low, unless another refill is already
+     * reserving a block for it, and add it to the claims to release.
+     *
+     * @return the number of IDs to top it up with, {@code 0} for none
+     */
+    private int claimTopUp(SafeModeMysqlMaxValueIncrementer sequence, List<SafeModeMysqlMaxValueIncrementer> claims) {
+        if (!toppingUp.add(sequence)) {
+            return 0;
+        }
+        int size = sequence.getTopUpSize();
+        if (size > 0) {
+            claims.add(sequence);
+        } else {
+            toppingUp.remove(sequence);
+        }
+        return size;
+    }
+
+    /**
+     * Reserve a block for every member that is running low or has none yet, in one transaction,
+     * without a member asking for it.
+     *
+     * @see SequenceWarmUp
+     */
+    public void topUp() throws DataAccessException {
+        refill(null, 0);
+    }
+
+    /**
+     * Hand the topped up blocks to the siblings once they are committed.
+     *
+     * @return the largest ID reserved for the requester
+     */
+    private long deliver(SafeModeMysqlMaxValueIncrementer requester, List<SafeModeMysqlMaxValueIncrementer> sequences,
+                         long[] maxIds, int[] sizes, long nanos) {
+        long requested = -1;
+        for (int i = 0; i < sequences.size(); i++) {
+            SafeModeMysqlMaxValueIncrementer sequence = sequences.get(i);
+            if (sequence == requester) {
+                requested = maxIds[i];
+            } else if (sizes[i] > 0) {
+                sequence.offerTopUp(maxIds[i], sizes[i], nanos);
+            }
+        }
+        return requested;
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+
+import javax.sql.DataSource;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Reserves the first block of every sequence table of a {@link DataSource} ahead of the first
+ * launch, so the first job or task takes its IDs without a refill on its critical path.
+ * <p>The blocks of all {@link SafeModeMysqlMaxValueIncrementer}s registered for the DataSource in
+ * the {@link SafeModeIncrementerRegistry} are reserved together, in one connection and
+ * transaction and in order of their table names, like a {@link SequenceRefillGroup} refill.
+ * Sequences that already have a block are left alone. Other incrementers, like the hi/lo and
+ * sharded ones, and those not shared through the registry are not warmed up.
+ */
+public final class SequenceWarmUp {
+
+    private static final Log logger = LogFactory.getLog(SequenceWarmUp.class);
+
+    private SequenceWarmUp() {
+    }
+
+    /**
+     * Warm up the sequences of the given DataSource as configured.
+     *
+     * @param mode {@code sync} to reserve the first blocks on the calling thread, {@code async}
+     *             on a background thread, {@code none} not at all
+     */
+    public static void run(DataSource dataSource, String mode) {
+        if ("sync".equalsIgnoreCase(mode)) {
+            warmUp(dataSource);
+        } else if ("async".equalsIgnoreCase(mode)) {
+            warmUpAsync(dataSource);
+        } else if (!"none".equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("Unknown sequence warm-up mode " + mode + ", expected none, sync or async");
+        }
+    }
+
+    /**
+     * Reserve the first blocks on the calling thread.
+     *
+     * @return the number of sequences warmed up
+     */
+    public static int warmUp(DataSource dataSource) {
+        SequenceRefillGroup warmUpGroup = new SequenceRefillGroup(dataSource);
+        int count = 0;
+        for (DataFieldMaxValueIncrementer incrementer : SafeModeIncrementerRegistry.getIncrementers(dataSource)) {
+            if (incrementer instanceof SafeModeMysqlMaxValueIncrementer) {
+                warmUpGroup.register((SafeModeMysqlMaxValueIncrementer) incrementer);
+                count++;
+            }
+        }
+        if (count > 0) {
+            long start = System.nanoTime();
+            warmUpGroup.topUp();
+            logger.info("Warmed up " + count + " sequences in " + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+        return count;
+    }
+
+    /**
+     * Reserve the first blocks on a background thread. A failed warm-up is logged; the sequences
+     * are then refilled on first use as usual.
+     */
+    public static CompletableFuture<Integer> warmUpAsync(DataSource dataSource) {
+        return CompletableFuture.supplyAsync(() -> warmUp(dataSource), runnable -> {
+            Thread thread = new Thread(runnable, "sequence-warm-up");
+            thread.setDaemon(true);
+            thread.start();
+        }).whenComplete((count, ex) -> {
+            if (ex != null) {
+                logger.warn("Could not warm up the sequences, they are refilled on first use", ex);
+            }
+        });
+    }
+}
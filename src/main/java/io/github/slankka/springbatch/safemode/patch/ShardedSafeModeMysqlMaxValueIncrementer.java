@@ -0,0 +1,291 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.incrementer.AbstractColumnMaxValueIncrementer;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Spreads a sequence over several rows of the sequence table, so that nodes and threads
+ * refilling at the same time do not all wait for the lock on one row.
+ * <p>The sequence table holds {@link #setShardCount shard count} rows, addressed by the unique
+ * key column that the Spring Batch and Spring Cloud Task MySQL schemas already define
+ * ({@code UNIQUE_KEY CHAR(1)}, shard keys {@code '0'}-{@code '9'}, then {@code 'A'}-{@code 'Z'}).
+ * A refill updates only the row of its shard with a safe-mode compliant
+ * {@code where UNIQUE_KEY = ?} clause. The value {@code v} of shard {@code s} stands for the ID
+ * {@code v * shardCount + s}, so the IDs of different shards never collide.
+ * <p>Each node uses the {@link #setShard shard} assigned to it; without an assigned shard,
+ * every thread uses the shard given by its thread id. Seed the shard rows with
+ * {@link ShardedSequenceInitializer} first, and stop all nodes still using
+ * {@link SafeModeMysqlMaxValueIncrementer} on the table: its {@code where ID >= 0} update
+ * would advance every shard row at once.
+ */
+public class ShardedSafeModeMysqlMaxValueIncrementer extends AbstractColumnMaxValueIncrementer {
+
+    /**
+     * The SQL string for retrieving the new sequence value.
+     */
+    private static final String VALUE_SQL = "select last_insert_id()";
+
+    /**
+     * The keys of the shard rows, in shard order.
+     */
+    static final String SHARD_KEYS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    /**
+     * The name of the unique key column addressing the shard rows.
+     */
+    private String keyColumnName = "UNIQUE_KEY";
+
+    /**
+     * The number of shard rows.
+     */
+    private int shardCount = 4;
+
+    /**
+     * The shard of this node, {@code -1} to pick one per thread.
+     */
+    private int shard = -1;
+
+    /**
+     * The connection dedicated to refills, if any.
+     */
+    private PinnedSequenceConnection pinnedConnection;
+
+    /**
+     * The reserved values of each shard.
+     */
+    private Shard[] shards;
+
+    /**
+     * The listener notified of refills.
+     */
+    private SequenceIncrementerListener listener = SequenceIncrementerListener.NONE;
+
+    /**
+     * Counts the IDs handed out, if the listener asked for it.
+     */
+    private LongAdder servedIds;
+
+    /**
+     * Default constructor for bean property style usage.
+     *
+     * @see #setDataSource
+     * @see #setIncrementerName
+     * @see #setColumnName
+     */
+    public ShardedSafeModeMysqlMaxValueIncrementer() {
+    }
+
+    /**
+     * Convenience constructor.
+     *
+     * @param dataSource      the DataSource to use
+     * @param incrementerName the name of the sequence table to use
+     * @param columnName      the name of the column in the sequence table to use
+     */
+    public ShardedSafeModeMysqlMaxValueIncrementer(DataSource dataSource, String incrementerName, String columnName) {
+        super(dataSource, incrementerName, columnName);
+    }
+
+
+    /**
+     * Set the name of the unique key column addressing the shard rows. Default is {@code UNIQUE_KEY}.
+     */
+    public void setKeyColumnName(String keyColumnName) {
+        this.keyColumnName = keyColumnName;
+    }
+
+    /**
+     * Set the number of shard rows, between 1 and 36. Must be the same on every node and match
+     * the rows seeded by {@link ShardedSequenceInitializer}. Default is 4.
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Set the shard of this node, between 0 and {@code shardCount - 1}. Nodes with different
+     * shards never wait for each other. Default is {@code -1}, which picks a shard per thread.
+     */
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Set a connection dedicated to refills.
+     *
+     * @see SafeModeMysqlMaxValueIncrementer#setPinnedConnection
+     */
+    public void setPinnedConnection(PinnedSequenceConnection pinnedConnection) {
+        this.pinnedConnection = pinnedConnection;
+    }
+
+    /**
+     * Set the listener notified of refills and refill failures.
+     */
+    public void setListener(SequenceIncrementerListener listener) {
+        this.listener = (listener != null ? listener : SequenceIncrementerListener.NONE);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        if (this.shardCount < 1 || this.shardCount > SHARD_KEYS.length()) {
+            throw new IllegalArgumentException("Property 'shardCount' must be between 1 and " + SHARD_KEYS.length());
+        }
+        if (this.shard >= this.shardCount) {
+            throw new IllegalArgumentException("Property 'shard' must be below 'shardCount'");
+        }
+        this.servedIds = this.listener.getServedIdCounter(getIncrementerName());
+    }
+
+    @Override
+    protected long getNextKey() throws DataAccessException {
+        Shard[] shards = this.shards;
+        if (shards == null) {
+            shards = initShards();
+        }
+        int index = (this.shard >= 0 ? this.shard : (int) (Thread.currentThread().getId() % this.shardCount));
+        long id = shards[index].nextValue() * this.shardCount + index;
+        if (this.servedIds != null) {
+            this.servedIds.increment();
+        }
+        return id;
+    }
+
+    private synchronized Shard[] initShards() {
+        if (this.shards == null) {
+            Shard[] shards = new Shard[this.shardCount];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new Shard(String.valueOf(SHARD_KEYS.charAt(i)));
+            }
+            this.shards = shards;
+        }
+        return this.shards;
+    }
+
+    /**
+     * Reserve {@code size} values in the row of the given shard.
+     *
+     * @return the largest reserved value
+     */
+    private long refillShard(String key, int size) throws DataAccessException {
+        long start = System.nanoTime();
+        try {
+            long maxValue = incrementShard(key, size);
+            this.listener.onRefill(getIncrementerName(), size, System.nanoTime() - start);
+            return maxValue;
+        } catch (DataAccessException ex) {
+            this.listener.onRefillFailure(getIncrementerName(), SequenceRefillFailure.classify(ex),
+                    SequenceRefillFailure.getSQLState(ex), ex);
+            throw ex;
+        }
+    }
+
+    private long incrementShard(String key, int size) throws DataAccessException {
+        String columnName = getColumnName();
+        String sql = "update " + getIncrementerName() + " set " + columnName + " = last_insert_id(" + columnName +
+                " + ?) where " + this.keyColumnName + " = ?";
+        if (this.pinnedConnection != null) {
+            return this.pinnedConnection.execute(con -> {
+                PreparedStatement ps = con.prepareStatement(sql);
+                return incrementShard(ps, con.prepareStatement(VALUE_SQL), key, size);
+            });
+        }
+        Connection con = null;
+        PreparedStatement ps = null;
+        PreparedStatement valuePs = null;
+        boolean mustRestoreAutoCommit = false;
+        try {
+            con = getDataSource().getConnection();
+            if (con.getAutoCommit()) {
+                mustRestoreAutoCommit = true;
+                con.setAutoCommit(false);
+            }
+            ps = con.prepareStatement(sql);
+            valuePs = con.prepareStatement(VALUE_SQL);
+            long max = incrementShard(ps, valuePs, key, size);
+            con.commit();
+            return max;
+        } catch (SQLException ex) {
+            if (con != null) {
+                try {
+                    con.rollback();
+                } catch (SQLException ignore) {
+                    // the original failure is more relevant
+                }
+            }
+            throw new DataAccessResourceFailureException("Could not increment shard " + key + " of " +
+                    getIncrementerName() + " sequence table", ex);
+        } finally {
+            JdbcUtils.closeStatement(ps);
+            JdbcUtils.closeStatement(valuePs);
+            if (con != null) {
+                if (mustRestoreAutoCommit) {
+                    try {
+                        con.setAutoCommit(true);
+                    } catch (SQLException ignore) {
+                        // the connection is closed right away
+                    }
+                }
+                JdbcUtils.closeConnection(con);
+            }
+        }
+    }
+
+    private long incrementShard(PreparedStatement ps, PreparedStatement valuePs, String key, int size)
+            throws SQLException {
+        ps.setInt(1, size);
+        ps.setString(2, key);
+        if (ps.executeUpdate() != 1) {
+            throw new DataAccessResourceFailureException("Shard " + key + " of " + getIncrementerName() +
+                    " sequence table not found, see ShardedSequenceInitializer");
+        }
+        ResultSet rs = valuePs.executeQuery();
+        try {
+            if (!rs.next()) {
+                throw new DataAccessResourceFailureException("last_insert_id() failed after executing an update");
+            }
+            return rs.getLong(1);
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+        }
+    }
+
+
+    /**
+     * The values reserved in the row of one shard.
+     */
+    private final class Shard {
+
+        private final String key;
+
+        private long nextValue = 0;
+
+        private long maxValue = 0;
+
+        Shard(String key) {
+            this.key = key;
+        }
+
+        synchronized long nextValue() {
+            if (this.nextValue == this.maxValue) {
+                int size = getCacheSize();
+                this.maxValue = refillShard(this.key, size);
+                this.nextValue = this.maxValue - size + 1;
+            } else {
+                this.nextValue++;
+            }
+            return this.nextValue;
+        }
+    }
+}
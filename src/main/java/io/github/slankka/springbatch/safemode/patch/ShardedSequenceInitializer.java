@@ -0,0 +1,97 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Seeds the shard rows of a sequence table for {@link ShardedSafeModeMysqlMaxValueIncrementer}.
+ * <p>Reads the largest ID the table has handed out so far, either from the single row used by
+ * {@link SafeModeMysqlMaxValueIncrementer} or from the shard rows of a previous shard count, and
+ * sets every shard row so that its first ID lies above it. Missing shard rows are inserted and
+ * surplus ones deleted, all with key-addressed statements in one transaction. A shard count of 1
+ * turns the table back into the single row layout. Running it again with the same shard count
+ * changes nothing.
+ * <p>Run it while no node generates IDs from the table.
+ */
+public class ShardedSequenceInitializer {
+
+    private static final Log logger = LogFactory.getLog(ShardedSequenceInitializer.class);
+
+    private final DataSource dataSource;
+
+    private String columnName = "ID";
+
+    private String keyColumnName = "UNIQUE_KEY";
+
+    public ShardedSequenceInitializer(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public void setColumnName(String columnName) {
+        this.columnName = columnName;
+    }
+
+    public void setKeyColumnName(String keyColumnName) {
+        this.keyColumnName = keyColumnName;
+    }
+
+    /**
+     * Seed {@code shardCount} shard rows in the given sequence table from its current value.
+     *
+     * @param incrementerName the name of the sequence table
+     * @param shardCount      the number of shard rows, between 1 and 36
+     */
+    public void initialize(String incrementerName, int shardCount) throws DataAccessException {
+        if (shardCount < 1 || shardCount > ShardedSafeModeMysqlMaxValueIncrementer.SHARD_KEYS.length()) {
+            throw new IllegalArgumentException("shardCount must be between 1 and " +
+                    ShardedSafeModeMysqlMaxValueIncrementer.SHARD_KEYS.length());
+        }
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        new TransactionTemplate(new DataSourceTransactionManager(dataSource)).execute(status -> {
+            List<Map<String, Object>> rows = jdbcTemplate.queryForList("select " + keyColumnName + " as SHARD_KEY, " +
+                    columnName + " as SHARD_VALUE from " + incrementerName + " where " + columnName + " >= 0 for update");
+            long maxId = 0;
+            boolean seeded = (rows.size() == shardCount);
+            for (Map<String, Object> row : rows) {
+                int shard = ShardedSafeModeMysqlMaxValueIncrementer.SHARD_KEYS.indexOf(
+                        String.valueOf(row.get("SHARD_KEY")).trim());
+                long value = ((Number) row.get("SHARD_VALUE")).longValue();
+                long id = (rows.size() == 1 ? value : value * rows.size() + shard);
+                maxId = Math.max(maxId, id);
+                seeded &= (shard >= 0 && shard < shardCount);
+            }
+            if (seeded) {
+                logger.info(incrementerName + " already has " + shardCount + " shard rows");
+                return null;
+            }
+            long value = maxId / shardCount;
+            for (int shard = 0; shard < shardCount; shard++) {
+                String key = String.valueOf(ShardedSafeModeMysqlMaxValueIncrementer.SHARD_KEYS.charAt(shard));
+                int updated = jdbcTemplate.update("update " + incrementerName + " set " + columnName + " = ? where " +
+                        keyColumnName + " = ?", value, key);
+                if (updated == 0) {
+                    jdbcTemplate.update("insert into " + incrementerName + " (" + columnName + ", " + keyColumnName +
+                            ") values (?, ?)", value, key);
+                }
+            }
+            for (Map<String, Object> row : rows) {
+                String key = String.valueOf(row.get("SHARD_KEY")).trim();
+                int shard = ShardedSafeModeMysqlMaxValueIncrementer.SHARD_KEYS.indexOf(key);
+                if (shard < 0 || shard >= shardCount) {
+                    jdbcTemplate.update("delete from " + incrementerName + " where " + keyColumnName + " = ?", key);
+                }
+            }
+            logger.info("Seeded " + shardCount + " shard rows of " + incrementerName + " above ID " + maxId);
+            return null;
+        });
+    }
+}
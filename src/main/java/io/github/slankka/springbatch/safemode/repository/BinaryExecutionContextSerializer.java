@@ -0,0 +1,403 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.batch.core.repository.ExecutionContextSerializer;
+import org.springframework.batch.core.repository.dao.Jackson2ExecutionContextStringSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>An {@link ExecutionContextSerializer} writing a compact tagged encoding instead of JSON.
+ * {@code String}, {@code Long}, {@code Integer}, {@code Double}, {@code Boolean} and
+ * {@code java.util.Date} values are written as a one letter type tag and their value; any other
+ * value is written by the {@link #setFallbackSerializer fallback serializer}. Encodings of at least
+ * {@link #setCompressionThreshold compression threshold} bytes are deflated.
+ * <p>The context columns are text in whatever character set the schema uses, so the encoding only
+ * uses printable ASCII: numbers and lengths are variable length, five bits per character, and
+ * strings of other characters are Base64 encoded UTF-8. It starts with {@code #1P}, or {@code #1Z}
+ * followed by the Base64 of the deflated encoding, where {@code 1} is the format version.
+ * Contexts without the header, such as the JSON written before, are read by the fallback serializer.
+ */
+public class BinaryExecutionContextSerializer implements ExecutionContextSerializer {
+
+    private static final int MAGIC = '#';
+
+    private static final int VERSION = '1';
+
+    private static final int PLAIN = 'P';
+
+    private static final int DEFLATED = 'Z';
+
+    private static final int NULL = 'n';
+
+    private static final int STRING = 's';
+
+    private static final int LONG = 'l';
+
+    private static final int INTEGER = 'i';
+
+    private static final int DOUBLE = 'd';
+
+    private static final int TRUE = 't';
+
+    private static final int FALSE = 'f';
+
+    private static final int DATE = 'D';
+
+    private static final int FALLBACK = 'j';
+
+    /**
+     * Digits of a variable length number: {@code '0'} plus five bits, plus 32 if more digits follow.
+     */
+    private static final int DIGIT = '0';
+
+    private static final int MORE = 32;
+
+    private ExecutionContextSerializer fallbackSerializer = new Jackson2ExecutionContextStringSerializer();
+
+    private boolean compress = true;
+
+    private int compressionThreshold = 2500;
+
+    /**
+     * Set the serializer for values of other types and for contexts written without the header.
+     * Default is the {@link Jackson2ExecutionContextStringSerializer} Spring Batch uses.
+     */
+    public void setFallbackSerializer(ExecutionContextSerializer fallbackSerializer) {
+        this.fallbackSerializer = fallbackSerializer;
+    }
+
+    /**
+     * Set whether large encodings are deflated. Default is true.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Set the size in bytes from which an encoding is deflated. Default is 2500, the length of
+     * the {@code SHORT_CONTEXT} column, beyond which a context spills into {@code SERIALIZED_CONTEXT}.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public void serialize(Map<String, Object> context, OutputStream out) throws IOException {
+        Buffer buffer = new Buffer(64 + context.size() * 32);
+        buffer.writeNumber(context.size());
+        for (Map.Entry<String, Object> entry : context.entrySet()) {
+            buffer.writeString(entry.getKey());
+            writeValue(buffer, entry.getKey(), entry.getValue());
+        }
+        out.write(MAGIC);
+        out.write(VERSION);
+        if (this.compress && buffer.size >= this.compressionThreshold) {
+            byte[] deflated = Base64.getEncoder().encode(deflate(buffer.bytes, buffer.size));
+            if (deflated.length < buffer.size) {
+                out.write(DEFLATED);
+                out.write(deflated);
+                return;
+            }
+        }
+        out.write(PLAIN);
+        out.write(buffer.bytes, 0, buffer.size);
+    }
+
+    @Override
+    public Map<String, Object> deserialize(InputStream in) throws IOException {
+        PushbackInputStream input = new PushbackInputStream(in, 1);
+        int first = input.read();
+        if (first != MAGIC) {
+            if (first != -1) {
+                input.unread(first);
+            }
+            return this.fallbackSerializer.deserialize(input);
+        }
+        int version = input.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported execution context format version: " + version);
+        }
+        int codec = input.read();
+        byte[] body = readAll(input);
+        if (codec == DEFLATED) {
+            body = inflate(decodeBase64(body));
+        } else if (codec != PLAIN) {
+            throw new IOException("Unsupported execution context codec: " + codec);
+        }
+        Reader reader = new Reader(body);
+        int size = (int) reader.readNumber();
+        Map<String, Object> context = new HashMap<>(Math.max(16, (int) (size / 0.75f) + 1));
+        for (int i = 0; i < size; i++) {
+            String key = reader.readString();
+            context.put(key, readValue(reader));
+        }
+        return context;
+    }
+
+    private void writeValue(Buffer buffer, String key, Object value) throws IOException {
+        if (value == null) {
+            buffer.write(NULL);
+        } else if (value instanceof String) {
+            buffer.write(STRING);
+            buffer.writeString((String) value);
+        } else if (value instanceof Long) {
+            buffer.write(LONG);
+            buffer.writeNumber(zigZag((Long) value));
+        } else if (value instanceof Integer) {
+            buffer.write(INTEGER);
+            buffer.writeNumber(zigZag((Integer) value));
+        } else if (value instanceof Double) {
+            buffer.write(DOUBLE);
+            buffer.writeString(Double.toString((Double) value));
+        } else if (value instanceof Boolean) {
+            buffer.write((Boolean) value ? TRUE : FALSE);
+        } else if (value.getClass() == Date.class) {
+            buffer.write(DATE);
+            buffer.writeNumber(zigZag(((Date) value).getTime()));
+        } else {
+            Map<String, Object> single = new HashMap<>(2);
+            single.put(key, value);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            this.fallbackSerializer.serialize(single, out);
+            buffer.write(FALLBACK);
+            buffer.writeNumber(out.size());
+            buffer.write(out.toByteArray());
+        }
+    }
+
+    private Object readValue(Reader reader) throws IOException {
+        int type = reader.read();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return reader.readString();
+            case LONG:
+                return unZigZag(reader.readNumber());
+            case INTEGER:
+                return (int) unZigZag(reader.readNumber());
+            case DOUBLE:
+                try {
+                    return Double.valueOf(reader.readString());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed execution context", e);
+                }
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case DATE:
+                return new Date(unZigZag(reader.readNumber()));
+            case FALLBACK:
+                int length = (int) reader.readNumber();
+                Map<String, Object> single = this.fallbackSerializer.deserialize(reader.slice(length));
+                return (single.isEmpty() ? null : single.values().iterator().next());
+            default:
+                throw new IOException("Unknown execution context value type: " + type);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static byte[] decodeBase64(byte[] encoded) throws IOException {
+        try {
+            return Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed execution context", e);
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] body) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(body);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Truncated execution context");
+                }
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed execution context", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, in.available()));
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            out.write(chunk, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A growable byte array holding the plain encoding.
+     */
+    private static final class Buffer {
+
+        byte[] bytes;
+
+        int size;
+
+        Buffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        void write(int b) {
+            ensureCapacity(1);
+            this.bytes[this.size++] = (byte) b;
+        }
+
+        void write(byte[] b) {
+            ensureCapacity(b.length);
+            System.arraycopy(b, 0, this.bytes, this.size, b.length);
+            this.size += b.length;
+        }
+
+        void writeNumber(long value) {
+            ensureCapacity(13);
+            while ((value & ~0x1FL) != 0) {
+                this.bytes[this.size++] = (byte) (DIGIT + MORE + (value & 0x1F));
+                value >>>= 5;
+            }
+            this.bytes[this.size++] = (byte) (DIGIT + value);
+        }
+
+        /**
+         * Write a string as its length times two and its characters if they are all printable
+         * ASCII, otherwise as the length of its Base64 encoded UTF-8 times two plus one and that.
+         */
+        void writeString(String value) {
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x20 || c > 0x7E) {
+                    byte[] encoded = Base64.getEncoder().encode(value.getBytes(StandardCharsets.UTF_8));
+                    writeNumber(((long) encoded.length << 1) | 1);
+                    write(encoded);
+                    return;
+                }
+            }
+            writeNumber((long) length << 1);
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                this.bytes[this.size++] = (byte) value.charAt(i);
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (this.size + extra > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + extra));
+            }
+        }
+    }
+
+    /**
+     * Reads what a {@link Buffer} wrote.
+     */
+    private static final class Reader {
+
+        private final byte[] bytes;
+
+        private int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int read() throws IOException {
+            require(1);
+            return this.bytes[this.position++];
+        }
+
+        long readNumber() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 65; shift += 5) {
+                int digit = read() - DIGIT;
+                if (digit < 0 || digit >= 2 * MORE) {
+                    throw new IOException("Malformed execution context");
+                }
+                value |= (long) (digit & 0x1F) << shift;
+                if (digit < MORE) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed execution context");
+        }
+
+        @SuppressWarnings("deprecation")
+        String readString() throws IOException {
+            long header = readNumber();
+            int length = (int) (header >>> 1);
+            require(length);
+            String value;
+            if ((header & 1) == 0) {
+                value = new String(this.bytes, 0, this.position, length);
+            } else {
+                byte[] encoded = Arrays.copyOfRange(this.bytes, this.position, this.position + length);
+                value = new String(decodeBase64(encoded), StandardCharsets.UTF_8);
+            }
+            this.position += length;
+            return value;
+        }
+
+        InputStream slice(int length) throws IOException {
+            require(length);
+            InputStream slice = new ByteArrayInputStream(this.bytes, this.position, length);
+            this.position += length;
+            return slice;
+        }
+
+        private void require(int length) throws IOException {
+            if (length < 0 || this.position + length > this.bytes.length) {
+                throw new EOFException("Truncated execution context");
+            }
+        }
+    }
+}
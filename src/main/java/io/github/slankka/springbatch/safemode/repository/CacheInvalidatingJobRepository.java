@@ -0,0 +1,112 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.JobExecutionAlreadyRunningException;
+import org.springframework.batch.core.repository.JobInstanceAlreadyCompleteException;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.JobRestartException;
+
+import java.util.Collection;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Evicts the entries of a {@link JobExplorerCache} that a write through the delegate
+ * {@link JobRepository} makes stale, so that a {@link CachingJobExplorer} in the same JVM sees
+ * its own writes right away. Every write is delegated first and evicts only once it succeeded.
+ */
+public class CacheInvalidatingJobRepository implements JobRepository {
+
+    private final JobRepository delegate;
+
+    private final JobExplorerCache cache;
+
+    public CacheInvalidatingJobRepository(JobRepository delegate, JobExplorerCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public boolean isJobInstanceExists(String jobName, JobParameters jobParameters) {
+        return this.delegate.isJobInstanceExists(jobName, jobParameters);
+    }
+
+    @Override
+    public JobInstance createJobInstance(String jobName, JobParameters jobParameters) {
+        JobInstance jobInstance = this.delegate.createJobInstance(jobName, jobParameters);
+        this.cache.invalidateJob(jobName);
+        return jobInstance;
+    }
+
+    @Override
+    public JobExecution createJobExecution(JobInstance jobInstance, JobParameters jobParameters,
+                                           String jobConfigurationLocation) {
+        JobExecution jobExecution = this.delegate.createJobExecution(jobInstance, jobParameters,
+                jobConfigurationLocation);
+        this.cache.invalidate(jobExecution);
+        return jobExecution;
+    }
+
+    @Override
+    public JobExecution createJobExecution(String jobName, JobParameters jobParameters)
+            throws JobExecutionAlreadyRunningException, JobRestartException, JobInstanceAlreadyCompleteException {
+        JobExecution jobExecution = this.delegate.createJobExecution(jobName, jobParameters);
+        this.cache.invalidate(jobExecution);
+        return jobExecution;
+    }
+
+    @Override
+    public void update(JobExecution jobExecution) {
+        this.delegate.update(jobExecution);
+        this.cache.invalidate(jobExecution);
+    }
+
+    @Override
+    public void add(StepExecution stepExecution) {
+        this.delegate.add(stepExecution);
+        this.cache.invalidateJobExecution(stepExecution.getJobExecutionId());
+    }
+
+    @Override
+    public void addAll(Collection<StepExecution> stepExecutions) {
+        this.delegate.addAll(stepExecutions);
+        for (StepExecution stepExecution : stepExecutions) {
+            this.cache.invalidateJobExecution(stepExecution.getJobExecutionId());
+        }
+    }
+
+    @Override
+    public void update(StepExecution stepExecution) {
+        this.delegate.update(stepExecution);
+        this.cache.invalidateJobExecution(stepExecution.getJobExecutionId());
+    }
+
+    @Override
+    public void updateExecutionContext(StepExecution stepExecution) {
+        this.delegate.updateExecutionContext(stepExecution);
+        this.cache.invalidateJobExecution(stepExecution.getJobExecutionId());
+    }
+
+    @Override
+    public void updateExecutionContext(JobExecution jobExecution) {
+        this.delegate.updateExecutionContext(jobExecution);
+        this.cache.invalidateJobExecution(jobExecution.getId());
+    }
+
+    @Override
+    public StepExecution getLastStepExecution(JobInstance jobInstance, String stepName) {
+        return this.delegate.getLastStepExecution(jobInstance, stepName);
+    }
+
+    @Override
+    public int getStepExecutionCount(JobInstance jobInstance, String stepName) {
+        return this.delegate.getStepExecutionCount(jobInstance, stepName);
+    }
+
+    @Override
+    public JobExecution getLastJobExecution(String jobName, JobParameters jobParameters) {
+        return this.delegate.getLastJobExecution(jobName, jobParameters);
+    }
+}
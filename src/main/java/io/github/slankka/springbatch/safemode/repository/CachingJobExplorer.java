@@ -0,0 +1,191 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import io.github.slankka.springbatch.safemode.repository.JobExplorerCache.Kind;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.explore.JobExplorer;
+import org.springframework.batch.core.launch.NoSuchJobException;
+import org.springframework.batch.item.ExecutionContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>A read-through cache in front of a {@link JobExplorer}, for dashboards that poll job and
+ * execution state far more often than it changes. See {@link JobExplorerCache} for what is
+ * cached for how long; a {@link CacheInvalidatingJobRepository} sharing the cache evicts what
+ * this JVM writes.
+ * <p>Every call returns its own copies of the cached executions and instances, so callers like
+ * {@code JobOperator.stop} and {@code abandon} can change and save them without the change
+ * showing up in what other callers get.
+ */
+public class CachingJobExplorer implements JobExplorer {
+
+    private final JobExplorer delegate;
+
+    private final JobExplorerCache cache;
+
+    public CachingJobExplorer(JobExplorer delegate, JobExplorerCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public List<JobInstance> getJobInstances(String jobName, int start, int count) {
+        return copyInstances(this.cache.get(Kind.JOB_INSTANCES, jobName, null, start, count,
+                () -> unmodifiable(this.delegate.getJobInstances(jobName, start, count))));
+    }
+
+    @Override
+    public JobExecution getJobExecution(Long executionId) {
+        if (executionId == null) {
+            return null;
+        }
+        return copy(this.cache.get(Kind.JOB_EXECUTION, null, executionId, 0, 0,
+                () -> this.delegate.getJobExecution(executionId)));
+    }
+
+    @Override
+    public StepExecution getStepExecution(Long jobExecutionId, Long stepExecutionId) {
+        JobExecution jobExecution = getJobExecution(jobExecutionId);
+        if (jobExecution == null) {
+            return null;
+        }
+        for (StepExecution stepExecution : jobExecution.getStepExecutions()) {
+            if (stepExecution.getId().equals(stepExecutionId)) {
+                return stepExecution;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public JobInstance getJobInstance(Long instanceId) {
+        if (instanceId == null) {
+            return null;
+        }
+        return copy(this.cache.get(Kind.JOB_INSTANCE, null, instanceId, 0, 0,
+                () -> this.delegate.getJobInstance(instanceId)));
+    }
+
+    @Override
+    public List<JobExecution> getJobExecutions(JobInstance jobInstance) {
+        List<JobExecution> jobExecutions = this.cache.get(Kind.JOB_EXECUTIONS, jobInstance.getJobName(),
+                jobInstance.getId(), 0, 0, () -> unmodifiable(this.delegate.getJobExecutions(jobInstance)));
+        if (jobExecutions == null) {
+            return null;
+        }
+        List<JobExecution> copies = new ArrayList<>(jobExecutions.size());
+        jobExecutions.forEach(jobExecution -> copies.add(copy(jobExecution)));
+        return copies;
+    }
+
+    @Override
+    public Set<JobExecution> findRunningJobExecutions(String jobName) {
+        Set<JobExecution> jobExecutions = this.cache.get(Kind.RUNNING_JOB_EXECUTIONS, jobName, null, 0, 0,
+                () -> unmodifiable(this.delegate.findRunningJobExecutions(jobName)));
+        if (jobExecutions == null) {
+            return null;
+        }
+        Set<JobExecution> copies = new LinkedHashSet<>();
+        jobExecutions.forEach(jobExecution -> copies.add(copy(jobExecution)));
+        return copies;
+    }
+
+    @Override
+    public List<String> getJobNames() {
+        return this.cache.get(Kind.JOB_NAMES, null, null, 0, 0,
+                () -> unmodifiable(this.delegate.getJobNames()));
+    }
+
+    @Override
+    public List<JobInstance> findJobInstancesByJobName(String jobName, int start, int count) {
+        return copyInstances(this.cache.get(Kind.JOB_INSTANCES_BY_NAME, jobName, null, start, count,
+                () -> unmodifiable(this.delegate.findJobInstancesByJobName(jobName, start, count))));
+    }
+
+    @Override
+    public int getJobInstanceCount(String jobName) throws NoSuchJobException {
+        return this.cache.get(Kind.JOB_INSTANCE_COUNT, jobName, null, 0, 0,
+                () -> this.delegate.getJobInstanceCount(jobName));
+    }
+
+    private static <T> List<T> unmodifiable(List<T> list) {
+        return (list != null ? Collections.unmodifiableList(list) : null);
+    }
+
+    private static <T> Set<T> unmodifiable(Set<T> set) {
+        return (set != null ? Collections.unmodifiableSet(set) : null);
+    }
+
+    private static List<JobInstance> copyInstances(List<JobInstance> jobInstances) {
+        if (jobInstances == null) {
+            return null;
+        }
+        List<JobInstance> copies = new ArrayList<>(jobInstances.size());
+        jobInstances.forEach(jobInstance -> copies.add(copy(jobInstance)));
+        return copies;
+    }
+
+    private static JobInstance copy(JobInstance jobInstance) {
+        if (jobInstance == null) {
+            return null;
+        }
+        JobInstance copy = new JobInstance(jobInstance.getId(), jobInstance.getJobName());
+        copy.setVersion(jobInstance.getVersion());
+        return copy;
+    }
+
+    /**
+     * Copy the execution with its step executions and execution contexts, which
+     * {@code JobOperator.stop} and {@code abandon} change before saving them.
+     */
+    private static JobExecution copy(JobExecution jobExecution) {
+        if (jobExecution == null) {
+            return null;
+        }
+        JobExecution copy = new JobExecution(copy(jobExecution.getJobInstance()), jobExecution.getId(),
+                jobExecution.getJobParameters(), jobExecution.getJobConfigurationName());
+        copy.setVersion(jobExecution.getVersion());
+        copy.setStatus(jobExecution.getStatus());
+        copy.setCreateTime(jobExecution.getCreateTime());
+        copy.setStartTime(jobExecution.getStartTime());
+        copy.setEndTime(jobExecution.getEndTime());
+        copy.setLastUpdated(jobExecution.getLastUpdated());
+        copy.setExitStatus(jobExecution.getExitStatus());
+        copy.setExecutionContext(new ExecutionContext(jobExecution.getExecutionContext()));
+        jobExecution.getFailureExceptions().forEach(copy::addFailureException);
+        for (StepExecution stepExecution : jobExecution.getStepExecutions()) {
+            copy(stepExecution, copy);
+        }
+        return copy;
+    }
+
+    private static void copy(StepExecution stepExecution, JobExecution jobExecution) {
+        StepExecution copy = new StepExecution(stepExecution.getStepName(), jobExecution, stepExecution.getId());
+        copy.setVersion(stepExecution.getVersion());
+        copy.setStatus(stepExecution.getStatus());
+        copy.setReadCount(stepExecution.getReadCount());
+        copy.setWriteCount(stepExecution.getWriteCount());
+        copy.setCommitCount(stepExecution.getCommitCount());
+        copy.setRollbackCount(stepExecution.getRollbackCount());
+        copy.setFilterCount(stepExecution.getFilterCount());
+        copy.setReadSkipCount(stepExecution.getReadSkipCount());
+        copy.setProcessSkipCount(stepExecution.getProcessSkipCount());
+        copy.setWriteSkipCount(stepExecution.getWriteSkipCount());
+        copy.setStartTime(stepExecution.getStartTime());
+        copy.setEndTime(stepExecution.getEndTime());
+        copy.setLastUpdated(stepExecution.getLastUpdated());
+        copy.setExitStatus(stepExecution.getExitStatus());
+        copy.setExecutionContext(new ExecutionContext(stepExecution.getExecutionContext()));
+        stepExecution.getFailureExceptions().forEach(copy::addFailureException);
+        if (stepExecution.isTerminateOnly()) {
+            copy.setTerminateOnly();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.dao.ExecutionContextDao;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.util.Assert;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>An {@link ExecutionContextDao} on concurrent maps. A save copies the entries of the
+ * context and a read returns a new context over a copy of them, instead of serializing the
+ * context both ways. The values themselves are shared, so they should not be changed after
+ * they are put into a context.
+ */
+public class InMemoryExecutionContextDao implements ExecutionContextDao {
+
+    private final ConcurrentMap<Long, Map<String, Object>> jobContexts = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Long, Map<String, Object>> stepContexts = new ConcurrentHashMap<>();
+
+    @Override
+    public ExecutionContext getExecutionContext(JobExecution jobExecution) {
+        return read(this.jobContexts, jobExecution.getId());
+    }
+
+    @Override
+    public ExecutionContext getExecutionContext(StepExecution stepExecution) {
+        return read(this.stepContexts, stepExecution.getId());
+    }
+
+    @Override
+    public void saveExecutionContext(JobExecution jobExecution) {
+        write(this.jobContexts, jobExecution.getId(), jobExecution.getExecutionContext());
+    }
+
+    @Override
+    public void saveExecutionContext(StepExecution stepExecution) {
+        write(this.stepContexts, stepExecution.getId(), stepExecution.getExecutionContext());
+    }
+
+    @Override
+    public void saveExecutionContexts(Collection<StepExecution> stepExecutions) {
+        Assert.notNull(stepExecutions, "Attempt to save an null collection of step executions");
+        for (StepExecution stepExecution : stepExecutions) {
+            saveExecutionContext(stepExecution);
+        }
+    }
+
+    @Override
+    public void updateExecutionContext(JobExecution jobExecution) {
+        saveExecutionContext(jobExecution);
+    }
+
+    @Override
+    public void updateExecutionContext(StepExecution stepExecution) {
+        saveExecutionContext(stepExecution);
+    }
+
+    /**
+     * Remove all execution contexts.
+     */
+    public void clear() {
+        this.jobContexts.clear();
+        this.stepContexts.clear();
+    }
+
+    private static ExecutionContext read(Map<Long, Map<String, Object>> contexts, Long id) {
+        Map<String, Object> entries = (id != null ? contexts.get(id) : null);
+        return (entries != null ? new ExecutionContext(entries) : new ExecutionContext());
+    }
+
+    private static void write(Map<Long, Map<String, Object>> contexts, Long id, ExecutionContext executionContext) {
+        Assert.notNull(id, "ExecutionContext must belong to a saved execution");
+        if (executionContext == null) {
+            return;
+        }
+        Map<String, Object> entries = new HashMap<>(Math.max(16, executionContext.size() * 4 / 3 + 1));
+        for (Map.Entry<String, Object> entry : executionContext.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        contexts.put(id, entries);
+    }
+}
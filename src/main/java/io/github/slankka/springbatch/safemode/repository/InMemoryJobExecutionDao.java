@@ -0,0 +1,186 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.repository.dao.JobExecutionDao;
+import org.springframework.batch.core.repository.dao.NoSuchObjectException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>A {@link JobExecutionDao} on concurrent maps. It keeps a snapshot of every job execution
+ * and hands out copies, so callers see what was last saved rather than each other's changes,
+ * without the serialization round trip of the map based DAOs. Lookups by id, by instance and of
+ * running executions do not lock; an update locks only the execution it replaces.
+ */
+public class InMemoryJobExecutionDao implements JobExecutionDao {
+
+    private final ConcurrentMap<Long, JobExecution> executions = new ConcurrentHashMap<>();
+
+    /**
+     * The execution ids of each job instance, newest first.
+     */
+    private final ConcurrentMap<Long, Set<Long>> executionsByInstance = new ConcurrentHashMap<>();
+
+    /**
+     * The ids of the executions without an end time, by job name.
+     */
+    private final ConcurrentMap<String, Set<Long>> runningByJob = new ConcurrentHashMap<>();
+
+    private DataFieldMaxValueIncrementer jobExecutionIncrementer = new InMemoryMaxValueIncrementer();
+
+    /**
+     * Set the incrementer for job execution ids. Default is an {@link InMemoryMaxValueIncrementer}.
+     */
+    public void setJobExecutionIncrementer(DataFieldMaxValueIncrementer jobExecutionIncrementer) {
+        this.jobExecutionIncrementer = jobExecutionIncrementer;
+    }
+
+    @Override
+    public void saveJobExecution(JobExecution jobExecution) {
+        validateJobExecution(jobExecution);
+        Assert.isNull(jobExecution.getId(), "JobExecution must not have been saved before");
+        jobExecution.incrementVersion();
+        jobExecution.setId(this.jobExecutionIncrementer.nextLongValue());
+        this.executions.put(jobExecution.getId(), copy(jobExecution));
+        this.executionsByInstance.computeIfAbsent(jobExecution.getJobId(),
+                id -> new ConcurrentSkipListSet<>(Collections.reverseOrder())).add(jobExecution.getId());
+        trackRunning(jobExecution);
+    }
+
+    @Override
+    public void updateJobExecution(JobExecution jobExecution) {
+        validateJobExecution(jobExecution);
+        Long id = jobExecution.getId();
+        Assert.notNull(id, "JobExecution ID cannot be null. JobExecution must be saved before it can be updated");
+        Assert.notNull(jobExecution.getVersion(), "JobExecution version cannot be null. JobExecution must be saved before it can be updated");
+        this.executions.compute(id, (key, persisted) -> {
+            if (persisted == null) {
+                throw new NoSuchObjectException("Invalid JobExecution, ID " + id + " not found.");
+            }
+            if (!persisted.getVersion().equals(jobExecution.getVersion())) {
+                throw new OptimisticLockingFailureException("Attempt to update job execution id=" + id +
+                        " with wrong version (" + jobExecution.getVersion() + "), where current version is " +
+                        persisted.getVersion());
+            }
+            jobExecution.incrementVersion();
+            return copy(jobExecution);
+        });
+        trackRunning(jobExecution);
+    }
+
+    @Override
+    public List<JobExecution> findJobExecutions(JobInstance jobInstance) {
+        Assert.notNull(jobInstance, "Job cannot be null.");
+        Set<Long> ids = this.executionsByInstance.get(jobInstance.getId());
+        if (ids == null) {
+            return new ArrayList<>();
+        }
+        List<JobExecution> jobExecutions = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            JobExecution jobExecution = getJobExecution(id);
+            if (jobExecution != null) {
+                jobExecutions.add(jobExecution);
+            }
+        }
+        return jobExecutions;
+    }
+
+    @Override
+    public JobExecution getLastJobExecution(JobInstance jobInstance) {
+        Set<Long> ids = this.executionsByInstance.get(jobInstance.getId());
+        if (ids != null) {
+            for (Long id : ids) {
+                return getJobExecution(id);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Set<JobExecution> findRunningJobExecutions(String jobName) {
+        Set<JobExecution> running = new HashSet<>();
+        Set<Long> ids = this.runningByJob.get(jobName);
+        if (ids != null) {
+            for (Long id : ids) {
+                JobExecution jobExecution = getJobExecution(id);
+                if (jobExecution != null && jobExecution.getEndTime() == null) {
+                    running.add(jobExecution);
+                }
+            }
+        }
+        return running;
+    }
+
+    @Override
+    public JobExecution getJobExecution(Long executionId) {
+        JobExecution persisted = (executionId != null ? this.executions.get(executionId) : null);
+        return (persisted != null ? copy(persisted) : null);
+    }
+
+    @Override
+    public void synchronizeStatus(JobExecution jobExecution) {
+        JobExecution persisted = this.executions.get(jobExecution.getId());
+        if (persisted != null && !persisted.getVersion().equals(jobExecution.getVersion())) {
+            jobExecution.upgradeStatus(persisted.getStatus());
+            jobExecution.setVersion(persisted.getVersion());
+        }
+    }
+
+    /**
+     * Remove all job executions.
+     */
+    public void clear() {
+        this.executions.clear();
+        this.executionsByInstance.clear();
+        this.runningByJob.clear();
+    }
+
+    private void trackRunning(JobExecution jobExecution) {
+        String jobName = jobExecution.getJobInstance().getJobName();
+        if (jobExecution.getEndTime() == null) {
+            this.runningByJob.computeIfAbsent(jobName, name -> ConcurrentHashMap.newKeySet()).add(jobExecution.getId());
+        } else {
+            Set<Long> running = this.runningByJob.get(jobName);
+            if (running != null) {
+                running.remove(jobExecution.getId());
+            }
+        }
+    }
+
+    private static void validateJobExecution(JobExecution jobExecution) {
+        Assert.notNull(jobExecution, "jobExecution cannot be null");
+        Assert.notNull(jobExecution.getJobInstance(), "JobExecution must have a JobInstance");
+        Assert.notNull(jobExecution.getJobParameters(), "JobExecution must have JobParameters");
+        Assert.notNull(jobExecution.getStatus(), "JobExecution status cannot be null.");
+        Assert.notNull(jobExecution.getCreateTime(), "JobExecution create time cannot be null");
+    }
+
+    /**
+     * Copy the persistent fields of a job execution, without its step executions and context,
+     * which the explorer adds from the other DAOs.
+     */
+    private static JobExecution copy(JobExecution original) {
+        JobExecution copy = new JobExecution(original.getJobInstance(), original.getId(),
+                original.getJobParameters(), original.getJobConfigurationName());
+        copy.setStatus(original.getStatus());
+        copy.setExitStatus(original.getExitStatus());
+        copy.setCreateTime(original.getCreateTime());
+        copy.setStartTime(original.getStartTime());
+        copy.setEndTime(original.getEndTime());
+        copy.setLastUpdated(original.getLastUpdated());
+        copy.setVersion(original.getVersion());
+        return copy;
+    }
+}
@@ -0,0 +1,166 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.batch.core.DefaultJobKeyGenerator;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobKeyGenerator;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.launch.NoSuchJobException;
+import org.springframework.batch.core.repository.dao.JobInstanceDao;
+import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>A {@link JobInstanceDao} on concurrent maps. Instances are looked up by id and by job key
+ * without locking, and listed newest first from a skip list per job.
+ */
+public class InMemoryJobInstanceDao implements JobInstanceDao {
+
+    private final ConcurrentMap<Long, JobInstance> instances = new ConcurrentHashMap<>();
+
+    /**
+     * The instances of each job, by job name in name order.
+     */
+    private final ConcurrentSkipListMap<String, JobInstances> jobs = new ConcurrentSkipListMap<>();
+
+    private JobKeyGenerator<JobParameters> jobKeyGenerator = new DefaultJobKeyGenerator();
+
+    private DataFieldMaxValueIncrementer jobIncrementer = new InMemoryMaxValueIncrementer();
+
+    /**
+     * Set the incrementer for job instance ids. Default is an {@link InMemoryMaxValueIncrementer}.
+     */
+    public void setJobIncrementer(DataFieldMaxValueIncrementer jobIncrementer) {
+        this.jobIncrementer = jobIncrementer;
+    }
+
+    public void setJobKeyGenerator(JobKeyGenerator<JobParameters> jobKeyGenerator) {
+        this.jobKeyGenerator = jobKeyGenerator;
+    }
+
+    @Override
+    public JobInstance createJobInstance(String jobName, JobParameters jobParameters) {
+        Assert.notNull(jobName, "Job name must not be null.");
+        Assert.notNull(jobParameters, "JobParameters must not be null.");
+        JobInstances job = this.jobs.computeIfAbsent(jobName, name -> new JobInstances());
+        String jobKey = this.jobKeyGenerator.generateKey(jobParameters);
+        Assert.state(!job.byKey.containsKey(jobKey), "JobInstance must not already exist");
+
+        JobInstance jobInstance = new JobInstance(this.jobIncrementer.nextLongValue(), jobName);
+        jobInstance.incrementVersion();
+        Assert.state(job.byKey.putIfAbsent(jobKey, jobInstance) == null, "JobInstance must not already exist");
+        this.instances.put(jobInstance.getId(), jobInstance);
+        job.newestFirst.put(jobInstance.getId(), jobInstance);
+        job.count.incrementAndGet();
+        return jobInstance;
+    }
+
+    @Override
+    public JobInstance getJobInstance(String jobName, JobParameters jobParameters) {
+        JobInstances job = this.jobs.get(jobName);
+        return (job != null ? job.byKey.get(this.jobKeyGenerator.generateKey(jobParameters)) : null);
+    }
+
+    @Override
+    public JobInstance getJobInstance(Long instanceId) {
+        return (instanceId != null ? this.instances.get(instanceId) : null);
+    }
+
+    @Override
+    public JobInstance getJobInstance(JobExecution jobExecution) {
+        return getJobInstance(jobExecution.getJobId());
+    }
+
+    @Override
+    public List<JobInstance> getJobInstances(String jobName, int start, int count) {
+        JobInstances job = this.jobs.get(jobName);
+        return (job != null ? page(job.newestFirst.values(), start, count) : Collections.<JobInstance>emptyList());
+    }
+
+    @Override
+    public List<String> getJobNames() {
+        List<String> jobNames = new ArrayList<>();
+        for (Map.Entry<String, JobInstances> job : this.jobs.entrySet()) {
+            if (job.getValue().count.get() > 0) {
+                jobNames.add(job.getKey());
+            }
+        }
+        return jobNames;
+    }
+
+    /**
+     * Like {@link #getJobInstances}, where {@code *} in the job name matches any characters.
+     */
+    @Override
+    public List<JobInstance> findJobInstancesByName(String jobName, int start, int count) {
+        if (!jobName.contains("*")) {
+            return getJobInstances(jobName, start, count);
+        }
+        Pattern pattern = Pattern.compile(Pattern.quote(jobName).replace("*", "\\E.*\\Q"));
+        List<JobInstance> matching = new ArrayList<>();
+        for (Map.Entry<String, JobInstances> job : this.jobs.entrySet()) {
+            if (pattern.matcher(job.getKey()).matches()) {
+                matching.addAll(job.getValue().newestFirst.values());
+            }
+        }
+        matching.sort(Comparator.comparing(JobInstance::getId).reversed());
+        return page(matching, start, count);
+    }
+
+    @Override
+    public int getJobInstanceCount(String jobName) throws NoSuchJobException {
+        JobInstances job = this.jobs.get(jobName);
+        int count = (job != null ? job.count.get() : 0);
+        if (count == 0) {
+            throw new NoSuchJobException("No job instances were found for job name " + jobName);
+        }
+        return count;
+    }
+
+    /**
+     * Remove all job instances.
+     */
+    public void clear() {
+        this.jobs.clear();
+        this.instances.clear();
+    }
+
+    private static List<JobInstance> page(Collection<JobInstance> newestFirst, int start, int count) {
+        List<JobInstance> page = new ArrayList<>(Math.max(0, Math.min(count, 64)));
+        int index = 0;
+        for (JobInstance jobInstance : newestFirst) {
+            if (page.size() >= count) {
+                break;
+            }
+            if (index++ >= start) {
+                page.add(jobInstance);
+            }
+        }
+        return page;
+    }
+
+    private static final class JobInstances {
+
+        final ConcurrentMap<String, JobInstance> byKey = new ConcurrentHashMap<>();
+
+        final ConcurrentSkipListMap<Long, JobInstance> newestFirst = new ConcurrentSkipListMap<>(Collections.reverseOrder());
+
+        /**
+         * The size of {@link #newestFirst}, which a skip list would count one by one.
+         */
+        final AtomicInteger count = new AtomicInteger();
+    }
+}
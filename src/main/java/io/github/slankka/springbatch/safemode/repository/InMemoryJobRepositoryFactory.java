@@ -0,0 +1,119 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameter;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.explore.JobExplorer;
+import org.springframework.batch.core.explore.support.SimpleJobExplorer;
+import org.springframework.batch.core.repository.JobExecutionAlreadyRunningException;
+import org.springframework.batch.core.repository.JobInstanceAlreadyCompleteException;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.JobRestartException;
+import org.springframework.batch.core.repository.support.SimpleJobRepository;
+import org.springframework.util.Assert;
+
+import java.util.Map;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Builds a {@link JobRepository} and a {@link JobExplorer} on the in-memory DAOs, for runs
+ * without a DataSource. Unlike the map based factory beans, reads do not lock and copy by field
+ * instead of by serialization. Only creating a job execution is serialized, on one of a set of
+ * locks chosen by job name and identifying parameters, so launches of different jobs don't wait
+ * for each other.
+ * <br/>Nothing is transactional: a step that fails halfway keeps what was written before.
+ */
+public class InMemoryJobRepositoryFactory {
+
+    private final InMemoryJobInstanceDao jobInstanceDao = new InMemoryJobInstanceDao();
+
+    private final InMemoryJobExecutionDao jobExecutionDao = new InMemoryJobExecutionDao();
+
+    private final InMemoryStepExecutionDao stepExecutionDao = new InMemoryStepExecutionDao();
+
+    private final InMemoryExecutionContextDao executionContextDao = new InMemoryExecutionContextDao();
+
+    private Object[] launchLocks = newLocks(16);
+
+    private JobRepository jobRepository;
+
+    private JobExplorer jobExplorer;
+
+    /**
+     * Set the number of jobs expected to be launched at the same time, to size the launch locks.
+     * Default is 4.
+     */
+    public void setConcurrency(int concurrency) {
+        Assert.isTrue(concurrency > 0, "concurrency must be positive");
+        Assert.state(jobRepository == null, "concurrency must be set before the JobRepository is created");
+        int stripes = 16;
+        while (stripes < concurrency * 4 && stripes < (1 << 16)) {
+            stripes <<= 1;
+        }
+        this.launchLocks = newLocks(stripes);
+    }
+
+    public synchronized JobRepository getJobRepository() {
+        if (jobRepository == null) {
+            jobRepository = new StripedJobRepository();
+        }
+        return jobRepository;
+    }
+
+    public synchronized JobExplorer getJobExplorer() {
+        if (jobExplorer == null) {
+            jobExplorer = new SimpleJobExplorer(jobInstanceDao, jobExecutionDao, stepExecutionDao, executionContextDao);
+        }
+        return jobExplorer;
+    }
+
+    /**
+     * Remove all job instances and executions. Ids are not reused.
+     */
+    public void clear() {
+        executionContextDao.clear();
+        stepExecutionDao.clear();
+        jobExecutionDao.clear();
+        jobInstanceDao.clear();
+    }
+
+    private static Object[] newLocks(int stripes) {
+        Object[] locks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private Object launchLock(String jobName, JobParameters jobParameters) {
+        int hash = jobName.hashCode();
+        for (Map.Entry<String, JobParameter> parameter : jobParameters.getParameters().entrySet()) {
+            if (parameter.getValue().isIdentifying()) {
+                hash += parameter.getKey().hashCode() ^ parameter.getValue().hashCode();
+            }
+        }
+        hash ^= (hash >>> 16);
+        return launchLocks[hash & (launchLocks.length - 1)];
+    }
+
+    private class StripedJobRepository extends SimpleJobRepository {
+
+        StripedJobRepository() {
+            super(jobInstanceDao, jobExecutionDao, stepExecutionDao, executionContextDao);
+        }
+
+        /**
+         * Checks for a running or completed execution and creates the new one under the lock of
+         * the job instance, as the database does with its isolation level on create.
+         */
+        @Override
+        public JobExecution createJobExecution(String jobName, JobParameters jobParameters)
+                throws JobExecutionAlreadyRunningException, JobRestartException, JobInstanceAlreadyCompleteException {
+            Assert.notNull(jobName, "Job name must not be null.");
+            Assert.notNull(jobParameters, "JobParameters must not be null.");
+            synchronized (launchLock(jobName, jobParameters)) {
+                return super.createJobExecution(jobName, jobParameters);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>The in-memory counterpart of a sequence table: hands out 1, 2, 3, ... like a freshly
+ * initialized {@code *_SEQ} table behind the safe mode incrementers, without a round trip.
+ */
+public class InMemoryMaxValueIncrementer implements DataFieldMaxValueIncrementer {
+
+    private final AtomicLong value = new AtomicLong();
+
+    @Override
+    public int nextIntValue() {
+        return (int) nextLongValue();
+    }
+
+    @Override
+    public long nextLongValue() {
+        return this.value.incrementAndGet();
+    }
+
+    @Override
+    public String nextStringValue() {
+        return String.valueOf(nextLongValue());
+    }
+
+    /**
+     * Start over at 1.
+     */
+    public void reset() {
+        this.value.set(0);
+    }
+}
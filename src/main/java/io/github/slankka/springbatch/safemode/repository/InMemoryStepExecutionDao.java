@@ -0,0 +1,186 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.dao.NoSuchObjectException;
+import org.springframework.batch.core.repository.dao.StepExecutionDao;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+import org.springframework.util.Assert;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>A {@link StepExecutionDao} on concurrent maps. Each step execution is kept as an immutable
+ * record of its persistent fields, and read back into a new {@link StepExecution} of the job
+ * execution asking for it, so nothing is shared between callers.
+ */
+public class InMemoryStepExecutionDao implements StepExecutionDao {
+
+    private final ConcurrentMap<Long, StepRecord> steps = new ConcurrentHashMap<>();
+
+    /**
+     * The step execution ids of each job execution, in the order they were saved.
+     */
+    private final ConcurrentMap<Long, Set<Long>> stepsByJobExecution = new ConcurrentHashMap<>();
+
+    private DataFieldMaxValueIncrementer stepExecutionIncrementer = new InMemoryMaxValueIncrementer();
+
+    /**
+     * Set the incrementer for step execution ids. Default is an {@link InMemoryMaxValueIncrementer}.
+     */
+    public void setStepExecutionIncrementer(DataFieldMaxValueIncrementer stepExecutionIncrementer) {
+        this.stepExecutionIncrementer = stepExecutionIncrementer;
+    }
+
+    @Override
+    public void saveStepExecution(StepExecution stepExecution) {
+        validateStepExecution(stepExecution);
+        Assert.isTrue(stepExecution.getId() == null, "StepExecution must not have been saved before");
+        Assert.isTrue(stepExecution.getVersion() == null, "StepExecution must not have been saved before");
+        stepExecution.setId(this.stepExecutionIncrementer.nextLongValue());
+        stepExecution.incrementVersion();
+        this.steps.put(stepExecution.getId(), new StepRecord(stepExecution));
+        this.stepsByJobExecution.computeIfAbsent(stepExecution.getJobExecutionId(),
+                id -> new ConcurrentSkipListSet<>()).add(stepExecution.getId());
+    }
+
+    @Override
+    public void saveStepExecutions(Collection<StepExecution> stepExecutions) {
+        Assert.notNull(stepExecutions, "Attempt to save a null collection of step executions");
+        for (StepExecution stepExecution : stepExecutions) {
+            saveStepExecution(stepExecution);
+        }
+    }
+
+    @Override
+    public void updateStepExecution(StepExecution stepExecution) {
+        validateStepExecution(stepExecution);
+        Long id = stepExecution.getId();
+        Assert.notNull(id, "StepExecution Id cannot be null. StepExecution must saved before it can be updated.");
+        this.steps.compute(id, (key, persisted) -> {
+            if (persisted == null) {
+                throw new NoSuchObjectException("Invalid StepExecution, ID " + id + " not found.");
+            }
+            if (!persisted.version.equals(stepExecution.getVersion())) {
+                throw new OptimisticLockingFailureException("Attempt to update step execution id=" + id +
+                        " with wrong version (" + stepExecution.getVersion() + "), where current version is " +
+                        persisted.version);
+            }
+            stepExecution.incrementVersion();
+            return new StepRecord(stepExecution);
+        });
+    }
+
+    @Override
+    public StepExecution getStepExecution(JobExecution jobExecution, Long stepExecutionId) {
+        StepRecord record = (stepExecutionId != null ? this.steps.get(stepExecutionId) : null);
+        if (record == null || !record.jobExecutionId.equals(jobExecution.getId())) {
+            return null;
+        }
+        return record.toStepExecution(jobExecution);
+    }
+
+    @Override
+    public void addStepExecutions(JobExecution jobExecution) {
+        Set<Long> ids = this.stepsByJobExecution.get(jobExecution.getId());
+        if (ids == null) {
+            return;
+        }
+        for (Long id : ids) {
+            StepRecord record = this.steps.get(id);
+            if (record != null) {
+                record.toStepExecution(jobExecution);
+            }
+        }
+    }
+
+    /**
+     * Remove all step executions.
+     */
+    public void clear() {
+        this.steps.clear();
+        this.stepsByJobExecution.clear();
+    }
+
+    private static void validateStepExecution(StepExecution stepExecution) {
+        Assert.notNull(stepExecution, "stepExecution is required");
+        Assert.notNull(stepExecution.getStepName(), "StepExecution step name cannot be null.");
+        Assert.notNull(stepExecution.getStartTime(), "StepExecution start time cannot be null.");
+        Assert.notNull(stepExecution.getStatus(), "StepExecution status cannot be null.");
+    }
+
+    /**
+     * The persistent fields of a step execution, as the {@code BATCH_STEP_EXECUTION} row would hold them.
+     */
+    private static final class StepRecord {
+
+        final Long id;
+        final Long jobExecutionId;
+        final String stepName;
+        final BatchStatus status;
+        final ExitStatus exitStatus;
+        final Date startTime;
+        final Date endTime;
+        final Date lastUpdated;
+        final int readCount;
+        final int writeCount;
+        final int filterCount;
+        final int commitCount;
+        final int rollbackCount;
+        final int readSkipCount;
+        final int processSkipCount;
+        final int writeSkipCount;
+        final Integer version;
+
+        StepRecord(StepExecution stepExecution) {
+            this.id = stepExecution.getId();
+            this.jobExecutionId = stepExecution.getJobExecutionId();
+            this.stepName = stepExecution.getStepName();
+            this.status = stepExecution.getStatus();
+            this.exitStatus = stepExecution.getExitStatus();
+            this.startTime = stepExecution.getStartTime();
+            this.endTime = stepExecution.getEndTime();
+            this.lastUpdated = stepExecution.getLastUpdated();
+            this.readCount = stepExecution.getReadCount();
+            this.writeCount = stepExecution.getWriteCount();
+            this.filterCount = stepExecution.getFilterCount();
+            this.commitCount = stepExecution.getCommitCount();
+            this.rollbackCount = stepExecution.getRollbackCount();
+            this.readSkipCount = stepExecution.getReadSkipCount();
+            this.processSkipCount = stepExecution.getProcessSkipCount();
+            this.writeSkipCount = stepExecution.getWriteSkipCount();
+            this.version = stepExecution.getVersion();
+        }
+
+        /**
+         * Build a step execution from this record; the constructor adds it to the job execution.
+         */
+        StepExecution toStepExecution(JobExecution jobExecution) {
+            StepExecution stepExecution = new StepExecution(this.stepName, jobExecution, this.id);
+            stepExecution.setStatus(this.status);
+            stepExecution.setExitStatus(this.exitStatus);
+            stepExecution.setStartTime(this.startTime);
+            stepExecution.setEndTime(this.endTime);
+            stepExecution.setLastUpdated(this.lastUpdated);
+            stepExecution.setReadCount(this.readCount);
+            stepExecution.setWriteCount(this.writeCount);
+            stepExecution.setFilterCount(this.filterCount);
+            stepExecution.setCommitCount(this.commitCount);
+            stepExecution.setRollbackCount(this.rollbackCount);
+            stepExecution.setReadSkipCount(this.readSkipCount);
+            stepExecution.setProcessSkipCount(this.processSkipCount);
+            stepExecution.setWriteSkipCount(this.writeSkipCount);
+            stepExecution.setVersion(this.version);
+            return stepExecution;
+        }
+    }
+}
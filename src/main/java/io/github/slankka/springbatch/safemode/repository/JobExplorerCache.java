@@ -0,0 +1,222 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.batch.core.JobExecution;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>The entries read through by {@link CachingJobExplorer}, shared with the
+ * {@link CacheInvalidatingJobRepository} that evicts them when this JVM writes.
+ * <p>The cache holds at most {@link #setMaxSize max size} entries and evicts the least recently
+ * used first. Job instances and finished job executions never change, so they stay until evicted;
+ * running executions are reloaded after the {@link #setRunningRefreshInterval running refresh
+ * interval}, everything else after the {@link #setTimeToLive time to live}. The expiry also picks
+ * up the writes of other nodes, which the repository of this JVM never sees.
+ */
+public class JobExplorerCache {
+
+    private int maxSize = 1000;
+
+    private long timeToLive = 5000;
+
+    private long runningRefreshInterval = 1000;
+
+    /**
+     * The cached entries in access order; guarded by itself.
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > JobExplorerCache.this.maxSize;
+        }
+    };
+
+    /**
+     * Counts invalidations, so that a load that raced with one is not cached; guarded by {@link #entries}.
+     */
+    private long generation = 0;
+
+    /**
+     * Set the maximum number of cached entries. Default is 1000.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Set the time in milliseconds after which job instance lists, job names, counts and the
+     * executions of an instance are reloaded. Default is 5000.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Set the time in milliseconds after which running job executions, and the set of running
+     * executions of a job, are reloaded. Default is 1000.
+     */
+    public void setRunningRefreshInterval(long runningRefreshInterval) {
+        this.runningRefreshInterval = runningRefreshInterval;
+    }
+
+    /**
+     * Evict the given job execution and everything listing the executions of its job.
+     */
+    public void invalidate(JobExecution jobExecution) {
+        synchronized (this.entries) {
+            this.generation++;
+            this.entries.remove(new Key(Kind.JOB_EXECUTION, null, jobExecution.getId(), 0, 0));
+            if (jobExecution.getJobInstance() != null) {
+                removeJob(jobExecution.getJobInstance().getJobName());
+            }
+        }
+    }
+
+    /**
+     * Evict the job execution with the given id.
+     */
+    public void invalidateJobExecution(Long jobExecutionId) {
+        synchronized (this.entries) {
+            this.generation++;
+            this.entries.remove(new Key(Kind.JOB_EXECUTION, null, jobExecutionId, 0, 0));
+        }
+    }
+
+    /**
+     * Evict everything listing the instances or executions of the given job.
+     */
+    public void invalidateJob(String jobName) {
+        synchronized (this.entries) {
+            this.generation++;
+            removeJob(jobName);
+        }
+    }
+
+    /**
+     * Evict all entries.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.generation++;
+            this.entries.clear();
+        }
+    }
+
+    private void removeJob(String jobName) {
+        this.entries.remove(new Key(Kind.JOB_NAMES, null, null, 0, 0));
+        for (Iterator<Key> it = this.entries.keySet().iterator(); it.hasNext(); ) {
+            if (Objects.equals(jobName, it.next().jobName)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the cached value for the key, or load and cache it.
+     */
+    <T, E extends Exception> T get(Kind kind, String jobName, Long id, int start, int count, Loader<T, E> loader)
+            throws E {
+        Key key = new Key(kind, jobName, id, start, count);
+        long now = System.currentTimeMillis();
+        long generation;
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(key);
+            if (entry != null && now < entry.expiresAt) {
+                @SuppressWarnings("unchecked")
+                T value = (T) entry.value;
+                return value;
+            }
+            generation = this.generation;
+        }
+        T value = loader.load();
+        if (value != null) {
+            long expiresAt = expiresAt(kind, value, now);
+            synchronized (this.entries) {
+                if (generation == this.generation) {
+                    this.entries.put(key, new Entry(value, expiresAt));
+                }
+            }
+        }
+        return value;
+    }
+
+    private long expiresAt(Kind kind, Object value, long now) {
+        switch (kind) {
+            case JOB_INSTANCE:
+                return Long.MAX_VALUE;
+            case JOB_EXECUTION:
+                return (((JobExecution) value).getEndTime() != null ? Long.MAX_VALUE : now + this.runningRefreshInterval);
+            case RUNNING_JOB_EXECUTIONS:
+                return now + this.runningRefreshInterval;
+            default:
+                return now + this.timeToLive;
+        }
+    }
+
+
+    /**
+     * Loads a value on a cache miss.
+     */
+    interface Loader<T, E extends Exception> {
+        T load() throws E;
+    }
+
+    enum Kind {
+        JOB_INSTANCE, JOB_INSTANCES, JOB_INSTANCES_BY_NAME, JOB_INSTANCE_COUNT, JOB_NAMES,
+        JOB_EXECUTION, JOB_EXECUTIONS, RUNNING_JOB_EXECUTIONS
+    }
+
+    private static final class Key {
+
+        final Kind kind;
+
+        final String jobName;
+
+        final Long id;
+
+        final int start;
+
+        final int count;
+
+        Key(Kind kind, String jobName, Long id, int start, int count) {
+            this.kind = kind;
+            this.jobName = jobName;
+            this.id = id;
+            this.start = start;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return (this.kind == key.kind && Objects.equals(this.jobName, key.jobName) &&
+                    Objects.equals(this.id, key.id) && this.start == key.start && this.count == key.count);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.kind, this.jobName, this.id, this.start, this.count);
+        }
+    }
+
+    private static final class Entry {
+
+        final Object value;
+
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
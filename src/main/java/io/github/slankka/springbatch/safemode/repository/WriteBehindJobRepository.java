@@ -0,0 +1,210 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.JobExecutionAlreadyRunningException;
+import org.springframework.batch.core.repository.JobInstanceAlreadyCompleteException;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.JobRestartException;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Coalesces the counter updates a chunk-oriented step makes after every chunk, so that
+ * {@code BATCH_STEP_EXECUTION} is written once every {@link #setFlushChunkCount flush chunk count}
+ * chunks or {@link #setFlushInterval flush interval} instead of once per commit.
+ * <p>The step {@code ExecutionContext}, which holds the restart checkpoint, is still written on
+ * every chunk, in the chunk transaction, so restarts resume exactly where Spring Batch would.
+ * Only the read, write and commit counts of a running step lag behind. An update is always written
+ * right away when the status or exit code changes, the step ends or is told to stop, failure
+ * exceptions were recorded, or the skip or rollback counts changed. A {@code JobOperator.stop}
+ * is noticed at the next written update only.
+ */
+public class WriteBehindJobRepository implements JobRepository {
+
+    private final JobRepository delegate;
+
+    private int flushChunkCount = 10;
+
+    private long flushInterval = 5000;
+
+    /**
+     * What was last written for each running step execution, by step execution id.
+     */
+    private final ConcurrentMap<Long, PendingStep> pendingSteps = new ConcurrentHashMap<>();
+
+    public WriteBehindJobRepository(JobRepository delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Set the number of chunk updates of a step after which the coalesced update is written.
+     * Default is 10; 1 writes every update.
+     */
+    public void setFlushChunkCount(int flushChunkCount) {
+        this.flushChunkCount = flushChunkCount;
+    }
+
+    /**
+     * Set the time in milliseconds after which the coalesced update of a step is written at its
+     * next chunk. Default is 5000.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    @Override
+    public void add(StepExecution stepExecution) {
+        this.delegate.add(stepExecution);
+        track(stepExecution);
+    }
+
+    @Override
+    public void addAll(Collection<StepExecution> stepExecutions) {
+        this.delegate.addAll(stepExecutions);
+        for (StepExecution stepExecution : stepExecutions) {
+            track(stepExecution);
+        }
+    }
+
+    @Override
+    public void update(StepExecution stepExecution) {
+        PendingStep pending = (stepExecution.getId() != null ? this.pendingSteps.get(stepExecution.getId()) : null);
+        if (pending == null) {
+            this.delegate.update(stepExecution);
+            return;
+        }
+        synchronized (pending) {
+            if (!mustFlush(pending, stepExecution)) {
+                pending.deferred++;
+                return;
+            }
+            flush(pending, stepExecution);
+        }
+    }
+
+    /**
+     * Write the step context right away; it holds the restart checkpoint.
+     */
+    @Override
+    public void updateExecutionContext(StepExecution stepExecution) {
+        this.delegate.updateExecutionContext(stepExecution);
+    }
+
+    private void track(StepExecution stepExecution) {
+        if (stepExecution.getId() != null && stepExecution.getEndTime() == null) {
+            this.pendingSteps.put(stepExecution.getId(), new PendingStep(stepExecution));
+        }
+    }
+
+    private boolean mustFlush(PendingStep pending, StepExecution stepExecution) {
+        BatchStatus status = stepExecution.getStatus();
+        return (status != pending.status || status.isUnsuccessful() ||
+                !stepExecution.getExitStatus().getExitCode().equals(pending.exitCode) ||
+                stepExecution.getEndTime() != null || stepExecution.isTerminateOnly() ||
+                !stepExecution.getFailureExceptions().isEmpty() ||
+                failureCount(stepExecution) != pending.failureCount ||
+                pending.deferred + 1 >= this.flushChunkCount ||
+                System.currentTimeMillis() - pending.lastFlush >= this.flushInterval);
+    }
+
+    /**
+     * Write the step execution. A failed write stops tracking the step, so that its next update is
+     * written through again.
+     */
+    private void flush(PendingStep pending, StepExecution stepExecution) {
+        try {
+            this.delegate.update(stepExecution);
+        } catch (RuntimeException e) {
+            this.pendingSteps.remove(stepExecution.getId());
+            throw e;
+        }
+        if (stepExecution.getEndTime() != null) {
+            this.pendingSteps.remove(stepExecution.getId());
+        } else {
+            pending.flushed(stepExecution);
+        }
+    }
+
+    private static int failureCount(StepExecution stepExecution) {
+        return stepExecution.getSkipCount() + stepExecution.getRollbackCount();
+    }
+
+    @Override
+    public boolean isJobInstanceExists(String jobName, JobParameters jobParameters) {
+        return this.delegate.isJobInstanceExists(jobName, jobParameters);
+    }
+
+    @Override
+    public JobInstance createJobInstance(String jobName, JobParameters jobParameters) {
+        return this.delegate.createJobInstance(jobName, jobParameters);
+    }
+
+    @Override
+    public JobExecution createJobExecution(JobInstance jobInstance, JobParameters jobParameters,
+                                           String jobConfigurationLocation) {
+        return this.delegate.createJobExecution(jobInstance, jobParameters, jobConfigurationLocation);
+    }
+
+    @Override
+    public JobExecution createJobExecution(String jobName, JobParameters jobParameters)
+            throws JobExecutionAlreadyRunningException, JobRestartException, JobInstanceAlreadyCompleteException {
+        return this.delegate.createJobExecution(jobName, jobParameters);
+    }
+
+    @Override
+    public void update(JobExecution jobExecution) {
+        this.delegate.update(jobExecution);
+    }
+
+    @Override
+    public void updateExecutionContext(JobExecution jobExecution) {
+        this.delegate.updateExecutionContext(jobExecution);
+    }
+
+    @Override
+    public StepExecution getLastStepExecution(JobInstance jobInstance, String stepName) {
+        return this.delegate.getLastStepExecution(jobInstance, stepName);
+    }
+
+    @Override
+    public int getStepExecutionCount(JobInstance jobInstance, String stepName) {
+        return this.delegate.getStepExecutionCount(jobInstance, stepName);
+    }
+
+    @Override
+    public JobExecution getLastJobExecution(String jobName, JobParameters jobParameters) {
+        return this.delegate.getLastJobExecution(jobName, jobParameters);
+    }
+
+    private static final class PendingStep {
+
+        BatchStatus status;
+
+        String exitCode;
+
+        int failureCount;
+
+        long lastFlush;
+
+        int deferred;
+
+        PendingStep(StepExecution stepExecution) {
+            flushed(stepExecution);
+        }
+
+        void flushed(StepExecution stepExecution) {
+            this.status = stepExecution.getStatus();
+            this.exitCode = stepExecution.getExitStatus().getExitCode();
+            this.failureCount = failureCount(stepExecution);
+            this.lastFlush = System.currentTimeMillis();
+            this.deferred = 0;
+        }
+    }
+}
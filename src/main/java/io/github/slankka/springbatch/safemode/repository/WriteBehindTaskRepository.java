@@ -0,0 +1,281 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.task.configuration.TaskProperties;
+import org.springframework.cloud.task.repository.TaskExecution;
+import org.springframework.cloud.task.repository.TaskRepository;
+import org.springframework.cloud.task.repository.support.SimpleTaskRepository;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Writes the completion of task executions to {@code TASK_EXECUTION} in JDBC batches, every
+ * {@link #setFlushInterval flush interval} or {@link #setBatchSize batch size} completions,
+ * instead of one update and one read per task.
+ * <p>Creating and starting a task execution is written right away through the delegate, so a
+ * task that crashes still leaves its start record. A completion waiting for the next flush is
+ * lost in a crash, and the task then shows as still running, as if it had crashed before it
+ * ended. Until the flush, a {@code TaskExplorer} also still sees the task running.
+ * <p>Only executions started through this repository are deferred; completing any other
+ * execution is written through. Call {@link #destroy()} on shutdown to write what is pending.
+ */
+public class WriteBehindTaskRepository implements TaskRepository, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(WriteBehindTaskRepository.class);
+
+    private static final String UPDATE_TASK_EXECUTION = "UPDATE %PREFIX%EXECUTION set END_TIME = ?, EXIT_CODE = ?, " +
+            "EXIT_MESSAGE = ?, ERROR_MESSAGE = ?, LAST_UPDATED = ? where TASK_EXECUTION_ID = ?";
+
+    private final TaskRepository delegate;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final String updateSql;
+
+    private int batchSize = 100;
+
+    private long flushInterval = 1000;
+
+    private int maxExitMessageSize = SimpleTaskRepository.MAX_EXIT_MESSAGE_SIZE;
+
+    private int maxErrorMessageSize = SimpleTaskRepository.MAX_ERROR_MESSAGE_SIZE;
+
+    /**
+     * The executions started through this repository and not completed yet, by execution id.
+     */
+    private final ConcurrentMap<Long, TaskExecution> started = new ConcurrentHashMap<>();
+
+    private final Queue<TaskExecution> completed = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger completedCount = new AtomicInteger();
+
+    private ScheduledExecutorService flusher;
+
+    private volatile boolean closed;
+
+    public WriteBehindTaskRepository(TaskRepository delegate, DataSource dataSource) {
+        this(delegate, dataSource, TaskProperties.DEFAULT_TABLE_PREFIX);
+    }
+
+    public WriteBehindTaskRepository(TaskRepository delegate, DataSource dataSource, String tablePrefix) {
+        Assert.notNull(delegate, "A TaskRepository is required");
+        Assert.notNull(dataSource, "A DataSource is required");
+        Assert.hasText(tablePrefix, "tablePrefix must not be null nor empty");
+        this.delegate = delegate;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.updateSql = UPDATE_TASK_EXECUTION.replace("%PREFIX%", tablePrefix);
+    }
+
+    /**
+     * Set the number of pending completions that triggers a flush before the interval is up,
+     * and the most updates sent in one JDBC batch. Default is 100.
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the time in milliseconds between flushes of pending completions. Default is 1000.
+     */
+    public void setFlushInterval(long flushInterval) {
+        Assert.isTrue(flushInterval > 0, "flushInterval must be positive");
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @see SimpleTaskRepository#setMaxExitMessageSize
+     */
+    public void setMaxExitMessageSize(int maxExitMessageSize) {
+        this.maxExitMessageSize = maxExitMessageSize;
+    }
+
+    /**
+     * @see SimpleTaskRepository#setMaxErrorMessageSize
+     */
+    public void setMaxErrorMessageSize(int maxErrorMessageSize) {
+        this.maxErrorMessageSize = maxErrorMessageSize;
+    }
+
+    @Override
+    public TaskExecution createTaskExecution(TaskExecution taskExecution) {
+        TaskExecution created = this.delegate.createTaskExecution(taskExecution);
+        if (created.getStartTime() != null) {
+            track(created);
+        }
+        return created;
+    }
+
+    @Override
+    public TaskExecution createTaskExecution(String name) {
+        return this.delegate.createTaskExecution(name);
+    }
+
+    @Override
+    public TaskExecution createTaskExecution() {
+        return this.delegate.createTaskExecution();
+    }
+
+    @Override
+    public TaskExecution startTaskExecution(long executionid, String taskName, Date startTime,
+                                            List<String> arguments, String externalExecutionId) {
+        return track(this.delegate.startTaskExecution(executionid, taskName, startTime, arguments, externalExecutionId));
+    }
+
+    @Override
+    public TaskExecution startTaskExecution(long executionid, String taskName, Date startTime,
+                                            List<String> arguments, String externalExecutionId,
+                                            Long parentExecutionId) {
+        return track(this.delegate.startTaskExecution(executionid, taskName, startTime, arguments,
+                externalExecutionId, parentExecutionId));
+    }
+
+    @Override
+    public void updateExternalExecutionId(long executionid, String externalExecutionId) {
+        this.delegate.updateExternalExecutionId(executionid, externalExecutionId);
+        TaskExecution taskExecution = this.started.get(executionid);
+        if (taskExecution != null) {
+            taskExecution.setExternalExecutionId(externalExecutionId);
+        }
+    }
+
+    @Override
+    public TaskExecution completeTaskExecution(long executionId, Integer exitCode, Date endTime, String exitMessage) {
+        return completeTaskExecution(executionId, exitCode, endTime, exitMessage, null);
+    }
+
+    /**
+     * Queue the completion of a task execution started through this repository, and return the
+     * execution as it will be written.
+     */
+    @Override
+    public TaskExecution completeTaskExecution(long executionId, Integer exitCode, Date endTime,
+                                               String exitMessage, String errorMessage) {
+        Assert.notNull(exitCode, "exitCode should not be null");
+        Assert.notNull(endTime, "TaskExecution endTime cannot be null.");
+        TaskExecution taskExecution = (this.closed ? null : this.started.remove(executionId));
+        if (taskExecution == null) {
+            return this.delegate.completeTaskExecution(executionId, exitCode, endTime, exitMessage, errorMessage);
+        }
+        TaskExecution completion = new TaskExecution(executionId, exitCode, taskExecution.getTaskName(),
+                taskExecution.getStartTime(), endTime, trimMessage(exitMessage, this.maxExitMessageSize),
+                taskExecution.getArguments(), trimMessage(errorMessage, this.maxErrorMessageSize),
+                taskExecution.getExternalExecutionId(), taskExecution.getParentExecutionId());
+        this.completed.add(completion);
+        int pending = this.completedCount.incrementAndGet();
+        if (this.closed) {
+            flush();
+        } else if (pending >= this.batchSize) {
+            try {
+                this.flusher.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                flush();
+            }
+        }
+        return completion;
+    }
+
+    /**
+     * Write all pending completions, {@link #setBatchSize batch size} updates per JDBC batch.
+     * A batch that fails is queued again for the next flush.
+     */
+    public synchronized void flush() {
+        List<TaskExecution> batch = new ArrayList<>(this.batchSize);
+        TaskExecution completion;
+        while ((completion = this.completed.poll()) != null) {
+            this.completedCount.decrementAndGet();
+            batch.add(completion);
+            if (batch.size() == this.batchSize) {
+                write(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    /**
+     * Stop deferring completions, and write the pending ones.
+     */
+    @Override
+    public void destroy() {
+        this.closed = true;
+        synchronized (this) {
+            if (this.flusher != null) {
+                this.flusher.shutdown();
+            }
+        }
+        flush();
+    }
+
+    private TaskExecution track(TaskExecution taskExecution) {
+        if (!this.closed) {
+            startFlusher();
+            this.started.put(taskExecution.getExecutionId(), taskExecution);
+        }
+        return taskExecution;
+    }
+
+    private synchronized void startFlusher() {
+        if (this.flusher == null) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "task-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flusher.scheduleWithFixedDelay(this::flushQuietly, this.flushInterval, this.flushInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.warn("Could not write the completion of task executions, retrying at the next flush", e);
+        }
+    }
+
+    private void write(List<TaskExecution> batch) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<Object[]> updates = new ArrayList<>(batch.size());
+        for (TaskExecution completion : batch) {
+            updates.add(new Object[]{completion.getEndTime(), completion.getExitCode(), completion.getExitMessage(),
+                    completion.getErrorMessage(), now, completion.getExecutionId()});
+        }
+        try {
+            this.jdbcTemplate.batchUpdate(this.updateSql, updates, new int[]{Types.TIMESTAMP, Types.INTEGER,
+                    Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP, Types.BIGINT});
+        } catch (RuntimeException e) {
+            for (TaskExecution completion : batch) {
+                this.completed.add(completion);
+                this.completedCount.incrementAndGet();
+            }
+            throw e;
+        }
+    }
+
+    private static String trimMessage(String message, int maxSize) {
+        return (message != null && message.length() > maxSize ? message.substring(0, maxSize) : message);
+    }
+}
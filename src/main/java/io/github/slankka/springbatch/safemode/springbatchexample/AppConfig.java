@@ -4,51 +4,118 @@ import org.springframework.batch.core.configuration.BatchConfigurationException;
 import org.springframework.batch.core.launch.JobLauncher;
 import org.springframework.batch.core.launch.support.SimpleJobLauncher;
 import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.core.task.TaskExecutor;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.ClassUtils;
 
 @Configuration
 public class AppConfig {
 
+    private static final String VIRTUAL_THREAD_EXECUTOR =
+            "io.github.slankka.springbatch.safemode.springbatchexample.VirtualThreadTaskExecutor";
+
     @Value("${task.core.pool.size:50}")
     private int taskCorePoolSize;
 
     @Value("${task.max.pool.size:100}")
     private int taskMaxPoolSize;
 
+    @Value("${task.queue.capacity:" + Integer.MAX_VALUE + "}")
+    private int taskQueueCapacity;
+
+    @Value("${task.back-pressure.policy:ABORT}")
+    private BackPressurePolicy taskBackPressurePolicy;
+
+    @Value("${task.back-pressure.timeout:30000}")
+    private long taskBackPressureTimeout;
+
     @Value("${job.core.pool.size:50}")
     private int jobCorePoolSize;
 
     @Value("${job.max.pool.size:100}")
     private int jobMaxPoolSize;
 
+    @Value("${job.queue.capacity:" + Integer.MAX_VALUE + "}")
+    private int jobQueueCapacity;
+
+    @Value("${job.back-pressure.policy:ABORT}")
+    private BackPressurePolicy jobBackPressurePolicy;
+
+    @Value("${job.back-pressure.timeout:30000}")
+    private long jobBackPressureTimeout;
+
+    /**
+     * {@code pool} for the thread pool above, {@code virtual} for a virtual thread per launch.
+     */
+    @Value("${job.executor.mode:pool}")
+    private String jobExecutorMode;
+
+    @Value("${job.virtual.concurrency-limit:-1}")
+    private int jobVirtualConcurrencyLimit;
+
     @Bean
     public TaskExecutor taskExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        BoundedThreadPoolTaskExecutor executor = new BoundedThreadPoolTaskExecutor();
         executor.setThreadNamePrefix("tsk-Exec-");
         executor.setMaxPoolSize(taskMaxPoolSize);
         executor.setCorePoolSize(taskCorePoolSize);
+        executor.setQueueCapacity(taskQueueCapacity);
+        executor.setBackPressurePolicy(taskBackPressurePolicy);
+        executor.setBackPressureTimeout(taskBackPressureTimeout);
+        return executor;
+    }
+
+    @Bean
+    public TaskExecutor jobLauncherTaskExecutor() {
+        if ("virtual".equals(jobExecutorMode)) {
+            if (!ClassUtils.isPresent(VIRTUAL_THREAD_EXECUTOR, getClass().getClassLoader())) {
+                throw new BatchConfigurationException(new IllegalStateException(
+                        "job.executor.mode=virtual needs a build with the java21 profile, running on Java 21 or later"));
+            }
+            SimpleAsyncTaskExecutor executor = (SimpleAsyncTaskExecutor) BeanUtils.instantiateClass(
+                    ClassUtils.getConstructorIfAvailable(
+                            ClassUtils.resolveClassName(VIRTUAL_THREAD_EXECUTOR, getClass().getClassLoader()),
+                            String.class),
+                    "job-Exec-");
+            executor.setConcurrencyLimit(jobVirtualConcurrencyLimit);
+            return executor;
+        }
+        BoundedThreadPoolTaskExecutor executor = new BoundedThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("job-Exec-");
+        executor.setCorePoolSize(jobCorePoolSize);
+        executor.setMaxPoolSize(jobMaxPoolSize);
+        executor.setQueueCapacity(jobQueueCapacity);
+        executor.setBackPressurePolicy(jobBackPressurePolicy);
+        executor.setBackPressureTimeout(jobBackPressureTimeout);
         return executor;
     }
 
     @Bean("appAsyncJobLauncher")
-    public JobLauncher jobLauncher(JobRepository jobRepository) {
-        ThreadPoolTaskExecutor simpleAsyncTaskExecutor = new ThreadPoolTaskExecutor();
-        simpleAsyncTaskExecutor.setThreadNamePrefix("job-Exec-");
-        simpleAsyncTaskExecutor.setCorePoolSize(jobCorePoolSize);
-        simpleAsyncTaskExecutor.setMaxPoolSize(jobMaxPoolSize);
-        simpleAsyncTaskExecutor.afterPropertiesSet();
+    public JobLauncher jobLauncher(JobRepository jobRepository,
+                                   @Qualifier("jobLauncherTaskExecutor") TaskExecutor jobLauncherTaskExecutor) {
         try {
             SimpleJobLauncher jobLauncher = new SimpleJobLauncher();
             jobLauncher.setJobRepository(jobRepository);
-            jobLauncher.setTaskExecutor(simpleAsyncTaskExecutor);
+            jobLauncher.setTaskExecutor(jobLauncherTaskExecutor);
             jobLauncher.afterPropertiesSet();
             return jobLauncher;
         } catch (Exception e) {
             throw new BatchConfigurationException(e);
         }
     }
+
+    /**
+     * Publishes the executor metrics if Micrometer is on the class path.
+     */
+    @Bean
+    @Conditional(ExecutorMetricsBinder.MicrometerPresent.class)
+    public ExecutorMetricsBinder executorMetricsBinder() {
+        return new ExecutorMetricsBinder();
+    }
 }
@@ -0,0 +1,25 @@
+package io.github.slankka.springbatch.safemode.springbatchexample;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>What a {@link BoundedThreadPoolTaskExecutor} does with a task once all threads are busy and
+ * its queue is full.
+ */
+public enum BackPressurePolicy {
+
+    /**
+     * Reject the task. {@code SimpleJobLauncher} marks the job execution {@code FAILED}, a
+     * partitioned step fails.
+     */
+    ABORT,
+
+    /**
+     * Run the task on the submitting thread, which slows the submitter down to the pace of the pool.
+     */
+    CALLER_RUNS,
+
+    /**
+     * Block the submitting thread until the queue has room, rejecting the task after the timeout.
+     */
+    BLOCK
+}
@@ -0,0 +1,120 @@
+package io.github.slankka.springbatch.safemode.springbatchexample;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>A {@link ThreadPoolTaskExecutor} applying a {@link BackPressurePolicy} once its queue is
+ * full, and counting how often it did.
+ * <p>With a bounded {@link #setQueueCapacity queue capacity}, the pool starts {@code corePoolSize}
+ * threads, then queues, then grows up to {@code maxPoolSize} threads; only then the policy applies.
+ * With the default unbounded queue the pool never grows past {@code corePoolSize}, which is
+ * logged as a warning when a larger {@code maxPoolSize} is set.
+ */
+public class BoundedThreadPoolTaskExecutor extends ThreadPoolTaskExecutor {
+
+    private static final long serialVersionUID = 1L;
+
+    private int queueCapacity = Integer.MAX_VALUE;
+
+    private BackPressurePolicy backPressurePolicy = BackPressurePolicy.ABORT;
+
+    private long backPressureTimeout = 30000;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    @Override
+    public void setQueueCapacity(int queueCapacity) {
+        super.setQueueCapacity(queueCapacity);
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Set what happens to a task once the pool and the queue are full. Default is
+     * {@link BackPressurePolicy#ABORT}.
+     */
+    public void setBackPressurePolicy(BackPressurePolicy backPressurePolicy) {
+        this.backPressurePolicy = backPressurePolicy;
+    }
+
+    /**
+     * Set how long in milliseconds {@link BackPressurePolicy#BLOCK} waits for room in the queue
+     * before rejecting the task. Default is 30000.
+     */
+    public void setBackPressureTimeout(long backPressureTimeout) {
+        this.backPressureTimeout = backPressureTimeout;
+    }
+
+    public BackPressurePolicy getBackPressurePolicy() {
+        return this.backPressurePolicy;
+    }
+
+    /**
+     * Return the number of tasks rejected so far.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * Return the number of tasks so far that were run on, or had to wait in, the submitting thread.
+     */
+    public long getThrottledCount() {
+        return this.throttledCount.get();
+    }
+
+    @Override
+    protected ExecutorService initializeExecutor(ThreadFactory threadFactory,
+                                                 RejectedExecutionHandler rejectedExecutionHandler) {
+        if (this.queueCapacity == Integer.MAX_VALUE && getMaxPoolSize() > getCorePoolSize()) {
+            logger.warn("Executor '" + getThreadNamePrefix() + "' has an unbounded queue, so it never grows past " +
+                    getCorePoolSize() + " threads and maxPoolSize " + getMaxPoolSize() + " has no effect; " +
+                    "set a queue capacity to bound it");
+        }
+        return super.initializeExecutor(threadFactory, new BackPressureHandler());
+    }
+
+    private final class BackPressureHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("Executor " + executor + " has been shut down");
+            }
+            switch (backPressurePolicy) {
+                case CALLER_RUNS:
+                    throttledCount.incrementAndGet();
+                    task.run();
+                    return;
+                case BLOCK:
+                    throttledCount.incrementAndGet();
+                    try {
+                        if (executor.getQueue().offer(task, backPressureTimeout, TimeUnit.MILLISECONDS)) {
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        rejectedCount.incrementAndGet();
+                        throw new RejectedExecutionException("Interrupted while waiting for room in " + executor, e);
+                    }
+                    rejectedCount.incrementAndGet();
+                    throw new RejectedExecutionException("No room in " + executor + " after " +
+                            backPressureTimeout + " ms");
+                default:
+                    rejectedCount.incrementAndGet();
+                    throw new RejectedExecutionException("Task " + task + " rejected from " + executor);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.slankka.springbatch.safemode.springbatchexample;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.ClassUtils;
+
+import java.util.Map;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Publishes the pool size, active, queued and completed tasks and the remaining queue capacity
+ * of every {@link ThreadPoolTaskExecutor} bean to the {@link MeterRegistry} bean, if there is one,
+ * as the {@code executor.*} meters tagged with the bean name. For a
+ * {@link BoundedThreadPoolTaskExecutor} it adds {@code executor.rejected} and {@code executor.throttled}.
+ */
+public class ExecutorMetricsBinder implements SmartInitializingSingleton, BeanFactoryAware {
+
+    private ListableBeanFactory beanFactory;
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) {
+        this.beanFactory = (ListableBeanFactory) beanFactory;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        MeterRegistry registry = this.beanFactory.getBeanProvider(MeterRegistry.class).getIfUnique();
+        if (registry == null) {
+            return;
+        }
+        Map<String, ThreadPoolTaskExecutor> executors =
+                this.beanFactory.getBeansOfType(ThreadPoolTaskExecutor.class, false, false);
+        for (Map.Entry<String, ThreadPoolTaskExecutor> entry : executors.entrySet()) {
+            bind(registry, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Publish the meters of an initialized executor under the given name.
+     */
+    public static void bind(MeterRegistry registry, String name, ThreadPoolTaskExecutor executor) {
+        Tags tags = Tags.of("name", name);
+        new ExecutorServiceMetrics(executor.getThreadPoolExecutor(), name, Tags.empty()).bindTo(registry);
+        Gauge.builder("executor.queue.remaining", executor,
+                e -> e.getThreadPoolExecutor().getQueue().remainingCapacity())
+                .tags(tags)
+                .description("The number of tasks the queue can still take")
+                .register(registry);
+        if (executor instanceof BoundedThreadPoolTaskExecutor) {
+            BoundedThreadPoolTaskExecutor bounded = (BoundedThreadPoolTaskExecutor) executor;
+            FunctionCounter.builder("executor.rejected", bounded, BoundedThreadPoolTaskExecutor::getRejectedCount)
+                    .tags(tags)
+                    .description("Tasks rejected because the pool and the queue were full")
+                    .register(registry);
+            FunctionCounter.builder("executor.throttled", bounded, BoundedThreadPoolTaskExecutor::getThrottledCount)
+                    .tags(tags.and("policy", bounded.getBackPressurePolicy().name()))
+                    .description("Tasks run on or held up in the submitting thread because the queue was full")
+                    .register(registry);
+        }
+    }
+
+    /**
+     * Matches if Micrometer is on the class path.
+     */
+    static class MicrometerPresent implements Condition {
+
+        @Override
+        public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+            return ClassUtils.isPresent("io.micrometer.core.instrument.MeterRegistry", context.getClassLoader());
+        }
+    }
+}
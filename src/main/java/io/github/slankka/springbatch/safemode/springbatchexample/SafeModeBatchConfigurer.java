@@ -1,25 +1,36 @@
 package io.github.slankka.springbatch.safemode.springbatchexample;
 
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerRegistry;
 import io.github.slankka.springbatch.safemode.patch.SafeModeMysqlIncrementFactory;
+import io.github.slankka.springbatch.safemode.patch.SequenceIncrementerListener;
+import io.github.slankka.springbatch.safemode.patch.SequenceWarmUp;
+import io.github.slankka.springbatch.safemode.repository.BinaryExecutionContextSerializer;
+import io.github.slankka.springbatch.safemode.repository.CacheInvalidatingJobRepository;
+import io.github.slankka.springbatch.safemode.repository.CachingJobExplorer;
+import io.github.slankka.springbatch.safemode.repository.InMemoryJobRepositoryFactory;
+import io.github.slankka.springbatch.safemode.repository.JobExplorerCache;
+import io.github.slankka.springbatch.safemode.repository.WriteBehindJobRepository;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.batch.core.configuration.BatchConfigurationException;
 import org.springframework.batch.core.configuration.annotation.BatchConfigurer;
 import org.springframework.batch.core.explore.JobExplorer;
 import org.springframework.batch.core.explore.support.JobExplorerFactoryBean;
-import org.springframework.batch.core.explore.support.MapJobExplorerFactoryBean;
 import org.springframework.batch.core.launch.JobLauncher;
+import org.springframework.batch.core.launch.support.SimpleJobLauncher;
+import org.springframework.batch.core.repository.ExecutionContextSerializer;
 import org.springframework.batch.core.repository.JobRepository;
 import org.springframework.batch.core.repository.support.JobRepositoryFactoryBean;
-import org.springframework.batch.core.repository.support.MapJobRepositoryFactoryBean;
 import org.springframework.batch.support.transaction.ResourcelessTransactionManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.PlatformTransactionManager;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
 
 @Component
@@ -30,6 +41,21 @@ public class SafeModeBatchConfigurer implements BatchConfigurer {
     private JobRepository jobRepository;
     private JobLauncher jobLauncher;
     private JobExplorer jobExplorer;
+    private SequenceIncrementerListener incrementerListener;
+    private SafeModeMysqlIncrementFactory incrementerFactory;
+    private boolean jobExplorerCacheEnabled = false;
+    private int jobExplorerCacheSize = 1000;
+    private long jobExplorerCacheTtl = 5000;
+    private long jobExplorerCacheRunningRefresh = 1000;
+    private JobExplorerCache jobExplorerCache;
+    private boolean writeBehindEnabled = false;
+    private int writeBehindFlushChunks = 10;
+    private long writeBehindFlushInterval = 5000;
+    private boolean binaryContextEnabled = false;
+    private int binaryContextCompressionThreshold = 2500;
+    private ExecutionContextSerializer executionContextSerializer;
+    private int inMemoryConcurrency = 100;
+    private String sequenceWarmUp = "none";
 
 
     protected SafeModeBatchConfigurer() {
@@ -42,6 +68,16 @@ public class SafeModeBatchConfigurer implements BatchConfigurer {
         setDataSource(dataSource);
     }
 
+    /**
+     * Configures the given DataSource with a synchronous {@link SimpleJobLauncher}, as the
+     * Spring Boot auto-configuration does.
+     *
+     * @param dataSource
+     */
+    public SafeModeBatchConfigurer(DataSource dataSource) {
+        setDataSource(dataSource);
+    }
+
     /**
      * Sets the dataSource.  If the {@link DataSource} has been set once, all future
      * values are passed are ignored (to prevent {@code}@Autowired{@code} from overwriting
@@ -62,6 +98,150 @@ public class SafeModeBatchConfigurer implements BatchConfigurer {
     }
 
 
+    /**
+     * Sets the listener observing the sequence incrementers, for example a
+     * {@link io.github.slankka.springbatch.safemode.patch.MicrometerSequenceIncrementerListener}.
+     *
+     * @param incrementerListener
+     */
+    @Autowired(required = false)
+    public void setIncrementerListener(SequenceIncrementerListener incrementerListener) {
+        this.incrementerListener = incrementerListener;
+    }
+
+    /**
+     * Sets the factory of the sequence incrementers, for example one configured from the
+     * {@code spring.batch.safemode.*} properties. By default a factory with the settings of
+     * this configurer is created.
+     *
+     * @param incrementerFactory
+     */
+    @Autowired(required = false)
+    public void setIncrementerFactory(SafeModeMysqlIncrementFactory incrementerFactory) {
+        this.incrementerFactory = incrementerFactory;
+    }
+
+    /**
+     * Sets whether the {@link JobExplorer} caches what it reads, for dashboards polling job
+     * state. Writes through the {@link JobRepository} of this configurer evict the cache.
+     *
+     * @param jobExplorerCacheEnabled
+     * @see CachingJobExplorer
+     */
+    @Value("${job.explorer.cache.enabled:false}")
+    public void setJobExplorerCacheEnabled(boolean jobExplorerCacheEnabled) {
+        this.jobExplorerCacheEnabled = jobExplorerCacheEnabled;
+    }
+
+    /**
+     * Sets the maximum number of entries of the {@link JobExplorer} cache.
+     *
+     * @param jobExplorerCacheSize
+     */
+    @Value("${job.explorer.cache.size:1000}")
+    public void setJobExplorerCacheSize(int jobExplorerCacheSize) {
+        this.jobExplorerCacheSize = jobExplorerCacheSize;
+    }
+
+    /**
+     * Sets the time in milliseconds after which cached job instance lists, job names and counts
+     * are reloaded.
+     *
+     * @param jobExplorerCacheTtl
+     */
+    @Value("${job.explorer.cache.ttl:5000}")
+    public void setJobExplorerCacheTtl(long jobExplorerCacheTtl) {
+        this.jobExplorerCacheTtl = jobExplorerCacheTtl;
+    }
+
+    /**
+     * Sets the time in milliseconds after which cached running job executions are reloaded.
+     *
+     * @param jobExplorerCacheRunningRefresh
+     */
+    @Value("${job.explorer.cache.running-refresh:1000}")
+    public void setJobExplorerCacheRunningRefresh(long jobExplorerCacheRunningRefresh) {
+        this.jobExplorerCacheRunningRefresh = jobExplorerCacheRunningRefresh;
+    }
+
+    /**
+     * Sets whether the {@link JobRepository} coalesces the step counters written after every
+     * chunk. The step execution context, and so the restart checkpoint, is still written per chunk.
+     *
+     * @param writeBehindEnabled
+     * @see WriteBehindJobRepository
+     */
+    @Value("${job.repository.write-behind.enabled:false}")
+    public void setWriteBehindEnabled(boolean writeBehindEnabled) {
+        this.writeBehindEnabled = writeBehindEnabled;
+    }
+
+    /**
+     * Sets the number of chunks after which coalesced step progress is written.
+     *
+     * @param writeBehindFlushChunks
+     */
+    @Value("${job.repository.write-behind.flush-chunks:10}")
+    public void setWriteBehindFlushChunks(int writeBehindFlushChunks) {
+        this.writeBehindFlushChunks = writeBehindFlushChunks;
+    }
+
+    /**
+     * Sets the time in milliseconds after which coalesced step progress is written at the next chunk.
+     *
+     * @param writeBehindFlushInterval
+     */
+    @Value("${job.repository.write-behind.flush-interval:5000}")
+    public void setWriteBehindFlushInterval(long writeBehindFlushInterval) {
+        this.writeBehindFlushInterval = writeBehindFlushInterval;
+    }
+
+    /**
+     * Sets whether execution contexts are written in the compact binary format. Contexts
+     * written before in JSON are still read.
+     *
+     * @param binaryContextEnabled
+     * @see BinaryExecutionContextSerializer
+     */
+    @Value("${job.repository.binary-context.enabled:false}")
+    public void setBinaryContextEnabled(boolean binaryContextEnabled) {
+        this.binaryContextEnabled = binaryContextEnabled;
+    }
+
+    /**
+     * Sets the size in bytes from which binary execution contexts are deflated.
+     *
+     * @param binaryContextCompressionThreshold
+     */
+    @Value("${job.repository.binary-context.compression-threshold:2500}")
+    public void setBinaryContextCompressionThreshold(int binaryContextCompressionThreshold) {
+        this.binaryContextCompressionThreshold = binaryContextCompressionThreshold;
+    }
+
+    /**
+     * Sets the number of jobs launched at the same time, which sizes the launch locks of the
+     * in-memory {@link JobRepository} used without a DataSource.
+     *
+     * @param inMemoryConcurrency
+     * @see InMemoryJobRepositoryFactory
+     */
+    @Value("${job.max.pool.size:100}")
+    public void setInMemoryConcurrency(int inMemoryConcurrency) {
+        this.inMemoryConcurrency = inMemoryConcurrency;
+    }
+
+    /**
+     * Sets whether the first block of every sequence table is reserved while the context starts:
+     * {@code none}, {@code sync} during context refresh, or {@code async} on a background thread.
+     *
+     * @param sequenceWarmUp
+     * @see SequenceWarmUp
+     */
+    @Value("${sequence.warm-up:none}")
+    public void setSequenceWarmUp(String sequenceWarmUp) {
+        this.sequenceWarmUp = sequenceWarmUp;
+    }
+
     @Override
     public JobRepository getJobRepository() {
         return jobRepository;
@@ -86,23 +266,26 @@ public class SafeModeBatchConfigurer implements BatchConfigurer {
     public void initialize() {
         try {
             if (dataSource == null) {
-                logger.warn("No datasource was provided...using a Map based JobRepository");
+                logger.warn("No datasource was provided...using an in-memory JobRepository");
 
                 if (getTransactionManager() == null) {
                     logger.warn("No transaction manager was provided, using a ResourcelessTransactionManager");
                     this.transactionManager = new ResourcelessTransactionManager();
                 }
 
-                MapJobRepositoryFactoryBean jobRepositoryFactory = new MapJobRepositoryFactoryBean(getTransactionManager());
-                jobRepositoryFactory.afterPropertiesSet();
-                this.jobRepository = jobRepositoryFactory.getObject();
-
-                MapJobExplorerFactoryBean jobExplorerFactory = new MapJobExplorerFactoryBean(jobRepositoryFactory);
-                jobExplorerFactory.afterPropertiesSet();
-                this.jobExplorer = jobExplorerFactory.getObject();
+                InMemoryJobRepositoryFactory jobRepositoryFactory = new InMemoryJobRepositoryFactory();
+                jobRepositoryFactory.setConcurrency(inMemoryConcurrency);
+                this.jobRepository = jobRepositoryFactory.getJobRepository();
+                this.jobExplorer = jobRepositoryFactory.getJobExplorer();
             } else {
+                SafeModeIncrementerRegistry.retain(dataSource);
                 this.jobRepository = createJobRepository();
                 this.jobExplorer = createJobExplorer();
+                SequenceWarmUp.run(dataSource, sequenceWarmUp);
+            }
+
+            if (jobLauncher == null) {
+                this.jobLauncher = createJobLauncher();
             }
 
         } catch (Exception e) {
@@ -110,23 +293,89 @@ public class SafeModeBatchConfigurer implements BatchConfigurer {
         }
     }
 
+    /**
+     * Release the sequence incrementers shared through the {@link SafeModeIncrementerRegistry};
+     * the last configurer on the DataSource destroys them, including their hi/lo leases.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (dataSource != null) {
+            SafeModeIncrementerRegistry.release(dataSource);
+        }
+    }
+
     /**
      * The key step: change the DefaultMysqlIncreamentFactory to SafeModeMysqlIncreamentFactory
      */
     protected JobRepository createJobRepository() throws Exception {
         JobRepositoryFactoryBean factory = new JobRepositoryFactoryBean();
-        factory.setIncrementerFactory(new SafeModeMysqlIncrementFactory(dataSource));
+        SafeModeMysqlIncrementFactory incrementerFactory = this.incrementerFactory;
+        if (incrementerFactory == null) {
+            incrementerFactory = new SafeModeMysqlIncrementFactory(dataSource);
+            incrementerFactory.setListener(incrementerListener);
+        }
+        factory.setIncrementerFactory(incrementerFactory);
         factory.setDataSource(dataSource);
+        factory.setDatabaseType(SafeModeIncrementerRegistry.getDatabaseProbe(dataSource).getDatabaseType().name());
         factory.setTransactionManager(getTransactionManager());
+        if (getExecutionContextSerializer() != null) {
+            factory.setSerializer(getExecutionContextSerializer());
+        }
         factory.afterPropertiesSet();
-        return factory.getObject();
+        JobRepository jobRepository = factory.getObject();
+        if (writeBehindEnabled) {
+            WriteBehindJobRepository writeBehind = new WriteBehindJobRepository(jobRepository);
+            writeBehind.setFlushChunkCount(writeBehindFlushChunks);
+            writeBehind.setFlushInterval(writeBehindFlushInterval);
+            jobRepository = writeBehind;
+        }
+        JobExplorerCache cache = getJobExplorerCache();
+        return (cache != null ? new CacheInvalidatingJobRepository(jobRepository, cache) : jobRepository);
+    }
+
+    protected JobLauncher createJobLauncher() throws Exception {
+        SimpleJobLauncher jobLauncher = new SimpleJobLauncher();
+        jobLauncher.setJobRepository(jobRepository);
+        jobLauncher.afterPropertiesSet();
+        return jobLauncher;
     }
 
     protected JobExplorer createJobExplorer() throws Exception {
         JobExplorerFactoryBean jobExplorerFactoryBean = new JobExplorerFactoryBean();
         jobExplorerFactoryBean.setDataSource(this.dataSource);
+        if (getExecutionContextSerializer() != null) {
+            jobExplorerFactoryBean.setSerializer(getExecutionContextSerializer());
+        }
         jobExplorerFactoryBean.afterPropertiesSet();
-        return jobExplorerFactoryBean.getObject();
+        JobExplorerCache cache = getJobExplorerCache();
+        return (cache != null ? new CachingJobExplorer(jobExplorerFactoryBean.getObject(), cache) :
+                jobExplorerFactoryBean.getObject());
+    }
+
+    /**
+     * The cache shared by the {@link JobExplorer} and the {@link JobRepository}, if enabled.
+     */
+    protected JobExplorerCache getJobExplorerCache() {
+        if (jobExplorerCacheEnabled && jobExplorerCache == null) {
+            jobExplorerCache = new JobExplorerCache();
+            jobExplorerCache.setMaxSize(jobExplorerCacheSize);
+            jobExplorerCache.setTimeToLive(jobExplorerCacheTtl);
+            jobExplorerCache.setRunningRefreshInterval(jobExplorerCacheRunningRefresh);
+        }
+        return jobExplorerCache;
+    }
+
+    /**
+     * The serializer shared by the {@link JobRepository} and the {@link JobExplorer}, if the
+     * binary format is enabled; otherwise the Spring Batch default applies.
+     */
+    protected ExecutionContextSerializer getExecutionContextSerializer() {
+        if (binaryContextEnabled && executionContextSerializer == null) {
+            BinaryExecutionContextSerializer serializer = new BinaryExecutionContextSerializer();
+            serializer.setCompressionThreshold(binaryContextCompressionThreshold);
+            executionContextSerializer = serializer;
+        }
+        return executionContextSerializer;
     }
 
-}
\ No newline at end of file
+}
@@ -1,11 +1,18 @@
 package io.github.slankka.springbatch.safemode.springcloudtaskexample;
 
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerRegistry;
+import io.github.slankka.springbatch.safemode.patch.SafeModeMysqlIncrementFactory;
+import io.github.slankka.springbatch.safemode.patch.SequenceWarmUp;
+import io.github.slankka.springbatch.safemode.repository.WriteBehindTaskRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.task.configuration.DefaultTaskConfigurer;
 import org.springframework.cloud.task.repository.TaskRepository;
 import org.springframework.cloud.task.repository.support.SimpleTaskRepository;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
 
 @Component
@@ -13,6 +20,12 @@ public class SafeModelTaskConfigurer extends DefaultTaskConfigurer {
 
     private TaskRepository taskRepository;
     private DataSource dataSource;
+    private String tablePrefix;
+    private SafeTaskExecutionDaoFactoryBean safeTaskExecutionDaoFactoryBean;
+    private boolean writeBehindEnabled = false;
+    private int writeBehindBatchSize = 100;
+    private long writeBehindFlushInterval = 1000;
+    private String sequenceWarmUp = "none";
 
     public SafeModelTaskConfigurer() {
         super();
@@ -30,21 +43,134 @@ public class SafeModelTaskConfigurer extends DefaultTaskConfigurer {
                                    ApplicationContext context) {
         super(dataSource, tablePrefix, context);
         this.dataSource = dataSource;
-
-        SafeTaskExecutionDaoFactoryBean safeTaskExecutionDaoFactoryBean;
+        this.tablePrefix = tablePrefix;
 
         if (this.dataSource != null) {
+            SafeModeIncrementerRegistry.retain(this.dataSource);
             safeTaskExecutionDaoFactoryBean = new
                     SafeTaskExecutionDaoFactoryBean(this.dataSource, tablePrefix);
         } else {
             safeTaskExecutionDaoFactoryBean = new SafeTaskExecutionDaoFactoryBean();
         }
+    }
+
+    /**
+     * Sets the number of task execution IDs reserved from {@code TASK_SEQ} at a time, 0 to keep
+     * the cache size of the incrementer factory.
+     *
+     * @param taskIdBlockSize
+     * @see SafeTaskExecutionDaoFactoryBean#setTaskIdBlockSize
+     */
+    @Value("${task.repository.id-block-size:0}")
+    public void setTaskIdBlockSize(int taskIdBlockSize) {
+        if (this.safeTaskExecutionDaoFactoryBean != null) {
+            this.safeTaskExecutionDaoFactoryBean.setTaskIdBlockSize(taskIdBlockSize);
+        }
+    }
+
+    /**
+     * Sets the factory of the {@code TASK_SEQ} incrementer, for example one configured from the
+     * {@code spring.batch.safemode.*} properties.
+     *
+     * @param incrementerFactory
+     * @see SafeTaskExecutionDaoFactoryBean#setIncrementerFactory
+     */
+    @Autowired(required = false)
+    public void setIncrementerFactory(SafeModeMysqlIncrementFactory incrementerFactory) {
+        if (this.safeTaskExecutionDaoFactoryBean != null) {
+            this.safeTaskExecutionDaoFactoryBean.setIncrementerFactory(incrementerFactory);
+        }
+    }
+
+    /**
+     * Sets whether task completions are written in periodic JDBC batches. Start records are
+     * still written right away.
+     *
+     * @param writeBehindEnabled
+     * @see WriteBehindTaskRepository
+     */
+    @Value("${task.repository.write-behind.enabled:false}")
+    public void setWriteBehindEnabled(boolean writeBehindEnabled) {
+        this.writeBehindEnabled = writeBehindEnabled;
+    }
+
+    /**
+     * Sets the number of pending task completions written in one batch.
+     *
+     * @param writeBehindBatchSize
+     */
+    @Value("${task.repository.write-behind.batch-size:100}")
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
 
-        this.taskRepository = new SimpleTaskRepository(safeTaskExecutionDaoFactoryBean);
+    /**
+     * Sets the time in milliseconds between writes of pending task completions.
+     *
+     * @param writeBehindFlushInterval
+     */
+    @Value("${task.repository.write-behind.flush-interval:1000}")
+    public void setWriteBehindFlushInterval(long writeBehindFlushInterval) {
+        this.writeBehindFlushInterval = writeBehindFlushInterval;
+    }
+
+    /**
+     * Sets whether the first block of {@code TASK_SEQ}, and of any other sequence table registered
+     * by then, is reserved when the {@link TaskRepository} is created: {@code none}, {@code sync}
+     * or {@code async} on a background thread.
+     *
+     * @param sequenceWarmUp
+     * @see SequenceWarmUp
+     */
+    @Value("${sequence.warm-up:none}")
+    public void setSequenceWarmUp(String sequenceWarmUp) {
+        this.sequenceWarmUp = sequenceWarmUp;
     }
 
     @Override
-    public TaskRepository getTaskRepository() {
+    public synchronized TaskRepository getTaskRepository() {
+        if (this.taskRepository == null && this.safeTaskExecutionDaoFactoryBean != null) {
+            TaskRepository taskRepository = new SimpleTaskRepository(this.safeTaskExecutionDaoFactoryBean);
+            if (this.writeBehindEnabled && this.dataSource != null) {
+                WriteBehindTaskRepository writeBehind = new WriteBehindTaskRepository(taskRepository,
+                        this.dataSource, this.tablePrefix);
+                writeBehind.setBatchSize(this.writeBehindBatchSize);
+                writeBehind.setFlushInterval(this.writeBehindFlushInterval);
+                taskRepository = writeBehind;
+            }
+            this.taskRepository = taskRepository;
+            if (this.dataSource != null && !"none".equalsIgnoreCase(this.sequenceWarmUp)) {
+                warmUp();
+            }
+        }
         return this.taskRepository;
     }
+
+    /**
+     * Create the task DAO, which {@link SimpleTaskRepository} would only do on first use, so that
+     * its incrementer is registered, then warm up the sequences.
+     */
+    private void warmUp() {
+        try {
+            this.safeTaskExecutionDaoFactoryBean.getObject();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        SequenceWarmUp.run(this.dataSource, this.sequenceWarmUp);
+    }
+
+    /**
+     * Write the pending task completions, then release the sequence incrementers shared through
+     * the {@link SafeModeIncrementerRegistry}; the last configurer on the DataSource destroys
+     * them, including their hi/lo leases.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (this.taskRepository instanceof WriteBehindTaskRepository) {
+            ((WriteBehindTaskRepository) this.taskRepository).destroy();
+        }
+        if (this.dataSource != null) {
+            SafeModeIncrementerRegistry.release(this.dataSource);
+        }
+    }
 }
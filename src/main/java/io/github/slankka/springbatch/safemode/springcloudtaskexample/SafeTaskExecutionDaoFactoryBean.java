@@ -1,25 +1,35 @@
 package io.github.slankka.springbatch.safemode.springcloudtaskexample;
 
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerRegistry;
 import io.github.slankka.springbatch.safemode.patch.SafeModeMysqlIncrementFactory;
+import io.github.slankka.springbatch.safemode.patch.SequenceIncrementerListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.cloud.task.configuration.TaskProperties;
 import org.springframework.cloud.task.repository.dao.JdbcTaskExecutionDao;
 import org.springframework.cloud.task.repository.dao.MapTaskExecutionDao;
 import org.springframework.cloud.task.repository.dao.TaskExecutionDao;
-import org.springframework.cloud.task.repository.support.DatabaseType;
-import org.springframework.jdbc.support.MetaDataAccessException;
 import org.springframework.util.Assert;
 
 import javax.sql.DataSource;
 
 public class SafeTaskExecutionDaoFactoryBean implements FactoryBean<TaskExecutionDao> {
 
+    private static final Log logger = LogFactory.getLog(SafeTaskExecutionDaoFactoryBean.class);
+
     private DataSource dataSource;
 
     private TaskExecutionDao dao = null;
 
     private String tablePrefix = TaskProperties.DEFAULT_TABLE_PREFIX;
 
+    private SequenceIncrementerListener incrementerListener;
+
+    private int taskIdBlockSize = 0;
+
+    private SafeModeMysqlIncrementFactory incrementerFactory;
+
     /**
      * Default constructor will result in a Map based TaskExecutionDao.  <b>This is only
      * intended for testing purposes.</b>
@@ -50,8 +60,42 @@ public class SafeTaskExecutionDaoFactoryBean implements FactoryBean<TaskExecutio
         this.dataSource = dataSource;
     }
 
+    /**
+     * Listener observing the task sequence incrementer. Ignored, with a warning, when an
+     * {@link #setIncrementerFactory incrementer factory} is set; the listener of that factory applies.
+     *
+     * @param incrementerListener the listener, {@code null} for none.
+     */
+    public void setIncrementerListener(SequenceIncrementerListener incrementerListener) {
+        this.incrementerListener = incrementerListener;
+    }
+
+    /**
+     * Number of task execution IDs reserved from {@code TASK_SEQ} per refill, so that most task
+     * launches take their ID without a round trip. Unused IDs of a block are skipped when the
+     * process exits. Also applies to {@code TASK_SEQ} of an
+     * {@link #setIncrementerFactory incrementer factory}.
+     *
+     * @param taskIdBlockSize the block size, 1 to reserve every ID on its own, 0 to keep the
+     *                        cache size of the incrementer factory, or 1 without one.
+     */
+    public void setTaskIdBlockSize(int taskIdBlockSize) {
+        this.taskIdBlockSize = taskIdBlockSize;
+    }
+
+    /**
+     * Factory of the task sequence incrementer, for example one configured from the
+     * {@code spring.batch.safemode.*} properties. The {@link #setTaskIdBlockSize task ID block size}
+     * still applies to {@code TASK_SEQ}, the listener of this factory bean does not.
+     *
+     * @param incrementerFactory the factory, {@code null} to create one.
+     */
+    public void setIncrementerFactory(SafeModeMysqlIncrementFactory incrementerFactory) {
+        this.incrementerFactory = incrementerFactory;
+    }
+
     @Override
-    public TaskExecutionDao getObject() throws Exception {
+    public synchronized TaskExecutionDao getObject() throws Exception {
         if (this.dao == null) {
             if (this.dataSource != null) {
                 buildTaskExecutionDao(this.dataSource);
@@ -74,14 +118,24 @@ public class SafeTaskExecutionDaoFactoryBean implements FactoryBean<TaskExecutio
     }
 
     private void buildTaskExecutionDao(DataSource dataSource) {
-        SafeModeMysqlIncrementFactory incrementerFactory = new SafeModeMysqlIncrementFactory(dataSource);
-        this.dao = new JdbcTaskExecutionDao(dataSource, this.tablePrefix);
-        String databaseType;
-        try {
-            databaseType = DatabaseType.fromMetaData(dataSource).name();
-        } catch (MetaDataAccessException e) {
-            throw new IllegalStateException(e);
+        String sequenceName = this.tablePrefix + "SEQ";
+        SafeModeMysqlIncrementFactory incrementerFactory = this.incrementerFactory;
+        if (incrementerFactory == null) {
+            incrementerFactory = new SafeModeMysqlIncrementFactory(dataSource);
+            incrementerFactory.setListener(this.incrementerListener);
+            incrementerFactory.setCacheSize(Math.max(this.taskIdBlockSize, 1));
+        } else {
+            if (this.incrementerListener != null) {
+                logger.warn("Ignoring the incrementer listener of the task DAO for " + sequenceName +
+                        "; the listener of the incrementer factory applies");
+            }
+            if (this.taskIdBlockSize > 0) {
+                incrementerFactory.setCacheSize(sequenceName, this.taskIdBlockSize);
+            }
         }
-        ((JdbcTaskExecutionDao) this.dao).setTaskIncrementer(incrementerFactory.getIncrementer(databaseType, this.tablePrefix + "SEQ"));
+        JdbcTaskExecutionDao dao = new JdbcTaskExecutionDao(dataSource, this.tablePrefix);
+        String databaseType = SafeModeIncrementerRegistry.getDatabaseProbe(dataSource).getDatabaseType().name();
+        dao.setTaskIncrementer(incrementerFactory.getIncrementer(databaseType, sequenceName));
+        this.dao = dao;
     }
 }
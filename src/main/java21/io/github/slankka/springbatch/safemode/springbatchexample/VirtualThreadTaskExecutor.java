@@ -0,0 +1,18 @@
+package io.github.slankka.springbatch.safemode.springbatchexample;
+
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+/**
+ * project: springbatch safemode patch
+ * <br/>Starts a new virtual thread for every task, for launching I/O-bound jobs by the thousands
+ * without a platform thread each. A {@link #setConcurrencyLimit concurrency limit} makes
+ * submitters wait once that many tasks are running.
+ * <p>Only built by the {@code java21} profile; {@link AppConfig} looks it up by name.
+ */
+public class VirtualThreadTaskExecutor extends SimpleAsyncTaskExecutor {
+
+    public VirtualThreadTaskExecutor(String threadNamePrefix) {
+        super(Thread.ofVirtual().name(threadNamePrefix, 1).factory());
+        setThreadNamePrefix(threadNamePrefix);
+    }
+}
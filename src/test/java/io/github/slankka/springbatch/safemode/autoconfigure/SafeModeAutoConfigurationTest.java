@@ -0,0 +1,110 @@
+package io.github.slankka.springbatch.safemode.autoconfigure;
+
+import io.github.slankka.springbatch.safemode.patch.MysqlStandIn;
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerRegistry;
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerStrategy;
+import io.github.slankka.springbatch.safemode.patch.SafeModeMysqlIncrementFactory;
+import io.github.slankka.springbatch.safemode.springbatchexample.SafeModeBatchConfigurer;
+import io.github.slankka.springbatch.safemode.springcloudtaskexample.SafeModelTaskConfigurer;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.batch.core.configuration.annotation.BatchConfigurer;
+import org.springframework.batch.core.configuration.annotation.DefaultBatchConfigurer;
+import org.springframework.cloud.task.configuration.DefaultTaskConfigurer;
+import org.springframework.cloud.task.configuration.TaskConfigurer;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.MapPropertySource;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The auto-configuration registers the safe mode configurers for the single DataSource, and backs
+ * off when the application defines its own.
+ */
+public class SafeModeAutoConfigurationTest {
+
+    private AnnotationConfigApplicationContext context;
+
+    @After
+    public void close() {
+        if (context != null) {
+            context.close();
+        }
+        SafeModeIncrementerRegistry.clear();
+    }
+
+    @Test
+    public void registersTheSafeModeConfigurers() {
+        load(DataSourceConfiguration.class);
+
+        assertTrue(context.getBean(BatchConfigurer.class) instanceof SafeModeBatchConfigurer);
+        assertTrue(context.getBean(TaskConfigurer.class) instanceof SafeModelTaskConfigurer);
+        assertEquals(1, context.getBeansOfType(SafeModeMysqlIncrementFactory.class).size());
+    }
+
+    @Test
+    public void backsOffForConfigurersOfTheApplication() {
+        load(ApplicationConfigurers.class);
+
+        assertSame(context.getBean("applicationBatchConfigurer"), context.getBean(BatchConfigurer.class));
+        assertSame(context.getBean("applicationTaskConfigurer"), context.getBean(TaskConfigurer.class));
+        assertEquals(1, context.getBeansOfType(SafeModeMysqlIncrementFactory.class).size());
+    }
+
+    @Test
+    public void backsOffWhenDisabled() {
+        load(DataSourceConfiguration.class, "spring.batch.safemode.enabled", "false");
+
+        assertTrue(context.getBeansOfType(SafeModeMysqlIncrementFactory.class).isEmpty());
+        assertFalse(context.containsBean("safeModeTaskConfigurer"));
+    }
+
+    @Test
+    public void configuresTheFactoryFromTheProperties() {
+        load(DataSourceConfiguration.class, "spring.batch.safemode.strategy", "BLOCK");
+
+        assertEquals(SafeModeIncrementerStrategy.BLOCK, context.getBean(SafeModeProperties.class).getStrategy());
+    }
+
+    private void load(Class<?> configuration, String... properties) {
+        context = new AnnotationConfigApplicationContext();
+        if (properties.length > 0) {
+            context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test",
+                    Collections.singletonMap(properties[0], properties[1])));
+        }
+        context.register(configuration, SafeModeAutoConfiguration.class);
+        context.refresh();
+    }
+
+    @Configuration
+    static class DataSourceConfiguration {
+
+        @Bean
+        public DataSource dataSource() throws SQLException {
+            return MysqlStandIn.createMariaDb(true);
+        }
+    }
+
+    @Configuration
+    static class ApplicationConfigurers extends DataSourceConfiguration {
+
+        @Bean
+        public BatchConfigurer applicationBatchConfigurer(DataSource dataSource) {
+            return new DefaultBatchConfigurer(dataSource);
+        }
+
+        @Bean
+        public TaskConfigurer applicationTaskConfigurer() {
+            return new DefaultTaskConfigurer();
+        }
+    }
+}
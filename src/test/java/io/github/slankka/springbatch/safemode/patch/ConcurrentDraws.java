@@ -0,0 +1,74 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Draws IDs from several threads at once, all starting together.
+ */
+final class ConcurrentDraws {
+
+    static final int THREADS = 8;
+
+    private ConcurrentDraws() {
+    }
+
+    /**
+     * Run {@code draw} {@code perThread} times on each of {@link #THREADS} threads.
+     *
+     * @return every ID drawn
+     */
+    static List<Long> draw(int perThread, Draw draw) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    List<Long> ids = new ArrayList<>();
+                    for (int i = 0; i < perThread; i++) {
+                        draw.into(ids);
+                    }
+                    return ids;
+                }));
+            }
+            start.countDown();
+            List<Long> ids = new ArrayList<>();
+            for (Future<List<Long>> future : futures) {
+                ids.addAll(future.get(60, TimeUnit.SECONDS));
+            }
+            return ids;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Assert that the IDs are all different and between {@code min} and {@code max}.
+     */
+    static void assertUniqueWithin(List<Long> ids, long min, long max) {
+        assertEquals("duplicate IDs", ids.size(), ids.stream().distinct().count());
+        for (long id : ids) {
+            if (id < min || id > max) {
+                fail("ID " + id + " outside of [" + min + ", " + max + "]");
+            }
+        }
+        assertTrue("no IDs drawn", !ids.isEmpty());
+    }
+
+    @FunctionalInterface
+    interface Draw {
+
+        void into(List<Long> ids) throws Exception;
+    }
+}
@@ -0,0 +1,126 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.batch.support.DatabaseType;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The probe reads the database type, MariaDB version and safe updates setting, and the registry
+ * probes each DataSource once, but again after a failed probe.
+ */
+public class DatabaseProbeTest {
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicBoolean down = new AtomicBoolean();
+
+    private DataSource dataSource;
+
+    @After
+    public void removeProbe() {
+        SafeModeIncrementerRegistry.remove(dataSource);
+    }
+
+    @Test
+    public void readsMariaDbWithSafeUpdates() throws Exception {
+        dataSource = MysqlStandIn.createMariaDb(true);
+
+        DatabaseProbe probe = DatabaseProbe.probe(dataSource);
+
+        assertEquals(DatabaseType.MYSQL, probe.getDatabaseType());
+        assertTrue(probe.isMariaDb());
+        assertEquals(10, probe.getMajorVersion());
+        assertEquals(3, probe.getMinorVersion());
+        assertTrue(probe.supportsSequences());
+        assertTrue(probe.isSafeUpdates());
+    }
+
+    @Test
+    public void readsSafeUpdatesOff() throws Exception {
+        dataSource = MysqlStandIn.createMariaDb(false);
+
+        assertFalse(DatabaseProbe.probe(dataSource).isSafeUpdates());
+    }
+
+    @Test
+    public void mysqlHasNoSequences() throws Exception {
+        dataSource = MysqlStandIn.create();
+
+        DatabaseProbe probe = DatabaseProbe.probe(dataSource);
+
+        assertEquals(DatabaseType.MYSQL, probe.getDatabaseType());
+        assertFalse(probe.isMariaDb());
+        assertFalse(probe.supportsSequences());
+    }
+
+    @Test
+    public void otherDatabasesHaveNoSafeUpdates() {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:probe;DB_CLOSE_DELAY=-1");
+
+        DatabaseProbe probe = DatabaseProbe.probe(dataSource);
+
+        assertEquals(DatabaseType.H2, probe.getDatabaseType());
+        assertFalse(probe.isSafeUpdates());
+    }
+
+    @Test
+    public void probesEachDataSourceOnce() throws Exception {
+        dataSource = counting(MysqlStandIn.create());
+
+        DatabaseProbe first = SafeModeIncrementerRegistry.getDatabaseProbe(dataSource);
+        DatabaseProbe second = SafeModeIncrementerRegistry.getDatabaseProbe(dataSource);
+
+        assertSame(first, second);
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void probesAgainAfterAFailure() throws Exception {
+        dataSource = counting(MysqlStandIn.create());
+        down.set(true);
+        try {
+            SafeModeIncrementerRegistry.getDatabaseProbe(dataSource);
+            fail("expected the probe to fail");
+        } catch (DataAccessResourceFailureException expected) {
+        }
+        down.set(false);
+
+        assertEquals(DatabaseType.MYSQL, SafeModeIncrementerRegistry.getDatabaseProbe(dataSource).getDatabaseType());
+        assertEquals(2, connections.get());
+    }
+
+    /**
+     * Count the connections obtained, and fail to obtain them while {@link #down}.
+     */
+    private DataSource counting(DataSource dataSource) {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getConnection")) {
+                        connections.incrementAndGet();
+                        if (down.get()) {
+                            throw new SQLException("Communications link failure", "08S01");
+                        }
+                    }
+                    try {
+                        return method.invoke(dataSource, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                });
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.THREADS;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.assertUniqueWithin;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.draw;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * IDs drawn concurrently from a sequence are unique and within the blocks taken by {@code nextval},
+ * striped and prefetched alike.
+ */
+public class MariaDbSequenceMaxValueIncrementerTest {
+
+    private static final String SEQUENCE = "TASK_SEQ";
+
+    private static final int INCREMENT = 50;
+
+    private DataSource dataSource;
+
+    private MariaDbSequenceMaxValueIncrementer incrementer;
+
+    @Before
+    public void createSequence() throws Exception {
+        dataSource = MysqlStandIn.create();
+        new JdbcTemplate(dataSource).execute("create sequence " + SEQUENCE + " start with 1 increment by " + INCREMENT);
+        incrementer = new MariaDbSequenceMaxValueIncrementer(dataSource, SEQUENCE);
+        incrementer.setUseNewConnection(true);
+    }
+
+    @After
+    public void destroyIncrementer() {
+        incrementer.destroy();
+    }
+
+    @Test
+    public void concurrentIdsAreUniqueAndTaken() throws Exception {
+        incrementer.afterPropertiesSet();
+
+        List<Long> ids = draw(500, drawn -> drawn.add(incrementer.nextLongValue()));
+
+        assertEquals(THREADS * 500, ids.size());
+        assertUniqueWithin(ids, 1, nextBlock() - 1);
+    }
+
+    @Test
+    public void stripedAndPrefetchedIdsAreUniqueAndTaken() throws Exception {
+        incrementer.setStriped(true);
+        incrementer.setStripeSize(7);
+        incrementer.setPrefetch(true);
+        incrementer.afterPropertiesSet();
+
+        List<Long> ids = draw(500, drawn -> drawn.add(incrementer.nextLongValue()));
+
+        assertUniqueWithin(ids, 1, nextBlock() - 1);
+    }
+
+    private long nextBlock() {
+        return new JdbcTemplate(dataSource).queryForObject("select nextval(" + SEQUENCE + ")", Long.class);
+    }
+}
@@ -0,0 +1,155 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory H2 database in MySQL mode that passes for MySQL, with the sequence tables of the
+ * Spring Batch MySQL schema. {@code last_insert_id(expr)} is emulated per session, and the MariaDB
+ * {@code SEQUENCE} statements are rewritten to their H2 equivalents. A {@link #createMariaDb MariaDB}
+ * stand-in reports a MariaDB version with sequences and the given {@code sql_safe_updates}.
+ */
+public final class MysqlStandIn {
+
+    static final String[] SEQUENCE_TABLES = {"BATCH_JOB_SEQ", "BATCH_JOB_EXECUTION_SEQ", "BATCH_STEP_EXECUTION_SEQ"};
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private static final Map<Integer, Long> LAST_INSERT_IDS = new ConcurrentHashMap<>();
+
+    private static final Pattern LAST_INSERT_ID = Pattern.compile("(?i)last_insert_id\\(");
+
+    private static final Pattern NEXTVAL = Pattern.compile("nextval\\((\\w+)\\)");
+
+    private static final Pattern INCREMENT = Pattern.compile("select increment from (\\w+)");
+
+    private static final String TABLE_TYPE = "from information_schema.TABLES where TABLE_SCHEMA = database()";
+
+    private static final String SAFE_UPDATES = "select @@sql_safe_updates";
+
+    private static final String MARIADB_VERSION = "5.5.5-10.3.12-MariaDB";
+
+    private MysqlStandIn() {
+    }
+
+    /**
+     * Create a new database with the single row sequence tables.
+     */
+    static DataSource create() throws SQLException {
+        return create(null, true);
+    }
+
+    /**
+     * Create a new database with the single row sequence tables that passes for MariaDB 10.3.
+     */
+    public static DataSource createMariaDb(boolean safeUpdates) throws SQLException {
+        return create(MARIADB_VERSION, safeUpdates);
+    }
+
+    private static DataSource create(String productVersion, boolean safeUpdates) throws SQLException {
+        DriverManagerDataSource target = new DriverManagerDataSource("jdbc:h2:mem:standin" +
+                DATABASES.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000");
+        try (Connection con = target.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("create alias MYSQL_LAST_INSERT_ID for \"" + MysqlStandIn.class.getName() + ".lastInsertId\"");
+            for (String table : SEQUENCE_TABLES) {
+                stmt.execute("create table " + table + " (ID BIGINT NOT NULL, UNIQUE_KEY CHAR(1) NOT NULL, " +
+                        "constraint " + table + "_UN unique (UNIQUE_KEY))");
+                stmt.execute("insert into " + table + " (ID, UNIQUE_KEY) values (0, '0')");
+            }
+        }
+        return wrap(target, DataSource.class, productVersion, safeUpdates);
+    }
+
+    /**
+     * The largest value handed out by the sequence table, or by the shard row with the given key.
+     */
+    static long value(DataSource dataSource, String table, String key) {
+        return new JdbcTemplate(dataSource).queryForObject("select ID from " + table + " where UNIQUE_KEY = ?",
+                Long.class, key);
+    }
+
+    /**
+     * {@code last_insert_id(expr)}: remember the value for the session and return it.
+     */
+    public static long lastInsertId(Connection con, long value) throws SQLException {
+        LAST_INSERT_IDS.put(sessionId(con), value);
+        return value;
+    }
+
+    /**
+     * {@code last_insert_id()}: the value last remembered for the session.
+     */
+    public static long lastInsertId(Connection con) throws SQLException {
+        Long value = LAST_INSERT_IDS.get(sessionId(con));
+        return (value != null ? value : 0);
+    }
+
+    private static int sessionId(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery("call session_id()")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static String rewrite(String sql, boolean safeUpdates) {
+        if (sql.equals(SAFE_UPDATES)) {
+            return "select " + (safeUpdates ? 1 : 0);
+        }
+        sql = sql.replace(TABLE_TYPE, "from (select TABLE_SCHEMA, TABLE_NAME, TABLE_TYPE from information_schema.TABLES " +
+                "union all select SEQUENCE_SCHEMA, SEQUENCE_NAME, 'SEQUENCE' from information_schema.SEQUENCES) " +
+                "where TABLE_SCHEMA = schema()");
+        sql = LAST_INSERT_ID.matcher(sql).replaceAll("MYSQL_LAST_INSERT_ID(");
+        sql = NEXTVAL.matcher(sql).replaceAll("nextval('$1')");
+        return INCREMENT.matcher(sql).replaceAll(
+                "select INCREMENT from information_schema.SEQUENCES where SEQUENCE_NAME = '$1'");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T wrap(T target, Class<T> type, String productVersion, boolean safeUpdates) {
+        return (T) Proxy.newProxyInstance(MysqlStandIn.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    if (args != null && args.length > 0 && args[0] instanceof String) {
+                        args[0] = rewrite((String) args[0], safeUpdates);
+                    }
+                    if (method.getName().equals("getDatabaseProductName")) {
+                        return "MySQL";
+                    }
+                    if (method.getName().equals("getDatabaseProductVersion") && productVersion != null) {
+                        return productVersion;
+                    }
+                    Object result;
+                    try {
+                        result = method.invoke(target, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                    if (result instanceof PreparedStatement) {
+                        return wrap((PreparedStatement) result, PreparedStatement.class, productVersion, safeUpdates);
+                    }
+                    if (result instanceof Statement) {
+                        return wrap((Statement) result, Statement.class, productVersion, safeUpdates);
+                    }
+                    if (result instanceof DatabaseMetaData) {
+                        return wrap((DatabaseMetaData) result, DatabaseMetaData.class, productVersion, safeUpdates);
+                    }
+                    if (result instanceof Connection) {
+                        return wrap((Connection) result, Connection.class, productVersion, safeUpdates);
+                    }
+                    return result;
+                });
+    }
+}
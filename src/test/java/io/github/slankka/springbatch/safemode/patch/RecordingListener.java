@@ -0,0 +1,54 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the events of the incrementers it listens to as short strings, like
+ * {@code refill 5} or {@code retry DEADLOCK 1}, leaving out timings.
+ */
+class RecordingListener implements SequenceIncrementerListener {
+
+    final List<String> events = new CopyOnWriteArrayList<>();
+
+    final List<Long> backoffs = new CopyOnWriteArrayList<>();
+
+    final LongAdder servedIds = new LongAdder();
+
+    @Override
+    public LongAdder getServedIdCounter(String incrementerName) {
+        return servedIds;
+    }
+
+    @Override
+    public void onRefill(String incrementerName, int size, long nanos) {
+        events.add("refill " + size);
+    }
+
+    @Override
+    public void onRefillFailure(String incrementerName, SequenceRefillFailure failure, String sqlState, Throwable ex) {
+        events.add("failure " + failure + " " + sqlState);
+    }
+
+    @Override
+    public void onRefillRetry(String incrementerName, SequenceRefillFailure failure, int attempt, long backoffMillis) {
+        events.add("retry " + failure + " " + attempt);
+        backoffs.add(backoffMillis);
+    }
+
+    @Override
+    public void onWait(String incrementerName, long nanos) {
+        events.add("wait");
+    }
+
+    @Override
+    public void onBlockRetired(String incrementerName, int size, long served) {
+        events.add("retired " + served + "/" + size);
+    }
+
+    @Override
+    public void onShutdown(String incrementerName, long wasted) {
+        events.add("shutdown " + wasted);
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.THREADS;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.assertUniqueWithin;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.draw;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * IDs drawn concurrently from hi/lo incrementers are unique and within the leased lo spaces.
+ */
+public class SafeModeHiLoIncrementerTest {
+
+    private static final String TABLE = "BATCH_JOB_EXECUTION_SEQ";
+
+    private static final int LO_SIZE = 100;
+
+    private DataSource dataSource;
+
+    private final List<SafeModeHiLoIncrementer> incrementers = new ArrayList<>();
+
+    @Before
+    public void createDataSource() throws Exception {
+        dataSource = MysqlStandIn.create();
+    }
+
+    @After
+    public void destroyIncrementers() {
+        incrementers.forEach(SafeModeHiLoIncrementer::destroy);
+    }
+
+    private SafeModeHiLoIncrementer createIncrementer(long leaseDuration) {
+        SafeModeHiLoIncrementer incrementer = new SafeModeHiLoIncrementer(dataSource, TABLE, "ID");
+        incrementer.setLoSize(LO_SIZE);
+        incrementer.setLeaseDuration(leaseDuration);
+        incrementer.afterPropertiesSet();
+        incrementers.add(incrementer);
+        return incrementer;
+    }
+
+    @Test
+    public void concurrentIdsAreUniqueAndLeased() throws Exception {
+        SafeModeHiLoIncrementer incrementer = createIncrementer(0);
+
+        List<Long> ids = draw(500, drawn -> drawn.add(incrementer.nextLongValue()));
+
+        assertEquals(THREADS * 500, ids.size());
+        assertUniqueWithin(ids, LO_SIZE, MysqlStandIn.value(dataSource, TABLE, "0"));
+    }
+
+    @Test
+    public void nodesSharingTheTableLeaseDisjointLoSpaces() throws Exception {
+        SafeModeHiLoIncrementer first = createIncrementer(0);
+        SafeModeHiLoIncrementer second = createIncrementer(0);
+
+        List<Long> ids = draw(300, drawn -> {
+            drawn.add(first.nextLongValue());
+            drawn.add(second.nextLongValue());
+        });
+
+        assertUniqueWithin(ids, LO_SIZE, MysqlStandIn.value(dataSource, TABLE, "0"));
+    }
+
+    @Test
+    public void renewedLeasesDoNotReuseIds() throws Exception {
+        SafeModeHiLoIncrementer first = createIncrementer(1);
+        SafeModeHiLoIncrementer second = createIncrementer(1);
+
+        List<Long> ids = draw(200, drawn -> {
+            drawn.add(first.nextLongValue());
+            drawn.add(second.nextLongValue());
+        });
+
+        assertUniqueWithin(ids, LO_SIZE, MysqlStandIn.value(dataSource, TABLE, "0"));
+    }
+}
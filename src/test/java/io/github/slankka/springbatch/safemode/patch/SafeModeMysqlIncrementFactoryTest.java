@@ -0,0 +1,185 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+import org.springframework.jdbc.support.incrementer.MySQLMaxValueIncrementer;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@code AUTO} picks the incrementer per sequence from the database probe, the cache size of a
+ * single sequence can be set apart from the others, striped refills reserve at least a stripe,
+ * and a connection pinned on a sequence DataSource goes away with the last DataSource using it.
+ */
+public class SafeModeMysqlIncrementFactoryTest {
+
+    private static final String MYSQL = "MYSQL";
+
+    private DataSource dataSource;
+
+    private final AtomicInteger closedConnections = new AtomicInteger();
+
+    @After
+    public void removeIncrementers() {
+        SafeModeIncrementerRegistry.remove(dataSource);
+    }
+
+    @Test
+    public void autoPicksTheSequenceOfTheSameName() throws Exception {
+        dataSource = MysqlStandIn.createMariaDb(true);
+        new JdbcTemplate(dataSource).execute("create sequence TASK_SEQ start with 1 increment by 50");
+
+        assertSame(MariaDbSequenceMaxValueIncrementer.class, incrementer(SafeModeIncrementerStrategy.AUTO, "TASK_SEQ").getClass());
+    }
+
+    @Test
+    public void autoPicksNativeWithSafeUpdatesOff() throws Exception {
+        dataSource = MysqlStandIn.createMariaDb(false);
+
+        assertSame(MySQLMaxValueIncrementer.class, incrementer(SafeModeIncrementerStrategy.AUTO, "BATCH_JOB_SEQ").getClass());
+    }
+
+    @Test
+    public void autoPicksBlocksWithSafeUpdatesOn() throws Exception {
+        dataSource = MysqlStandIn.createMariaDb(true);
+
+        assertSame(SafeModeMysqlMaxValueIncrementer.class, incrementer(SafeModeIncrementerStrategy.AUTO, "BATCH_JOB_SEQ").getClass());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sequenceRejectsASequenceTable() throws Exception {
+        dataSource = MysqlStandIn.createMariaDb(true);
+
+        incrementer(SafeModeIncrementerStrategy.SEQUENCE, "BATCH_JOB_SEQ");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sequenceRejectsAServerWithoutSequences() throws Exception {
+        dataSource = MysqlStandIn.create();
+
+        incrementer(SafeModeIncrementerStrategy.SEQUENCE, "BATCH_JOB_SEQ");
+    }
+
+    @Test
+    public void aSequenceCacheSizeOverridesTheFactoryCacheSize() throws Exception {
+        dataSource = MysqlStandIn.create();
+        SafeModeMysqlIncrementFactory factory = new SafeModeMysqlIncrementFactory(dataSource);
+        factory.setCacheSize(10);
+        factory.setCacheSize("BATCH_JOB_SEQ", 50);
+
+        factory.getIncrementer(MYSQL, "BATCH_JOB_SEQ").nextLongValue();
+        factory.getIncrementer(MYSQL, "BATCH_STEP_EXECUTION_SEQ").nextLongValue();
+
+        assertEquals(50, MysqlStandIn.value(dataSource, "BATCH_JOB_SEQ", "0"));
+        assertEquals(10, MysqlStandIn.value(dataSource, "BATCH_STEP_EXECUTION_SEQ", "0"));
+    }
+
+    @Test
+    public void aStripedRefillReservesAWholeStripe() throws Exception {
+        dataSource = MysqlStandIn.create();
+        SafeModeMysqlIncrementFactory factory = new SafeModeMysqlIncrementFactory(dataSource);
+        factory.setStriped(true);
+        factory.setStripeSize(16);
+
+        DataFieldMaxValueIncrementer incrementer = factory.getIncrementer(MYSQL, "BATCH_JOB_SEQ");
+        assertEquals(1, incrementer.nextLongValue());
+        assertEquals(16, MysqlStandIn.value(dataSource, "BATCH_JOB_SEQ", "0"));
+
+        for (int i = 2; i <= 17; i++) {
+            assertEquals(i, incrementer.nextLongValue());
+        }
+        assertEquals(32, MysqlStandIn.value(dataSource, "BATCH_JOB_SEQ", "0"));
+    }
+
+    @Test
+    public void destroysTheConnectionPinnedOnTheSequenceDataSourceWithItsOwner() throws Exception {
+        dataSource = MysqlStandIn.create();
+        DataSource sequenceDataSource = closeCounting(dataSource);
+        pinnedOn(dataSource, sequenceDataSource).getIncrementer(MYSQL, "BATCH_JOB_SEQ").nextLongValue();
+        int closed = closedConnections.get();
+
+        SafeModeIncrementerRegistry.remove(dataSource);
+
+        assertEquals(closed + 1, closedConnections.get());
+    }
+
+    @Test
+    public void keepsAPinnedConnectionWhileAnotherOwnerUsesIt() throws Exception {
+        dataSource = MysqlStandIn.create();
+        DataSource sequenceDataSource = closeCounting(dataSource);
+        DataSource other = closeCounting(dataSource);
+        pinnedOn(dataSource, sequenceDataSource).getIncrementer(MYSQL, "BATCH_JOB_SEQ").nextLongValue();
+        pinnedOn(other, sequenceDataSource).getIncrementer(MYSQL, "BATCH_STEP_EXECUTION_SEQ").nextLongValue();
+        int closed = closedConnections.get();
+
+        SafeModeIncrementerRegistry.remove(other);
+        assertEquals(closed, closedConnections.get());
+        assertEquals(2, pinnedOn(dataSource, sequenceDataSource).getIncrementer(MYSQL, "BATCH_JOB_SEQ").nextLongValue());
+
+        SafeModeIncrementerRegistry.remove(dataSource);
+        assertEquals(closed + 1, closedConnections.get());
+    }
+
+    @Test
+    public void settingsNameEverythingThatShapesAnIncrementer() throws Exception {
+        dataSource = MysqlStandIn.create();
+        SafeModeMysqlIncrementFactory factory = new SafeModeMysqlIncrementFactory(dataSource);
+
+        assertTrue(factory.getSettings().keySet().containsAll(Arrays.asList("refillRetries", "refillBackoff",
+                "contentionBlockFactor", "contentionPeriod", "prefetchExecutor", "sequenceDataSource")));
+    }
+
+    private SafeModeMysqlIncrementFactory pinnedOn(DataSource dataSource, DataSource sequenceDataSource) {
+        SafeModeMysqlIncrementFactory factory = new SafeModeMysqlIncrementFactory(dataSource);
+        factory.setPinnedConnection(true);
+        factory.setSequenceDataSource(sequenceDataSource);
+        return factory;
+    }
+
+    /**
+     * Wrap the given DataSource, counting the connections it hands out that are closed.
+     */
+    private DataSource closeCounting(DataSource dataSource) {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(dataSource, method, args);
+                    if (!(result instanceof Connection)) {
+                        return result;
+                    }
+                    Connection connection = (Connection) result;
+                    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                            (connectionProxy, connectionMethod, connectionArgs) -> {
+                                if (connectionMethod.getName().equals("close") && !connection.isClosed()) {
+                                    closedConnections.incrementAndGet();
+                                }
+                                return invoke(connection, connectionMethod, connectionArgs);
+                            });
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private DataFieldMaxValueIncrementer incrementer(SafeModeIncrementerStrategy strategy, String incrementerName) {
+        SafeModeMysqlIncrementFactory factory = new SafeModeMysqlIncrementFactory(dataSource);
+        factory.setStrategy(strategy);
+        return factory.getIncrementer(MYSQL, incrementerName);
+    }
+}
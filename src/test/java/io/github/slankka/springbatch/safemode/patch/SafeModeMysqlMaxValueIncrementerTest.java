@@ -0,0 +1,129 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.THREADS;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.assertUniqueWithin;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.draw;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * IDs drawn concurrently from the block incrementer are unique and reserved in the sequence
+ * table, for each way of reserving and serving blocks.
+ */
+@RunWith(Parameterized.class)
+public class SafeModeMysqlMaxValueIncrementerTest {
+
+    private static final String TABLE = "BATCH_JOB_SEQ";
+
+    @Parameters(name = "{0}")
+    public static List<Object[]> settings() {
+        return Arrays.asList(
+                settings("one ID per refill", factory -> factory.setCacheSize(1)),
+                settings("blocks", factory -> factory.setCacheSize(50)),
+                settings("prefetch", factory -> {
+                    factory.setCacheSize(50);
+                    factory.setPrefetch(true);
+                    factory.setPrefetchThreshold(0.5);
+                }),
+                settings("striped", factory -> {
+                    factory.setCacheSize(200);
+                    factory.setStriped(true);
+                    factory.setStripeSize(7);
+                }),
+                settings("striped with the default cache size", factory -> factory.setStriped(true)),
+                settings("striped with prefetch", factory -> {
+                    factory.setCacheSize(200);
+                    factory.setStriped(true);
+                    factory.setStripeSize(7);
+                    factory.setPrefetch(true);
+                }),
+                settings("adaptive", factory -> {
+                    factory.setAdaptiveCacheSize(true);
+                    factory.setMinCacheSize(5);
+                    factory.setMaxCacheSize(500);
+                    factory.setTargetRefillInterval(10);
+                }),
+                settings("pinned connection", factory -> {
+                    factory.setCacheSize(20);
+                    factory.setPinnedConnection(true);
+                }),
+                settings("coordinated refill", factory -> {
+                    factory.setCacheSize(20);
+                    factory.setCoordinatedRefill(true);
+                }));
+    }
+
+    private static Object[] settings(String name, Consumer<SafeModeMysqlIncrementFactory> settings) {
+        return new Object[]{name, settings};
+    }
+
+    private final Consumer<SafeModeMysqlIncrementFactory> settings;
+
+    private DataSource dataSource;
+
+    private SafeModeMysqlMaxValueIncrementer incrementer;
+
+    private final LongAdder servedIds = new LongAdder();
+
+    public SafeModeMysqlMaxValueIncrementerTest(String name, Consumer<SafeModeMysqlIncrementFactory> settings) {
+        this.settings = settings;
+    }
+
+    @Before
+    public void createIncrementer() throws Exception {
+        dataSource = MysqlStandIn.create();
+        SafeModeMysqlIncrementFactory factory = new SafeModeMysqlIncrementFactory(dataSource);
+        factory.setShared(false);
+        factory.setListener(new SequenceIncrementerListener() {
+            @Override
+            public LongAdder getServedIdCounter(String incrementerName) {
+                return servedIds;
+            }
+        });
+        settings.accept(factory);
+        incrementer = (SafeModeMysqlMaxValueIncrementer) factory.getIncrementer("MYSQL", TABLE);
+    }
+
+    @After
+    public void destroyIncrementer() {
+        incrementer.destroy();
+        SafeModeIncrementerRegistry.remove(dataSource);
+    }
+
+    @Test
+    public void concurrentIdsAreUniqueAndReserved() throws Exception {
+        List<Long> ids = draw(500, drawn -> drawn.add(incrementer.nextLongValue()));
+
+        assertEquals(THREADS * 500, ids.size());
+        assertUniqueWithin(ids, 1, MysqlStandIn.value(dataSource, TABLE, "0"));
+        assertEquals(ids.size(), servedIds.sum());
+    }
+
+    @Test
+    public void concurrentRangesDoNotOverlapSingleIds() throws Exception {
+        List<Long> ids = draw(200, drawn -> {
+            if (ThreadLocalRandom.current().nextInt(4) == 0) {
+                SequenceRange range = incrementer.reserve(1 + ThreadLocalRandom.current().nextInt(30));
+                range.stream().forEach(drawn::add);
+            } else {
+                drawn.add(incrementer.nextLongValue());
+            }
+        });
+
+        assertUniqueWithin(ids, 1, MysqlStandIn.value(dataSource, TABLE, "0"));
+        assertEquals(ids.size(), servedIds.sum());
+    }
+}
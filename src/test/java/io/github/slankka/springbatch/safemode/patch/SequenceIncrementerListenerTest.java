@@ -0,0 +1,139 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.THREADS;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.draw;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The incrementers report refills, waits, retired blocks and wasted IDs to their listener, and
+ * count every ID they hand out.
+ */
+public class SequenceIncrementerListenerTest {
+
+    private static final String TABLE = "BATCH_JOB_SEQ";
+
+    private final RecordingListener listener = new RecordingListener();
+
+    private DataSource dataSource;
+
+    @Before
+    public void createDataSource() throws Exception {
+        dataSource = MysqlStandIn.create();
+    }
+
+    @After
+    public void removeIncrementers() {
+        SafeModeIncrementerRegistry.remove(dataSource);
+    }
+
+    @Test
+    public void reportsRefillsRetiredBlocksAndWastedIds() {
+        SafeModeMysqlMaxValueIncrementer incrementer = createIncrementer(5);
+
+        for (int i = 0; i < 12; i++) {
+            incrementer.nextLongValue();
+        }
+        incrementer.destroy();
+
+        List<String> expected = Arrays.asList(
+                "refill 5", "wait",
+                "retired 5/5", "refill 5", "wait",
+                "retired 5/5", "refill 5", "wait",
+                "retired 2/5", "shutdown 3");
+        assertEquals(expected, listener.events);
+        assertEquals(12, listener.servedIds.sum());
+    }
+
+    @Test
+    public void countsReservedRanges() {
+        SafeModeMysqlMaxValueIncrementer incrementer = createIncrementer(5);
+
+        incrementer.nextLongValue();
+        incrementer.reserve(7);
+        incrementer.nextLongValue();
+        incrementer.destroy();
+
+        assertEquals(9, listener.servedIds.sum());
+    }
+
+    @Test
+    public void countsConcurrentlyServedIds() throws Exception {
+        SafeModeMysqlMaxValueIncrementer incrementer = createIncrementer(10);
+
+        draw(200, drawn -> drawn.add(incrementer.nextLongValue()));
+        incrementer.destroy();
+
+        assertEquals(THREADS * 200, listener.servedIds.sum());
+    }
+
+    @Test
+    public void countsIdsOfHiLoIncrementers() {
+        SafeModeHiLoIncrementer incrementer = new SafeModeHiLoIncrementer(dataSource, TABLE, "ID");
+        incrementer.setLoSize(10);
+        incrementer.setListener(listener);
+        incrementer.afterPropertiesSet();
+
+        for (int i = 0; i < 25; i++) {
+            incrementer.nextLongValue();
+        }
+        incrementer.destroy();
+
+        assertEquals(25, listener.servedIds.sum());
+    }
+
+    @Test
+    public void countsIdsOfShardedIncrementers() {
+        new ShardedSequenceInitializer(dataSource).initialize(TABLE, 2);
+        ShardedSafeModeMysqlMaxValueIncrementer incrementer = new ShardedSafeModeMysqlMaxValueIncrementer(dataSource, TABLE, "ID");
+        incrementer.setCacheSize(4);
+        incrementer.setShardCount(2);
+        incrementer.setListener(listener);
+        incrementer.afterPropertiesSet();
+
+        for (int i = 0; i < 9; i++) {
+            incrementer.nextLongValue();
+        }
+
+        assertEquals(9, listener.servedIds.sum());
+    }
+
+    @Test
+    public void publishesMicrometerMeters() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        SafeModeMysqlMaxValueIncrementer incrementer = new SafeModeMysqlMaxValueIncrementer(dataSource, TABLE, "ID");
+        incrementer.setUseNewConnection(true);
+        incrementer.setCacheSize(5);
+        incrementer.setListener(new MicrometerSequenceIncrementerListener(registry));
+        incrementer.afterPropertiesSet();
+
+        for (int i = 0; i < 12; i++) {
+            incrementer.nextLongValue();
+        }
+        incrementer.destroy();
+
+        assertEquals(12, registry.get("safemode.sequence.ids.served").tag("sequence", TABLE).functionCounter().count(), 0);
+        assertEquals(3, registry.get("safemode.sequence.refill").tag("sequence", TABLE).timer().count());
+        assertEquals(3, registry.get("safemode.sequence.wait").tag("sequence", TABLE).timer().count());
+        assertEquals(3, registry.get("safemode.sequence.block.utilization").tag("sequence", TABLE).summary().count());
+        assertEquals(3, registry.get("safemode.sequence.ids.wasted").tag("sequence", TABLE).counter().count(), 0);
+    }
+
+    private SafeModeMysqlMaxValueIncrementer createIncrementer(int cacheSize) {
+        SafeModeMysqlMaxValueIncrementer incrementer = new SafeModeMysqlMaxValueIncrementer(dataSource, TABLE, "ID");
+        incrementer.setUseNewConnection(true);
+        incrementer.setCacheSize(cacheSize);
+        incrementer.setListener(listener);
+        incrementer.afterPropertiesSet();
+        return incrementer;
+    }
+}
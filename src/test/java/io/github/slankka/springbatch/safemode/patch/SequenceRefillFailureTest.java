@@ -0,0 +1,192 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Refill failures are classified by MySQL error code and SQLState, and only contention is
+ * retried, with a growing random backoff, before the failure is reported.
+ */
+public class SequenceRefillFailureTest {
+
+    private static final String TABLE = "BATCH_JOB_SEQ";
+
+    private static final long BACKOFF = 5;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final RecordingListener listener = new RecordingListener();
+
+    private SQLException failure;
+
+    private DataSource dataSource;
+
+    @Before
+    public void createDataSource() throws Exception {
+        dataSource = failing(MysqlStandIn.create());
+    }
+
+    @After
+    public void removeIncrementers() {
+        SafeModeIncrementerRegistry.remove(dataSource);
+    }
+
+    @Test
+    public void classifiesByErrorCode() {
+        assertEquals(SequenceRefillFailure.LOCK_WAIT_TIMEOUT, classify(new SQLException("Lock wait timeout", "HY000", 1205)));
+        assertEquals(SequenceRefillFailure.DEADLOCK, classify(new SQLException("Deadlock", "40001", 1213)));
+        assertEquals(SequenceRefillFailure.SAFE_UPDATE, classify(new SQLException("Safe update mode", "HY000", 1175)));
+    }
+
+    @Test
+    public void classifiesBySQLState() {
+        assertEquals(SequenceRefillFailure.DEADLOCK, classify(new SQLException("Serialization failure", "40001")));
+        assertEquals(SequenceRefillFailure.CONNECTION, classify(new SQLException("Communications link failure", "08S01")));
+        assertEquals(SequenceRefillFailure.CONNECTION, classify(new SQLException("Connection refused", "08001")));
+        assertEquals(SequenceRefillFailure.OTHER, classify(new SQLException("Duplicate entry", "23000", 1062)));
+        assertEquals(SequenceRefillFailure.OTHER, classify(new SQLException("No state")));
+    }
+
+    @Test
+    public void classifiesTheFirstSQLExceptionInTheCauseChain() {
+        SQLException deadlock = new SQLException("Deadlock", "40001", 1213);
+        deadlock.setNextException(new SQLException("Communications link failure", "08S01"));
+        Exception wrapped = new IllegalStateException(new DataAccessResourceFailureException("Refill failed", deadlock));
+
+        assertEquals(SequenceRefillFailure.DEADLOCK, SequenceRefillFailure.classify(wrapped));
+        assertEquals("40001", SequenceRefillFailure.getSQLState(wrapped));
+        assertEquals(SequenceRefillFailure.OTHER, SequenceRefillFailure.classify(new IllegalStateException("no SQL")));
+        assertNull(SequenceRefillFailure.getSQLState(new IllegalStateException("no SQL")));
+    }
+
+    @Test
+    public void onlyLockWaitTimeoutsAndDeadlocksAreContention() {
+        for (SequenceRefillFailure failure : SequenceRefillFailure.values()) {
+            assertEquals(failure.name(), Arrays.asList(SequenceRefillFailure.LOCK_WAIT_TIMEOUT,
+                    SequenceRefillFailure.DEADLOCK).contains(failure), failure.isContention());
+        }
+    }
+
+    @Test
+    public void retriesContentionWithAGrowingBackoff() {
+        failNext(2, new SQLException("Deadlock", "40001", 1213));
+        SafeModeMysqlMaxValueIncrementer incrementer = createIncrementer(true);
+
+        assertEquals(1, incrementer.nextLongValue());
+
+        assertEquals(Arrays.asList("retry DEADLOCK 1", "retry DEADLOCK 2", "refill 1", "wait"), listener.events);
+        assertBetween(1, BACKOFF, listener.backoffs.get(0));
+        assertBetween(1, BACKOFF * 2, listener.backoffs.get(1));
+    }
+
+    @Test
+    public void reportsContentionOnceTheRetriesAreExhausted() {
+        failNext(4, new SQLException("Lock wait timeout", "HY000", 1205));
+        SafeModeMysqlMaxValueIncrementer incrementer = createIncrementer(true);
+
+        assertRefillFails(incrementer);
+
+        assertEquals(Arrays.asList("retry LOCK_WAIT_TIMEOUT 1", "retry LOCK_WAIT_TIMEOUT 2", "retry LOCK_WAIT_TIMEOUT 3",
+                "failure LOCK_WAIT_TIMEOUT HY000", "wait"), listener.events);
+        assertBetween(1, BACKOFF * 4, listener.backoffs.get(2));
+        assertEquals(1, incrementer.nextLongValue());
+    }
+
+    @Test
+    public void doesNotRetryOtherFailures() {
+        failNext(1, new SQLException("Communications link failure", "08S01"));
+        SafeModeMysqlMaxValueIncrementer incrementer = createIncrementer(true);
+
+        assertRefillFails(incrementer);
+
+        assertEquals(Arrays.asList("failure CONNECTION 08S01", "wait"), listener.events);
+    }
+
+    @Test
+    public void doesNotRetryInTheTransactionOfTheCaller() {
+        failNext(1, new SQLException("Deadlock", "40001", 1213));
+        SafeModeMysqlMaxValueIncrementer incrementer = createIncrementer(false);
+
+        assertRefillFails(incrementer);
+
+        assertEquals(Collections.singletonList("failure DEADLOCK 40001"), listener.events.subList(0, 1));
+    }
+
+    private SafeModeMysqlMaxValueIncrementer createIncrementer(boolean useNewConnection) {
+        SafeModeMysqlMaxValueIncrementer incrementer = new SafeModeMysqlMaxValueIncrementer(dataSource, TABLE, "ID");
+        incrementer.setUseNewConnection(useNewConnection);
+        incrementer.setRefillRetries(3);
+        incrementer.setRefillBackoff(BACKOFF);
+        incrementer.setListener(listener);
+        incrementer.afterPropertiesSet();
+        return incrementer;
+    }
+
+    private void failNext(int times, SQLException failure) {
+        this.failure = failure;
+        this.failures.set(times);
+    }
+
+    private static void assertRefillFails(SafeModeMysqlMaxValueIncrementer incrementer) {
+        try {
+            incrementer.nextLongValue();
+            fail("expected the refill to fail");
+        } catch (DataAccessException expected) {
+        }
+    }
+
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue(actual + " not in [" + min + ", " + max + "]", actual >= min && actual <= max);
+    }
+
+    private static SequenceRefillFailure classify(SQLException ex) {
+        return SequenceRefillFailure.classify(new DataAccessResourceFailureException("Refill failed", ex));
+    }
+
+    /**
+     * Fail creating a statement with {@link #failure} as long as {@link #failures} are left.
+     */
+    private DataSource failing(DataSource dataSource) {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(dataSource, method, args);
+                    if (!(result instanceof Connection)) {
+                        return result;
+                    }
+                    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                            (conProxy, conMethod, conArgs) -> {
+                                if (conMethod.getName().equals("createStatement") && failures.getAndUpdate(
+                                        left -> Math.max(left - 1, 0)) > 0) {
+                                    throw failure;
+                                }
+                                return invoke(result, conMethod, conArgs);
+                            });
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.assertUniqueWithin;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.draw;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * IDs drawn concurrently from the members of a refill group are unique per sequence and
+ * reserved in its table, including the blocks topped up by a sibling's refill.
+ */
+public class SequenceRefillGroupTest {
+
+    private DataSource dataSource;
+
+    private final List<SafeModeMysqlMaxValueIncrementer> incrementers = new ArrayList<>();
+
+    @Before
+    public void createGroup() throws Exception {
+        dataSource = MysqlStandIn.create();
+        SafeModeMysqlIncrementFactory factory = new SafeModeMysqlIncrementFactory(dataSource);
+        factory.setShared(false);
+        factory.setCacheSize(10);
+        factory.setCoordinatedRefill(true);
+        for (String table : MysqlStandIn.SEQUENCE_TABLES) {
+            incrementers.add((SafeModeMysqlMaxValueIncrementer) factory.getIncrementer("MYSQL", table));
+        }
+    }
+
+    @After
+    public void destroyGroup() {
+        incrementers.forEach(SafeModeMysqlMaxValueIncrementer::destroy);
+        SafeModeIncrementerRegistry.remove(dataSource);
+    }
+
+    @Test
+    public void concurrentIdsAreUniquePerSequence() throws Exception {
+        List<List<Long>> drawn = new ArrayList<>();
+        incrementers.forEach(incrementer -> drawn.add(new ArrayList<>()));
+
+        List<Long> all = draw(400, ids -> {
+            int member = ThreadLocalRandom.current().nextInt(incrementers.size());
+            long id = incrementers.get(member).nextLongValue();
+            ids.add(member * (1L << 40) + id);
+        });
+
+        for (long tagged : all) {
+            drawn.get((int) (tagged >> 40)).add(tagged & ((1L << 40) - 1));
+        }
+        int total = 0;
+        for (int member = 0; member < incrementers.size(); member++) {
+            String table = MysqlStandIn.SEQUENCE_TABLES[member];
+            assertUniqueWithin(drawn.get(member), 1, MysqlStandIn.value(dataSource, table, "0"));
+            total += drawn.get(member).size();
+        }
+        assertEquals(all.size(), total);
+    }
+
+    @Test
+    public void warmUpTopsUpEveryMember() throws Exception {
+        SafeModeIncrementerRegistry.getRefillGroup(dataSource).topUp();
+
+        List<Long> ids = draw(100, drawn -> drawn.add(incrementers.get(0).nextLongValue()));
+
+        assertUniqueWithin(ids, 1, MysqlStandIn.value(dataSource, MysqlStandIn.SEQUENCE_TABLES[0], "0"));
+    }
+
+    @Test
+    public void aStuckRefillDoesNotHoldUpItsSiblings() throws Exception {
+        SafeModeMysqlMaxValueIncrementer stuck = incrementers.get(0);
+        SafeModeMysqlMaxValueIncrementer sibling = incrementers.get(2);
+        CompletableFuture<Long> stuckId;
+        try (Connection con = dataSource.getConnection(); Statement stmt = con.createStatement()) {
+            con.setAutoCommit(false);
+            stmt.executeUpdate("update " + stuck.getIncrementerName() + " set ID = ID where ID >= 0");
+            stuckId = CompletableFuture.supplyAsync(stuck::nextLongValue);
+            Thread.sleep(200);
+
+            assertEquals(1, sibling.nextLongValue());
+            assertFalse(stuckId.isDone());
+            con.rollback();
+        }
+        assertEquals(1, (long) stuckId.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void siblingsClaimedBeforeAReconnectAreToppedUpByTheRetry() throws Exception {
+        destroyGroup();
+        incrementers.clear();
+        AtomicBoolean failNextStatement = new AtomicBoolean();
+        dataSource = failingOnce(MysqlStandIn.create(), failNextStatement);
+        SafeModeMysqlIncrementFactory factory = new SafeModeMysqlIncrementFactory(dataSource);
+        factory.setShared(false);
+        factory.setCacheSize(10);
+        factory.setCoordinatedRefill(true);
+        factory.setPinnedConnection(true);
+        for (String table : MysqlStandIn.SEQUENCE_TABLES) {
+            incrementers.add((SafeModeMysqlMaxValueIncrementer) factory.getIncrementer("MYSQL", table));
+        }
+
+        failNextStatement.set(true);
+        SafeModeIncrementerRegistry.getRefillGroup(dataSource).topUp();
+        for (SafeModeMysqlMaxValueIncrementer incrementer : incrementers) {
+            assertEquals(incrementer.getIncrementerName(), 0, incrementer.getTopUpSize());
+            assertEquals(10, MysqlStandIn.value(dataSource, incrementer.getIncrementerName(), "0"));
+        }
+    }
+
+    /**
+     * Wrap the DataSource so that preparing a statement fails with a connection failure once
+     * the flag is set.
+     */
+    private static DataSource failingOnce(DataSource dataSource, AtomicBoolean failNextStatement) {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(dataSource, method, args);
+                    if (!(result instanceof Connection)) {
+                        return result;
+                    }
+                    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                            (conProxy, conMethod, conArgs) -> {
+                                if (conMethod.getName().equals("prepareStatement") && failNextStatement.getAndSet(false)) {
+                                    throw new SQLException("Communications link failure", "08S01");
+                                }
+                                return invoke(result, conMethod, conArgs);
+                            });
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+}
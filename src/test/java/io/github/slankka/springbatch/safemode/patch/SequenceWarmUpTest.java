@@ -0,0 +1,105 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.slankka.springbatch.safemode.patch.MysqlStandIn.SEQUENCE_TABLES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The warm-up reserves the first block of every registered block incrementer, on the calling
+ * thread or in the background, and leaves sequences that already have a block alone.
+ */
+public class SequenceWarmUpTest {
+
+    private DataSource dataSource;
+
+    private SafeModeMysqlIncrementFactory factory;
+
+    @Before
+    public void registerIncrementers() throws Exception {
+        dataSource = MysqlStandIn.create();
+        factory = new SafeModeMysqlIncrementFactory(dataSource);
+        factory.setCacheSize(10);
+        for (String table : SEQUENCE_TABLES) {
+            factory.getIncrementer("MYSQL", table);
+        }
+    }
+
+    @After
+    public void removeIncrementers() {
+        SafeModeIncrementerRegistry.remove(dataSource);
+    }
+
+    @Test
+    public void reservesTheFirstBlocksOnTheCallingThread() {
+        assertEquals(SEQUENCE_TABLES.length, SequenceWarmUp.warmUp(dataSource));
+
+        for (String table : SEQUENCE_TABLES) {
+            assertEquals(10, MysqlStandIn.value(dataSource, table, "0"));
+            assertEquals(1, factory.getIncrementer("MYSQL", table).nextLongValue());
+            assertEquals(10, MysqlStandIn.value(dataSource, table, "0"));
+        }
+    }
+
+    @Test
+    public void leavesSequencesWithABlockAlone() {
+        factory.getIncrementer("MYSQL", SEQUENCE_TABLES[0]).nextLongValue();
+
+        SequenceWarmUp.warmUp(dataSource);
+
+        assertEquals(10, MysqlStandIn.value(dataSource, SEQUENCE_TABLES[0], "0"));
+        assertEquals(2, factory.getIncrementer("MYSQL", SEQUENCE_TABLES[0]).nextLongValue());
+    }
+
+    @Test
+    public void reservesTheFirstBlocksInTheBackground() throws Exception {
+        CompletableFuture<Integer> warmUp = SequenceWarmUp.warmUpAsync(dataSource);
+
+        assertEquals(Integer.valueOf(SEQUENCE_TABLES.length), warmUp.get(10, TimeUnit.SECONDS));
+        for (String table : SEQUENCE_TABLES) {
+            assertEquals(10, MysqlStandIn.value(dataSource, table, "0"));
+        }
+    }
+
+    @Test
+    public void aFailedBackgroundWarmUpLeavesTheRefillToFirstUse() throws Exception {
+        new JdbcTemplate(dataSource).execute("alter table " + SEQUENCE_TABLES[1] + " rename to OFFLINE_SEQ");
+        try {
+            SequenceWarmUp.warmUpAsync(dataSource).get(10, TimeUnit.SECONDS);
+            fail("expected the warm-up to fail");
+        } catch (ExecutionException expected) {
+        }
+        new JdbcTemplate(dataSource).execute("alter table OFFLINE_SEQ rename to " + SEQUENCE_TABLES[1]);
+
+        for (String table : SEQUENCE_TABLES) {
+            long first = factory.getIncrementer("MYSQL", table).nextLongValue();
+            assertNotEquals(0, first);
+            assertTrue(MysqlStandIn.value(dataSource, table, "0") >= first);
+        }
+    }
+
+    @Test
+    public void runsAsConfigured() {
+        SequenceWarmUp.run(dataSource, "none");
+        assertEquals(0, MysqlStandIn.value(dataSource, SEQUENCE_TABLES[0], "0"));
+
+        SequenceWarmUp.run(dataSource, "SYNC");
+        assertEquals(10, MysqlStandIn.value(dataSource, SEQUENCE_TABLES[0], "0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnknownMode() {
+        SequenceWarmUp.run(dataSource, "eager");
+    }
+}
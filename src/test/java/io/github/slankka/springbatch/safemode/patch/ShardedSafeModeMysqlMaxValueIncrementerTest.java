@@ -0,0 +1,100 @@
+package io.github.slankka.springbatch.safemode.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.THREADS;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.assertUniqueWithin;
+import static io.github.slankka.springbatch.safemode.patch.ConcurrentDraws.draw;
+import static io.github.slankka.springbatch.safemode.patch.ShardedSafeModeMysqlMaxValueIncrementer.SHARD_KEYS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * IDs drawn concurrently from the sharded incrementer are unique and reserved in the row of
+ * their shard.
+ */
+public class ShardedSafeModeMysqlMaxValueIncrementerTest {
+
+    private static final String TABLE = "BATCH_STEP_EXECUTION_SEQ";
+
+    private static final int SHARD_COUNT = 4;
+
+    private DataSource dataSource;
+
+    @Before
+    public void seedShards() throws Exception {
+        dataSource = MysqlStandIn.create();
+        new ShardedSequenceInitializer(dataSource).initialize(TABLE, SHARD_COUNT);
+    }
+
+    @After
+    public void removePinnedConnection() {
+        SafeModeIncrementerRegistry.remove(dataSource);
+    }
+
+    private ShardedSafeModeMysqlMaxValueIncrementer createIncrementer(int shard, boolean pinnedConnection) {
+        ShardedSafeModeMysqlMaxValueIncrementer incrementer =
+                new ShardedSafeModeMysqlMaxValueIncrementer(dataSource, TABLE, "ID");
+        incrementer.setCacheSize(20);
+        incrementer.setShardCount(SHARD_COUNT);
+        incrementer.setShard(shard);
+        if (pinnedConnection) {
+            incrementer.setPinnedConnection(SafeModeIncrementerRegistry.getPinnedConnection(dataSource));
+        }
+        incrementer.afterPropertiesSet();
+        return incrementer;
+    }
+
+    @Test
+    public void concurrentIdsAreUniqueAndReservedInTheirShard() throws Exception {
+        ShardedSafeModeMysqlMaxValueIncrementer incrementer = createIncrementer(-1, false);
+
+        List<Long> ids = draw(500, drawn -> drawn.add(incrementer.nextLongValue()));
+
+        assertEquals(THREADS * 500, ids.size());
+        assertReservedInTheirShard(ids);
+    }
+
+    @Test
+    public void concurrentIdsThroughAPinnedConnection() throws Exception {
+        ShardedSafeModeMysqlMaxValueIncrementer incrementer = createIncrementer(-1, true);
+
+        List<Long> ids = draw(500, drawn -> drawn.add(incrementer.nextLongValue()));
+
+        assertReservedInTheirShard(ids);
+    }
+
+    @Test
+    public void nodesWithFixedShardsDoNotOverlap() throws Exception {
+        ShardedSafeModeMysqlMaxValueIncrementer first = createIncrementer(0, false);
+        ShardedSafeModeMysqlMaxValueIncrementer second = createIncrementer(1, false);
+        ShardedSafeModeMysqlMaxValueIncrementer third = createIncrementer(1, false);
+
+        List<Long> ids = draw(200, drawn -> {
+            drawn.add(first.nextLongValue());
+            drawn.add(second.nextLongValue());
+            drawn.add(third.nextLongValue());
+        });
+
+        assertReservedInTheirShard(ids);
+    }
+
+    private void assertReservedInTheirShard(List<Long> ids) {
+        long[] values = new long[SHARD_COUNT];
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            values[shard] = MysqlStandIn.value(dataSource, TABLE, String.valueOf(SHARD_KEYS.charAt(shard)));
+        }
+        assertUniqueWithin(ids, SHARD_COUNT, Long.MAX_VALUE);
+        for (long id : ids) {
+            long value = id / SHARD_COUNT;
+            if (value > values[(int) (id % SHARD_COUNT)]) {
+                fail("ID " + id + " was not reserved in shard " + id % SHARD_COUNT);
+            }
+        }
+    }
+}
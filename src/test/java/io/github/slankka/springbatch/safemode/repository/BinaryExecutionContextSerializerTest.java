@@ -0,0 +1,151 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.junit.Test;
+import org.springframework.batch.core.repository.dao.Jackson2ExecutionContextStringSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Contexts read back equal to what was written, whether the values are encoded compactly, by the
+ * Jackson fallback or deflated, and contexts written by Spring Batch's own serializer stay readable.
+ */
+public class BinaryExecutionContextSerializerTest {
+
+    private final BinaryExecutionContextSerializer serializer = new BinaryExecutionContextSerializer();
+
+    @Test
+    public void nullValues() throws IOException {
+        Map<String, Object> context = new HashMap<>();
+        context.put("missing", null);
+        context.put("", "empty key");
+
+        assertEquals(context, roundTrip(context));
+    }
+
+    @Test
+    public void nonAsciiStrings() throws IOException {
+        Map<String, Object> context = new HashMap<>();
+        context.put("city", "Z\u00fcrich");
+        context.put("\u6587\u4ef6\u540d", "\u6279\u5904\u7406\u0000\n\t\ud83d\ude00");
+        context.put("empty", "");
+
+        String encoded = serialize(context);
+        assertTrue(encoded.chars().allMatch(c -> c >= 0x20 && c <= 0x7E));
+        assertEquals(context, deserialize(encoded));
+    }
+
+    @Test
+    public void numberExtremes() throws IOException {
+        Map<String, Object> context = new HashMap<>();
+        context.put("longMin", Long.MIN_VALUE);
+        context.put("longMax", Long.MAX_VALUE);
+        context.put("longZero", 0L);
+        context.put("longMinusOne", -1L);
+        context.put("intMin", Integer.MIN_VALUE);
+        context.put("intMax", Integer.MAX_VALUE);
+        context.put("doubleMin", Double.MIN_VALUE);
+        context.put("doubleNaN", Double.NaN);
+        context.put("doubleNegativeInfinity", Double.NEGATIVE_INFINITY);
+        context.put("true", true);
+        context.put("false", false);
+
+        assertEquals(context, roundTrip(context));
+    }
+
+    @Test
+    public void dates() throws IOException {
+        Map<String, Object> context = new HashMap<>();
+        context.put("now", new Date());
+        context.put("epoch", new Date(0));
+        context.put("beforeEpoch", new Date(-86400000L * 365 * 100));
+
+        assertEquals(context, roundTrip(context));
+    }
+
+    @Test
+    public void otherTypesFallBackToJackson() throws IOException {
+        Map<String, Object> context = new HashMap<>();
+        context.put("amount", new BigDecimal("12345.678901234567890"));
+        context.put("names", new ArrayList<>(Arrays.asList("a", "b")));
+        context.put("count", 3L);
+
+        Map<String, Object> read = roundTrip(context);
+
+        assertEquals(context, read);
+        assertEquals(BigDecimal.class, read.get("amount").getClass());
+    }
+
+    @Test
+    public void largeContextsAreDeflated() throws IOException {
+        Map<String, Object> context = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            context.put("item." + i, "the same value " + i % 10);
+        }
+        serializer.setCompressionThreshold(100);
+
+        String encoded = serialize(context);
+
+        assertTrue(encoded.startsWith("#1Z"));
+        assertEquals(context, deserialize(encoded));
+    }
+
+    @Test
+    public void smallContextsAreNotDeflated() throws IOException {
+        Map<String, Object> context = new HashMap<>();
+        context.put("key", "value");
+
+        assertTrue(serialize(context).startsWith("#1P"));
+    }
+
+    @Test
+    public void readsContextsWrittenAsJson() throws IOException {
+        Map<String, Object> context = new HashMap<>();
+        context.put("name", "Z\u00fcrich");
+        context.put("count", 42L);
+        context.put("date", new Date(1567123200000L));
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        new Jackson2ExecutionContextStringSerializer().serialize(context, json);
+
+        assertEquals(context, serializer.deserialize(new ByteArrayInputStream(json.toByteArray())));
+    }
+
+    @Test
+    public void readsAnEmptyContext() throws IOException {
+        assertEquals(new HashMap<String, Object>(), roundTrip(new HashMap<>()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsATruncatedContext() throws IOException {
+        Map<String, Object> context = new HashMap<>();
+        context.put("key", "a longer value");
+        String encoded = serialize(context);
+
+        deserialize(encoded.substring(0, encoded.length() - 3));
+    }
+
+    private Map<String, Object> roundTrip(Map<String, Object> context) throws IOException {
+        return deserialize(serialize(context));
+    }
+
+    private String serialize(Map<String, Object> context) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(context, out);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private Map<String, Object> deserialize(String encoded) throws IOException {
+        return serializer.deserialize(new ByteArrayInputStream(encoded.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
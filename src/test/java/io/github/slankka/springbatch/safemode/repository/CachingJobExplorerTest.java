@@ -0,0 +1,70 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.explore.JobExplorer;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Callers changing what the cache returns, like {@code JobOperator.stop}, do not change what
+ * other callers get.
+ */
+public class CachingJobExplorerTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private CachingJobExplorer explorer;
+
+    @Before
+    public void createExplorer() {
+        JobExecution jobExecution = new JobExecution(new JobInstance(1L, "job"), 2L, new JobParameters(), null);
+        jobExecution.setStatus(BatchStatus.STARTED);
+        new StepExecution("step", jobExecution, 3L).setStatus(BatchStatus.STARTED);
+        JobExplorer delegate = (JobExplorer) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{JobExplorer.class}, (proxy, method, args) -> {
+                    loads.incrementAndGet();
+                    return (method.getName().equals("findRunningJobExecutions") ?
+                            Collections.singleton(jobExecution) : jobExecution);
+                });
+        explorer = new CachingJobExplorer(delegate, new JobExplorerCache());
+    }
+
+    @Test
+    public void stoppingAnExecutionDoesNotChangeTheCachedOne() {
+        JobExecution stopped = explorer.getJobExecution(2L);
+        stopped.getStepExecutions().forEach(StepExecution::setTerminateOnly);
+        stopped.setStatus(BatchStatus.STOPPING);
+        stopped.getExecutionContext().putString("key", "value");
+        stopped.setVersion(1);
+
+        JobExecution jobExecution = explorer.getJobExecution(2L);
+        assertNotSame(stopped, jobExecution);
+        assertEquals(BatchStatus.STARTED, jobExecution.getStatus());
+        assertFalse(jobExecution.getExecutionContext().containsKey("key"));
+        assertEquals(null, jobExecution.getVersion());
+        StepExecution stepExecution = jobExecution.getStepExecutions().iterator().next();
+        assertFalse(stepExecution.isTerminateOnly());
+        assertEquals(jobExecution, stepExecution.getJobExecution());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void runningExecutionsAreCopiedToo() {
+        explorer.findRunningJobExecutions("job").iterator().next().setStatus(BatchStatus.ABANDONED);
+
+        assertEquals(BatchStatus.STARTED, explorer.findRunningJobExecutions("job").iterator().next().getStatus());
+        assertEquals(BatchStatus.STARTED, explorer.getStepExecution(2L, 3L).getStatus());
+    }
+}
@@ -0,0 +1,202 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.explore.JobExplorer;
+import org.springframework.batch.core.repository.JobExecutionAlreadyRunningException;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The in-memory repository creates a job instance once however many threads launch it, does not
+ * launch a running instance again, rejects stale updates like the JDBC DAOs, and hands out copies
+ * rather than what it stores.
+ */
+public class InMemoryJobRepositoryFactoryTest {
+
+    private static final int THREADS = 8;
+
+    private JobRepository jobRepository;
+
+    private JobExplorer jobExplorer;
+
+    private final JobParameters jobParameters = new JobParametersBuilder().addLong("run", 1L).toJobParameters();
+
+    @Before
+    public void createRepository() {
+        InMemoryJobRepositoryFactory factory = new InMemoryJobRepositoryFactory();
+        factory.setConcurrency(THREADS);
+        jobRepository = factory.getJobRepository();
+        jobExplorer = factory.getJobExplorer();
+    }
+
+    @Test
+    public void concurrentLaunchesShareOneJobInstance() throws Exception {
+        List<JobExecution> launched = launchConcurrently();
+
+        assertEquals(THREADS, launched.size());
+        assertEquals(1, jobExplorer.getJobInstances("job", 0, THREADS).size());
+    }
+
+    @Test
+    public void concurrentLaunchesOfARunningInstanceAreAllRejected() throws Exception {
+        JobExecution running = jobRepository.createJobExecution("job", jobParameters);
+        running.setStatus(BatchStatus.STARTED);
+        running.setStartTime(new Date());
+        jobRepository.update(running);
+
+        assertTrue(launchConcurrently().isEmpty());
+        assertEquals(1, jobExplorer.getJobExecutions(running.getJobInstance()).size());
+    }
+
+    @Test(expected = OptimisticLockingFailureException.class)
+    public void rejectsAStaleJobExecution() {
+        InMemoryJobInstanceDao jobInstanceDao = new InMemoryJobInstanceDao();
+        InMemoryJobExecutionDao jobExecutionDao = new InMemoryJobExecutionDao();
+        JobExecution jobExecution = new JobExecution(jobInstanceDao.createJobInstance("job", jobParameters), jobParameters);
+        jobExecutionDao.saveJobExecution(jobExecution);
+        JobExecution stale = jobExecutionDao.getJobExecution(jobExecution.getId());
+        jobExecution.setStatus(BatchStatus.STARTED);
+        jobExecutionDao.updateJobExecution(jobExecution);
+
+        stale.setStatus(BatchStatus.FAILED);
+        jobExecutionDao.updateJobExecution(stale);
+    }
+
+    @Test
+    public void aStaleJobExecutionTakesTheSavedStatusThroughTheRepository() throws Exception {
+        JobExecution jobExecution = jobRepository.createJobExecution("job", jobParameters);
+        JobExecution stale = jobExplorer.getJobExecution(jobExecution.getId());
+        jobExecution.setStatus(BatchStatus.STOPPING);
+        jobRepository.update(jobExecution);
+
+        stale.setStatus(BatchStatus.STARTED);
+        jobRepository.update(stale);
+
+        assertEquals(BatchStatus.STOPPING, jobExplorer.getJobExecution(jobExecution.getId()).getStatus());
+        assertEquals(stale.getVersion(), jobExplorer.getJobExecution(jobExecution.getId()).getVersion());
+    }
+
+    @Test(expected = OptimisticLockingFailureException.class)
+    public void rejectsAStaleStepExecution() throws Exception {
+        JobExecution jobExecution = jobRepository.createJobExecution("job", jobParameters);
+        StepExecution stepExecution = jobExecution.createStepExecution("step");
+        jobRepository.add(stepExecution);
+        StepExecution stale = jobExplorer.getStepExecution(jobExecution.getId(), stepExecution.getId());
+        stepExecution.setReadCount(1);
+        jobRepository.update(stepExecution);
+
+        stale.setReadCount(2);
+        jobRepository.update(stale);
+    }
+
+    @Test
+    public void anEndedExecutionIsNoLongerRunning() throws Exception {
+        JobExecution jobExecution = jobRepository.createJobExecution("job", jobParameters);
+        jobExecution.setStatus(BatchStatus.STARTED);
+        jobExecution.setStartTime(new Date());
+        jobRepository.update(jobExecution);
+        assertEquals(1, jobExplorer.findRunningJobExecutions("job").size());
+
+        jobExecution.setStatus(BatchStatus.COMPLETED);
+        jobExecution.setEndTime(new Date());
+        jobRepository.update(jobExecution);
+
+        assertTrue(jobExplorer.findRunningJobExecutions("job").isEmpty());
+    }
+
+    @Test
+    public void handsOutCopiesOfExecutions() throws Exception {
+        JobExecution jobExecution = jobRepository.createJobExecution("job", jobParameters);
+        StepExecution stepExecution = jobExecution.createStepExecution("step");
+        jobRepository.add(stepExecution);
+
+        jobExplorer.getJobExecution(jobExecution.getId()).setStatus(BatchStatus.FAILED);
+        jobExplorer.getStepExecution(jobExecution.getId(), stepExecution.getId()).setReadCount(5);
+        jobExecution.setStatus(BatchStatus.STOPPING);
+
+        assertEquals(BatchStatus.STARTING, jobExplorer.getJobExecution(jobExecution.getId()).getStatus());
+        assertEquals(0, jobExplorer.getStepExecution(jobExecution.getId(), stepExecution.getId()).getReadCount());
+    }
+
+    @Test
+    public void handsOutCopiesOfContexts() throws Exception {
+        JobExecution jobExecution = jobRepository.createJobExecution("job", jobParameters);
+        StepExecution stepExecution = jobExecution.createStepExecution("step");
+        stepExecution.getExecutionContext().putString("checkpoint", "saved");
+        jobRepository.add(stepExecution);
+
+        stepExecution.getExecutionContext().putString("checkpoint", "not saved");
+        jobExplorer.getStepExecution(jobExecution.getId(), stepExecution.getId())
+                .getExecutionContext().putString("checkpoint", "changed by a reader");
+        jobExplorer.getJobExecution(jobExecution.getId()).getExecutionContext().putString("reader", "changed");
+
+        StepExecution read = jobExplorer.getStepExecution(jobExecution.getId(), stepExecution.getId());
+        assertEquals("saved", read.getExecutionContext().getString("checkpoint"));
+        assertFalse(jobExplorer.getJobExecution(jobExecution.getId()).getExecutionContext().containsKey("reader"));
+
+        jobRepository.updateExecutionContext(stepExecution);
+        read = jobExplorer.getStepExecution(jobExecution.getId(), stepExecution.getId());
+        assertEquals("not saved", read.getExecutionContext().getString("checkpoint"));
+    }
+
+    @Test
+    public void forgetsEverythingOnClear() throws Exception {
+        InMemoryJobRepositoryFactory factory = new InMemoryJobRepositoryFactory();
+        JobExecution jobExecution = factory.getJobRepository().createJobExecution("job", jobParameters);
+
+        factory.clear();
+
+        assertNull(factory.getJobExplorer().getJobExecution(jobExecution.getId()));
+        assertTrue(factory.getJobExplorer().getJobInstances("job", 0, 10).isEmpty());
+    }
+
+    /**
+     * Launch the job with the same parameters on all threads at once, and return the executions
+     * created; the other launches must have found the job instance running.
+     */
+    private List<JobExecution> launchConcurrently() throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<JobExecution>> launches = new ArrayList<>();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                launches.add(executor.submit((Callable<JobExecution>) () -> {
+                    barrier.await();
+                    return jobRepository.createJobExecution("job", jobParameters);
+                }));
+            }
+            List<JobExecution> launched = new ArrayList<>();
+            for (Future<JobExecution> launch : launches) {
+                try {
+                    launched.add(launch.get());
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof JobExecutionAlreadyRunningException);
+                }
+            }
+            return launched;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
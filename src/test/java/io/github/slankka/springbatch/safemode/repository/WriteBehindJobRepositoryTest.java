@@ -0,0 +1,165 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.explore.JobExplorer;
+import org.springframework.batch.core.repository.JobRepository;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Chunk updates of a step are written once every flush chunk count or flush interval, any other
+ * change of the step right away, and the versions written stay those the optimistic locking of
+ * {@code SimpleJobRepository} expects.
+ */
+public class WriteBehindJobRepositoryTest {
+
+    private final AtomicInteger stepWrites = new AtomicInteger();
+
+    private JobExplorer jobExplorer;
+
+    private WriteBehindJobRepository repository;
+
+    private StepExecution stepExecution;
+
+    @Before
+    public void startStep() throws Exception {
+        InMemoryJobRepositoryFactory factory = new InMemoryJobRepositoryFactory();
+        JobRepository delegate = factory.getJobRepository();
+        jobExplorer = factory.getJobExplorer();
+        repository = new WriteBehindJobRepository((JobRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{JobRepository.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("update") && args[0] instanceof StepExecution) {
+                        stepWrites.incrementAndGet();
+                    }
+                    try {
+                        return method.invoke(delegate, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                }));
+        repository.setFlushChunkCount(3);
+        repository.setFlushInterval(60000);
+        JobExecution jobExecution = repository.createJobExecution("job", new JobParameters());
+        jobExecution.setStatus(BatchStatus.STARTED);
+        repository.update(jobExecution);
+        stepExecution = jobExecution.createStepExecution("step");
+        stepExecution.setStatus(BatchStatus.STARTED);
+        repository.add(stepExecution);
+    }
+
+    @Test
+    public void defersChunkUpdatesUpToTheFlushChunkCount() {
+        chunk();
+        chunk();
+        assertEquals(0, stepWrites.get());
+        assertEquals(0, written().getReadCount());
+
+        chunk();
+        assertEquals(1, stepWrites.get());
+        assertEquals(3, written().getReadCount());
+
+        chunk();
+        assertEquals(1, stepWrites.get());
+    }
+
+    @Test
+    public void writesTheNextChunkUpdateAfterTheFlushInterval() throws InterruptedException {
+        repository.setFlushChunkCount(100);
+        repository.setFlushInterval(50);
+
+        chunk();
+        assertEquals(0, stepWrites.get());
+        Thread.sleep(60);
+        chunk();
+        assertEquals(1, stepWrites.get());
+        assertEquals(2, written().getReadCount());
+        chunk();
+        assertEquals(1, stepWrites.get());
+    }
+
+    @Test
+    public void writesAStatusChangeRightAway() {
+        assertWrittenRightAway(step -> step.setStatus(BatchStatus.STOPPING));
+    }
+
+    @Test
+    public void writesAnExitCodeChangeRightAway() {
+        assertWrittenRightAway(step -> step.setExitStatus(ExitStatus.NOOP));
+    }
+
+    @Test
+    public void writesTerminateOnlyRightAway() {
+        assertWrittenRightAway(StepExecution::setTerminateOnly);
+    }
+
+    @Test
+    public void writesASkipRightAway() {
+        assertWrittenRightAway(step -> step.setProcessSkipCount(1));
+    }
+
+    @Test
+    public void writesARollbackRightAway() {
+        assertWrittenRightAway(StepExecution::incrementRollbackCount);
+    }
+
+    @Test
+    public void writesTheEndOfTheStepRightAway() {
+        assertWrittenRightAway(step -> {
+            step.setStatus(BatchStatus.COMPLETED);
+            step.setEndTime(new Date());
+        });
+        chunk();
+        assertEquals(2, stepWrites.get());
+    }
+
+    @Test
+    public void versionsStayInStepAcrossDeferredUpdates() {
+        for (int i = 0; i < 10; i++) {
+            chunk();
+            repository.updateExecutionContext(stepExecution);
+        }
+        stepExecution.setStatus(BatchStatus.COMPLETED);
+        stepExecution.setExitStatus(ExitStatus.COMPLETED);
+        stepExecution.setEndTime(new Date());
+        repository.update(stepExecution);
+
+        StepExecution written = written();
+        assertEquals(stepExecution.getVersion(), written.getVersion());
+        assertEquals(10, written.getReadCount());
+        assertEquals(BatchStatus.COMPLETED, written.getStatus());
+    }
+
+    private void assertWrittenRightAway(Consumer<StepExecution> change) {
+        chunk();
+        assertEquals(0, stepWrites.get());
+
+        change.accept(stepExecution);
+        stepExecution.setReadCount(stepExecution.getReadCount() + 1);
+        repository.update(stepExecution);
+
+        assertEquals(1, stepWrites.get());
+        assertEquals(2, written().getReadCount());
+    }
+
+    private void chunk() {
+        stepExecution.setReadCount(stepExecution.getReadCount() + 1);
+        stepExecution.incrementCommitCount();
+        repository.update(stepExecution);
+    }
+
+    private StepExecution written() {
+        return jobExplorer.getStepExecution(stepExecution.getJobExecutionId(), stepExecution.getId());
+    }
+}
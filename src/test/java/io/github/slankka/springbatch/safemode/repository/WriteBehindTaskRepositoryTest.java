@@ -0,0 +1,150 @@
+package io.github.slankka.springbatch.safemode.repository;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.task.repository.TaskExecution;
+import org.springframework.cloud.task.repository.TaskRepository;
+import org.springframework.cloud.task.repository.support.SimpleTaskRepository;
+import org.springframework.cloud.task.repository.support.TaskExecutionDaoFactoryBean;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Completions of task executions started through the repository are written in batches, kept
+ * when a batch fails, and written on shutdown; any other completion is written right away.
+ */
+public class WriteBehindTaskRepositoryTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private DataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private TaskRepository delegate;
+
+    private WriteBehindTaskRepository repository;
+
+    @Before
+    public void createRepository() {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:tasks" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+        new ResourceDatabasePopulator(new ClassPathResource("org/springframework/cloud/task/schema-h2.sql"))
+                .execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        delegate = new SimpleTaskRepository(new TaskExecutionDaoFactoryBean(dataSource));
+        repository = new WriteBehindTaskRepository(delegate, dataSource);
+        repository.setFlushInterval(60000);
+    }
+
+    @After
+    public void destroyRepository() {
+        repository.destroy();
+        jdbcTemplate.execute("shutdown");
+    }
+
+    @Test
+    public void defersCompletionsUntilTheFlush() {
+        long first = start(repository);
+        long second = start(repository);
+
+        repository.completeTaskExecution(first, 0, new Date(), "done");
+        repository.completeTaskExecution(second, 1, new Date(), "failed", "boom");
+        assertNull(endTime(first));
+        assertNull(endTime(second));
+
+        repository.flush();
+        assertNotNull(endTime(first));
+        assertEquals(Integer.valueOf(1), jdbcTemplate.queryForObject(
+                "select EXIT_CODE from TASK_EXECUTION where TASK_EXECUTION_ID = ?", Integer.class, second));
+        assertEquals("boom", jdbcTemplate.queryForObject(
+                "select ERROR_MESSAGE from TASK_EXECUTION where TASK_EXECUTION_ID = ?", String.class, second));
+    }
+
+    @Test
+    public void flushesOnceTheBatchIsFull() throws InterruptedException {
+        repository.setBatchSize(2);
+        long first = start(repository);
+        long second = start(repository);
+
+        repository.completeTaskExecution(first, 0, new Date(), "done");
+        repository.completeTaskExecution(second, 0, new Date(), "done");
+
+        for (int i = 0; i < 100 && endTime(second) == null; i++) {
+            Thread.sleep(50);
+        }
+        assertNotNull(endTime(first));
+        assertNotNull(endTime(second));
+    }
+
+    @Test
+    public void keepsAFailedBatchForTheNextFlush() {
+        long executionId = start(repository);
+        repository.completeTaskExecution(executionId, 0, new Date(), "done");
+        jdbcTemplate.execute("alter table TASK_EXECUTION rename to TASK_EXECUTION_OFFLINE");
+        try {
+            repository.flush();
+            fail("expected the batch to fail");
+        } catch (DataAccessException expected) {
+        }
+        jdbcTemplate.execute("alter table TASK_EXECUTION_OFFLINE rename to TASK_EXECUTION");
+        assertNull(endTime(executionId));
+
+        repository.flush();
+        assertNotNull(endTime(executionId));
+    }
+
+    @Test
+    public void writesCompletionsOfOtherExecutionsRightAway() {
+        long executionId = start(delegate);
+
+        repository.completeTaskExecution(executionId, 0, new Date(), "done");
+
+        assertNotNull(endTime(executionId));
+    }
+
+    @Test
+    public void writesPendingCompletionsOnDestroy() {
+        long executionId = start(repository);
+        repository.completeTaskExecution(executionId, 0, new Date(), "done");
+
+        repository.destroy();
+
+        assertNotNull(endTime(executionId));
+    }
+
+    @Test
+    public void writesCompletionsRightAwayOnceDestroyed() {
+        long executionId = start(repository);
+        repository.destroy();
+
+        repository.completeTaskExecution(executionId, 0, new Date(), "done");
+
+        assertNotNull(endTime(executionId));
+    }
+
+    private static long start(TaskRepository taskRepository) {
+        long executionId = taskRepository.createTaskExecution().getExecutionId();
+        TaskExecution started = taskRepository.startTaskExecution(executionId, "task", new Date(),
+                Collections.emptyList(), null);
+        return started.getExecutionId();
+    }
+
+    private Date endTime(long executionId) {
+        return jdbcTemplate.queryForObject("select END_TIME from TASK_EXECUTION where TASK_EXECUTION_ID = ?",
+                Date.class, executionId);
+    }
+}
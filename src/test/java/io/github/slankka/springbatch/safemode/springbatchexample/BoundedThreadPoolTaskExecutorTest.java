@@ -0,0 +1,124 @@
+package io.github.slankka.springbatch.safemode.springbatchexample;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A pool of one thread with room for one queued task, so the third task submitted while the first
+ * is stuck hits the back-pressure policy.
+ */
+public class BoundedThreadPoolTaskExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private BoundedThreadPoolTaskExecutor executor;
+
+    @After
+    public void shutDown() {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void abortRejectsOnceThePoolAndTheQueueAreFull() {
+        fill(BackPressurePolicy.ABORT, 30000);
+        try {
+            executor.execute(() -> { });
+            fail("expected the task to be rejected");
+        } catch (RejectedExecutionException expected) {
+            assertEquals(1, executor.getRejectedCount());
+            assertEquals(0, executor.getThrottledCount());
+        }
+    }
+
+    @Test
+    public void callerRunsRunsTheTaskOnTheSubmittingThread() {
+        fill(BackPressurePolicy.CALLER_RUNS, 30000);
+        AtomicReference<Thread> ranOn = new AtomicReference<>();
+        executor.execute(() -> ranOn.set(Thread.currentThread()));
+        assertSame(Thread.currentThread(), ranOn.get());
+        assertEquals(1, executor.getThrottledCount());
+        assertEquals(0, executor.getRejectedCount());
+    }
+
+    @Test
+    public void blockWaitsForRoomInTheQueue() throws InterruptedException {
+        fill(BackPressurePolicy.BLOCK, 30000);
+        CountDownLatch ran = new CountDownLatch(1);
+        new Thread(() -> {
+            sleep(200);
+            release.countDown();
+        }).start();
+        executor.execute(ran::countDown);
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        assertEquals(1, executor.getThrottledCount());
+        assertEquals(0, executor.getRejectedCount());
+    }
+
+    @Test
+    public void blockRejectsAfterTheTimeout() {
+        fill(BackPressurePolicy.BLOCK, 100);
+        long start = System.nanoTime();
+        try {
+            executor.execute(() -> { });
+            fail("expected the task to be rejected");
+        } catch (RejectedExecutionException expected) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            assertEquals(1, executor.getThrottledCount());
+            assertEquals(1, executor.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void rejectsOnceShutDown() {
+        executor = new BoundedThreadPoolTaskExecutor();
+        executor.setBackPressurePolicy(BackPressurePolicy.CALLER_RUNS);
+        executor.initialize();
+        executor.shutdown();
+        try {
+            executor.execute(() -> { });
+            fail("expected the task to be rejected");
+        } catch (RejectedExecutionException expected) {
+            assertEquals(1, executor.getRejectedCount());
+            assertEquals(0, executor.getThrottledCount());
+        }
+    }
+
+    private void fill(BackPressurePolicy policy, long timeout) {
+        executor = new BoundedThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setQueueCapacity(1);
+        executor.setBackPressurePolicy(policy);
+        executor.setBackPressureTimeout(timeout);
+        executor.initialize();
+        executor.execute(this::awaitRelease);
+        executor.execute(this::awaitRelease);
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
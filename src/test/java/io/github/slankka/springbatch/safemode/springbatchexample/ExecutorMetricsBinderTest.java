@@ -0,0 +1,104 @@
+package io.github.slankka.springbatch.safemode.springbatchexample;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The binder publishes the {@code executor.*} meters of every executor bean, tagged with its name.
+ */
+public class ExecutorMetricsBinderTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private GenericApplicationContext context;
+
+    @After
+    public void close() {
+        release.countDown();
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void publishesTheQueueAndTheBackPressureCounts() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        BoundedThreadPoolTaskExecutor executor = new BoundedThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setQueueCapacity(2);
+        executor.initialize();
+        try {
+            ExecutorMetricsBinder.bind(registry, "jobs", executor);
+            executor.execute(this::awaitRelease);
+            executor.execute(this::awaitRelease);
+            executor.execute(this::awaitRelease);
+            try {
+                executor.execute(() -> { });
+            } catch (RejectedExecutionException expected) {
+            }
+            assertEquals(0, registry.get("executor.queue.remaining").tag("name", "jobs").gauge().value(), 0);
+            assertEquals(1, registry.get("executor.rejected").tag("name", "jobs").functionCounter().count(), 0);
+            assertEquals(0, registry.get("executor.throttled").tags("name", "jobs", "policy", "ABORT")
+                    .functionCounter().count(), 0);
+            assertEquals(2, registry.get("executor.queued").tag("name", "jobs").gauge().value(), 0);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void leavesOutTheBackPressureCountsOfAPlainExecutor() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.initialize();
+        try {
+            ExecutorMetricsBinder.bind(registry, "tasks", executor);
+            assertNotNull(registry.find("executor.queue.remaining").tag("name", "tasks").gauge());
+            assertNull(registry.find("executor.rejected").functionCounter());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void bindsEveryExecutorBeanOfTheContext() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        context = new GenericApplicationContext();
+        context.registerBean(MeterRegistry.class, () -> registry);
+        context.registerBean("taskExecutor", ThreadPoolTaskExecutor.class);
+        context.registerBean("jobExecutor", BoundedThreadPoolTaskExecutor.class);
+        context.registerBean(ExecutorMetricsBinder.class);
+        context.refresh();
+        assertNotNull(registry.find("executor.queue.remaining").tag("name", "taskExecutor").gauge());
+        assertNotNull(registry.find("executor.rejected").tag("name", "jobExecutor").functionCounter());
+    }
+
+    @Test
+    public void doesNothingWithoutARegistry() {
+        context = new GenericApplicationContext();
+        context.registerBean("taskExecutor", ThreadPoolTaskExecutor.class);
+        context.registerBean(ExecutorMetricsBinder.class);
+        context.refresh();
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
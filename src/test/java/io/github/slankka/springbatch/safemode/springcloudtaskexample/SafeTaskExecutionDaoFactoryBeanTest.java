@@ -0,0 +1,77 @@
+package io.github.slankka.springbatch.safemode.springcloudtaskexample;
+
+import io.github.slankka.springbatch.safemode.patch.MysqlStandIn;
+import io.github.slankka.springbatch.safemode.patch.SafeModeIncrementerRegistry;
+import io.github.slankka.springbatch.safemode.patch.SafeModeMysqlIncrementFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The task ID block size applies to {@code TASK_SEQ} whether the factory bean creates its
+ * incrementer factory or is given one, like the one of the auto-configuration.
+ */
+public class SafeTaskExecutionDaoFactoryBeanTest {
+
+    private DataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void createTaskSequence() throws Exception {
+        dataSource = MysqlStandIn.createMariaDb(true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table TASK_SEQ (ID BIGINT NOT NULL, UNIQUE_KEY CHAR(1) NOT NULL, " +
+                "constraint TASK_SEQ_UN unique (UNIQUE_KEY))");
+        jdbcTemplate.execute("insert into TASK_SEQ (ID, UNIQUE_KEY) values (0, '0')");
+    }
+
+    @After
+    public void removeIncrementers() {
+        SafeModeIncrementerRegistry.remove(dataSource);
+    }
+
+    @Test
+    public void reservesBlocksWithItsOwnFactory() throws Exception {
+        SafeTaskExecutionDaoFactoryBean factoryBean = new SafeTaskExecutionDaoFactoryBean(dataSource);
+        factoryBean.setTaskIdBlockSize(50);
+
+        assertEquals(1, factoryBean.getObject().getNextExecutionId());
+        assertEquals(2, factoryBean.getObject().getNextExecutionId());
+        assertEquals(50, taskSequenceValue());
+    }
+
+    @Test
+    public void reservesBlocksWithAGivenFactory() throws Exception {
+        SafeModeMysqlIncrementFactory incrementerFactory = new SafeModeMysqlIncrementFactory(dataSource);
+        incrementerFactory.setCacheSize(5);
+        SafeTaskExecutionDaoFactoryBean factoryBean = new SafeTaskExecutionDaoFactoryBean(dataSource);
+        factoryBean.setIncrementerFactory(incrementerFactory);
+        factoryBean.setTaskIdBlockSize(50);
+
+        factoryBean.getObject().getNextExecutionId();
+
+        assertEquals(50, taskSequenceValue());
+    }
+
+    @Test
+    public void keepsTheCacheSizeOfAGivenFactoryByDefault() throws Exception {
+        SafeModeMysqlIncrementFactory incrementerFactory = new SafeModeMysqlIncrementFactory(dataSource);
+        incrementerFactory.setCacheSize(5);
+        SafeTaskExecutionDaoFactoryBean factoryBean = new SafeTaskExecutionDaoFactoryBean(dataSource);
+        factoryBean.setIncrementerFactory(incrementerFactory);
+
+        factoryBean.getObject().getNextExecutionId();
+
+        assertEquals(5, taskSequenceValue());
+    }
+
+    private long taskSequenceValue() {
+        return jdbcTemplate.queryForObject("select ID from TASK_SEQ", Long.class);
+    }
+}